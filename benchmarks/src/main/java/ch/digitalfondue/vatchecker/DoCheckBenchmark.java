@@ -0,0 +1,100 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * The whole check, from writing the request to reading the response, against a canned in-memory documentFetcher:
+ * the static {@link EUVatChecker#doCheck(String, String, BiFunction, ResponseParser)} and an {@link EUVatChecker}
+ * instance, with and without {@link VatCheckStats}, on one and on four threads.
+ *
+ * Reports the throughput and the latency distribution, run with <code>-prof gc</code> for the allocation per check:
+ * <pre>
+ * java -jar target/benchmarks.jar DoCheckBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DoCheckBenchmark {
+
+    private static final byte[] RESPONSE = ("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+            "<checkVatResponse xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+            "<countryCode>IT</countryCode><vatNumber>00950501007</vatNumber><requestDate>2020-10-21+02:00</requestDate>" +
+            "<valid>true</valid><name>BANCA D'ITALIA</name><address>VIA NAZIONALE 91 \n00184 ROMA RM\n</address>" +
+            "</checkVatResponse></soap:Body></soap:Envelope>").getBytes(StandardCharsets.UTF_8);
+
+    // the request body is consumed, as a real http client would, so writing it cannot be optimized away
+    private static final BiFunction<String, String, InputStream> FETCHER = (url, body) -> {
+        if (body.length() == 0) {
+            throw new IllegalStateException("empty request");
+        }
+        return new ByteArrayInputStream(RESPONSE);
+    };
+
+    @Param({"STAX", "DOM"})
+    public ResponseParser parser;
+
+    @State(Scope.Benchmark)
+    public static class Instance {
+
+        @Param({"false", "true"})
+        public boolean metrics;
+
+        private EUVatChecker checker;
+
+        @Setup
+        public void setup(DoCheckBenchmark benchmark) {
+            EUVatChecker checker = new EUVatChecker(FETCHER, benchmark.parser);
+            this.checker = metrics ? checker.withMetrics(new VatCheckStats()) : checker;
+            if (!this.checker.check("IT", "00950501007").isValid()) {
+                throw new IllegalStateException("The canned response is not valid");
+            }
+        }
+    }
+
+    @Benchmark
+    public EUVatCheckResponse doCheck() {
+        return EUVatChecker.doCheck("IT", "00950501007", FETCHER, parser);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public EUVatCheckResponse doCheckContended() {
+        return EUVatChecker.doCheck("IT", "00950501007", FETCHER, parser);
+    }
+
+    @Benchmark
+    public EUVatCheckResponse check(Instance instance) {
+        return instance.checker.check("IT", "00950501007");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public EUVatCheckResponse checkContended(Instance instance) {
+        return instance.checker.check("IT", "00950501007");
+    }
+}
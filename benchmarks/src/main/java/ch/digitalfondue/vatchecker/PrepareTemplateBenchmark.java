@@ -0,0 +1,86 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the DOM based request template that was used up to 1.4 with the current {@link EUVatChecker#prepareTemplate(String, String)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrepareTemplateBenchmark {
+
+    private static final String DOM_TEMPLATE = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<soapenv:Header/>" +
+            "<soapenv:Body>" +
+            "<checkVat xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+            "<countryCode></countryCode><vatNumber></vatNumber>" +
+            "</checkVat>" +
+            "</soapenv:Body>" +
+            "</soapenv:Envelope>";
+
+    private Document baseDocument;
+
+    @Param({"00950501007", "A&B<C>"})
+    public String vatNumber;
+
+    @Setup
+    public void setup() throws Exception {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        dbFactory.setNamespaceAware(true);
+        baseDocument = dbFactory.newDocumentBuilder().parse(new InputSource(new StringReader(DOM_TEMPLATE)));
+        String dom = dom();
+        String writer = writer();
+        if (!dom.equals(writer)) {
+            throw new IllegalStateException("Output differs:\n" + dom + "\n" + writer);
+        }
+    }
+
+    @Benchmark
+    public String dom() throws Exception {
+        Transformer copy = TransformerFactory.newInstance().newTransformer();
+        DOMResult result = new DOMResult();
+        copy.transform(new DOMSource(baseDocument), result);
+        Document doc = (Document) result.getNode();
+        doc.getElementsByTagName("countryCode").item(0).setTextContent("IT");
+        doc.getElementsByTagName("vatNumber").item(0).setTextContent(vatNumber);
+        StringWriter sw = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(sw));
+        return sw.toString();
+    }
+
+    @Benchmark
+    public String writer() {
+        return EUVatChecker.prepareTemplate("IT", vatNumber);
+    }
+}
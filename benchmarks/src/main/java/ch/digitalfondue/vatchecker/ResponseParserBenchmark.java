@@ -0,0 +1,48 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the {@link ResponseParser} strategies on a canned VIES response. Run with <code>-prof gc</code> for the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseParserBenchmark {
+
+    private static final byte[] RESPONSE = ("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+            "<checkVatResponse xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+            "<countryCode>IT</countryCode><vatNumber>00950501007</vatNumber><requestDate>2020-10-21+02:00</requestDate>" +
+            "<valid>true</valid><name>BANCA D'ITALIA</name><address>VIA NAZIONALE 91 \n00184 ROMA RM\n</address>" +
+            "</checkVatResponse></soap:Body></soap:Envelope>").getBytes(StandardCharsets.UTF_8);
+
+    @Param({"STAX", "DOM"})
+    public ResponseParser parser;
+
+    @Benchmark
+    public EUVatCheckResponse parse() {
+        return parser.parse(new ByteArrayInputStream(RESPONSE));
+    }
+}
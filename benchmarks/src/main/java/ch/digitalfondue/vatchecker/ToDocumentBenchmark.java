@@ -0,0 +1,69 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare a DocumentBuilderFactory lookup and configuration per call, as done up to 1.4, with the per thread cached
+ * builder of {@link XmlFactories}. Run with <code>-prof gc</code> for the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ToDocumentBenchmark {
+
+    private static final String RESPONSE = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+            "<checkVatResponse xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+            "<countryCode>IT</countryCode><vatNumber>00950501007</vatNumber><requestDate>2020-10-21+02:00</requestDate>" +
+            "<valid>true</valid><name>BANCA D'ITALIA</name><address>VIA NAZIONALE 91 \n00184 ROMA RM\n</address>" +
+            "</checkVatResponse></soap:Body></soap:Envelope>";
+
+    @Benchmark
+    public Document uncached() throws Exception {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        dbFactory.setNamespaceAware(true);
+        setFeature(dbFactory, "http://apache.org/xml/features/disallow-doctype-decl", true);
+        setFeature(dbFactory, "http://xml.org/sax/features/external-general-entities", false);
+        setFeature(dbFactory, "http://xml.org/sax/features/external-parameter-entities", false);
+        setFeature(dbFactory, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        dbFactory.setXIncludeAware(false);
+        dbFactory.setExpandEntityReferences(false);
+        return dbFactory.newDocumentBuilder().parse(new InputSource(new StringReader(RESPONSE)));
+    }
+
+    @Benchmark
+    public Document cached() {
+        return DomResponseParser.toDocument(new StringReader(RESPONSE));
+    }
+
+    private static void setFeature(DocumentBuilderFactory dbFactory, String feature, boolean value) {
+        try {
+            dbFactory.setFeature(feature, value);
+        } catch (ParserConfigurationException e) {
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Run a batch of checks with bounded parallelism, see {@link EUVatChecker#checkAll(Collection, int, Consumer)}.
+ *
+ * The work is grouped by country code and each worker picks the next item from the country with the fewest checks
+ * in flight: a slow member state keeps its checks in flight, so the workers naturally move to the other countries
+ * instead of all piling up on it.
+ */
+final class BatchCheck {
+
+    private final Map<String, CountryQueue> countries = new LinkedHashMap<>();
+    private final BlockingQueue<VatCheckResult> results = new LinkedBlockingQueue<>();
+    private final Function<VatId, EUVatCheckResponse> check;
+    private final int total;
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+
+    // queued when a worker died, so the consumer loop does not wait forever for its result
+    private static final VatCheckResult FAILED = new VatCheckResult(null, null, null);
+
+    BatchCheck(Collection<VatId> vatIds, Function<VatId, EUVatCheckResponse> check) {
+        for (VatId vatId : vatIds) {
+            String countryCode = vatId.getCountryCode().toUpperCase(Locale.ROOT);
+            countries.computeIfAbsent(countryCode, k -> new CountryQueue()).pending.add(vatId);
+        }
+        this.check = check;
+        this.total = vatIds.size();
+    }
+
+    void run(int parallelism, Executor executor, Consumer<VatCheckResult> consumer) {
+        int workers = Math.min(parallelism, total);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::work);
+        }
+        try {
+            for (int i = 0; i < total; i++) {
+                VatCheckResult result = results.take();
+                if (result == FAILED) {
+                    if (failure instanceof Error) {
+                        throw (Error) failure;
+                    }
+                    throw new IllegalStateException(failure);
+                }
+                consumer.accept(result);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            cancelled = true;
+        }
+    }
+
+    private void work() {
+        while (!cancelled) {
+            CountryQueue country;
+            VatId vatId;
+            synchronized (this) {
+                country = leastBusy();
+                if (country == null) {
+                    return;
+                }
+                vatId = country.pending.poll();
+                country.inFlight++;
+            }
+            VatCheckResult result = FAILED;
+            try {
+                result = new VatCheckResult(vatId, check.apply(vatId), null);
+            } catch (RuntimeException e) {
+                result = new VatCheckResult(vatId, null, e);
+            } catch (Throwable e) {
+                // an Error (or a sneaky checked exception) is not a failed check: it's rethrown by run
+                failure = e;
+                cancelled = true;
+            } finally {
+                synchronized (this) {
+                    country.inFlight--;
+                }
+                results.add(result);
+            }
+        }
+    }
+
+    private CountryQueue leastBusy() {
+        CountryQueue selected = null;
+        for (CountryQueue country : countries.values()) {
+            if (!country.pending.isEmpty() && (selected == null || country.inFlight < selected.inFlight)) {
+                selected = country;
+            }
+        }
+        return selected;
+    }
+
+    private static final class CountryQueue {
+        private final ArrayDeque<VatId> pending = new ArrayDeque<>();
+        private int inFlight;
+    }
+}
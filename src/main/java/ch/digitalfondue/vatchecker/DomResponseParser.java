@@ -0,0 +1,86 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read the checkVat response by building a DOM. See {@link ResponseParser#DOM}.
+ *
+ * The values are extracted by walking the tree instead of using shared compiled XPathExpression instances, as the
+ * JAXP specification does not guarantee that these are safe to evaluate concurrently.
+ */
+final class DomResponseParser {
+
+    private DomResponseParser() {
+    }
+
+    static EUVatCheckResponse parse(InputStream is) {
+        Document result = toDocument(new InputStreamReader(is, StandardCharsets.UTF_8));
+        NodeList checkVatResponses = result.getElementsByTagNameNS("*", "checkVatResponse");
+        Node validNode = firstChild(checkVatResponses, "valid");
+        if (validNode != null) {
+            Node nameNode = firstChild(checkVatResponses, "name");
+            Node addressNode = firstChild(checkVatResponses, "address");
+            return new EUVatCheckResponse("true".equals(textNode(validNode)), textNode(nameNode), textNode(addressNode),
+                    textNode(firstChild(checkVatResponses, "countryCode")),
+                    textNode(firstChild(checkVatResponses, "vatNumber")),
+                    textNode(firstChild(checkVatResponses, "requestDate")));
+        }
+        Node faultString = firstChild(result.getElementsByTagNameNS("*", "Fault"), "faultstring");
+        return EUVatCheckResponse.fault(faultString != null ? faultString.getTextContent().trim() : null);
+    }
+
+    /**
+     * Equivalent of the <code>//*[local-name()='checkVatResponse']/*[local-name()=$localName]</code> XPath expression.
+     */
+    private static Node firstChild(NodeList parents, String localName) {
+        for (int i = 0; i < parents.getLength(); i++) {
+            for (Node child = parents.item(i).getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE && localName.equals(child.getLocalName())) {
+                    return child;
+                }
+            }
+        }
+        return null;
+    }
+
+    static Document toDocument(Reader reader) {
+        DocumentBuilder dBuilder = XmlFactories.documentBuilder();
+        try {
+            return dBuilder.parse(new InputSource(reader));
+        } catch (IOException | SAXException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            dBuilder.reset();
+        }
+    }
+
+    private static String textNode(Node node) {
+        return node != null ? node.getTextContent() : null;
+    }
+}
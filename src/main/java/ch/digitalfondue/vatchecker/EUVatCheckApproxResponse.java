@@ -0,0 +1,157 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+/**
+ * The response of the checkVatApprox operation, see {@link EUVatChecker#checkApprox(VatCheckApproxRequest)}.
+ *
+ * {@link #getName()} and {@link #getAddress()} return the trader name and address registered for the vat number.
+ * The other trader details and the matches are only returned by some member states.
+ */
+public class EUVatCheckApproxResponse extends EUVatCheckResponse {
+
+    /**
+     * How a trader detail given in the request compares to the registered one.
+     */
+    public enum Match {
+        VALID, INVALID, NOT_PROCESSED;
+
+        // the webservice returns the matches as 1, 2 or 3
+        private static Match of(String value) {
+            if (value == null) {
+                return null;
+            }
+            switch (value.trim()) {
+                case "1":
+                    return VALID;
+                case "2":
+                    return INVALID;
+                case "3":
+                    return NOT_PROCESSED;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    // local names of the elements of checkVatApproxResponse, in the order of the values given to the constructor
+    static final String[] FIELDS = {
+            "traderName", "traderAddress", "traderCompanyType", "traderStreet", "traderPostcode", "traderCity",
+            "traderNameMatch", "traderCompanyTypeMatch", "traderStreetMatch", "traderPostcodeMatch", "traderCityMatch",
+            "requestIdentifier", "countryCode", "vatNumber", "requestDate"
+    };
+
+    private final String companyType;
+    private final String street;
+    private final String postcode;
+    private final String city;
+    private final Match nameMatch;
+    private final Match companyTypeMatch;
+    private final Match streetMatch;
+    private final Match postcodeMatch;
+    private final Match cityMatch;
+    private final String requestIdentifier;
+
+    /**
+     * @param values the text of the elements listed in {@link #FIELDS}, null when absent
+     */
+    EUVatCheckApproxResponse(boolean isValid, String[] values) {
+        super(isValid, values[0], values[1], values[12], values[13], values[14]);
+        this.companyType = values[2];
+        this.street = values[3];
+        this.postcode = values[4];
+        this.city = values[5];
+        this.nameMatch = Match.of(values[6]);
+        this.companyTypeMatch = Match.of(values[7]);
+        this.streetMatch = Match.of(values[8]);
+        this.postcodeMatch = Match.of(values[9]);
+        this.cityMatch = Match.of(values[10]);
+        this.requestIdentifier = values[11];
+    }
+
+    private EUVatCheckApproxResponse(String faultCode) {
+        super(faultStatus(faultCode), null, null, faultCode);
+        this.companyType = null;
+        this.street = null;
+        this.postcode = null;
+        this.city = null;
+        this.nameMatch = null;
+        this.companyTypeMatch = null;
+        this.streetMatch = null;
+        this.postcodeMatch = null;
+        this.cityMatch = null;
+        this.requestIdentifier = null;
+    }
+
+    /**
+     * @param faultCode the fault code as returned by the webservice, null if the response was not understood
+     */
+    static EUVatCheckApproxResponse fault(String faultCode) {
+        return new EUVatCheckApproxResponse(faultCode);
+    }
+
+    static int fieldIndex(String localName) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(localName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getCompanyType() {
+        return companyType;
+    }
+
+    public String getStreet() {
+        return street;
+    }
+
+    public String getPostcode() {
+        return postcode;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public Match getNameMatch() {
+        return nameMatch;
+    }
+
+    public Match getCompanyTypeMatch() {
+        return companyTypeMatch;
+    }
+
+    public Match getStreetMatch() {
+        return streetMatch;
+    }
+
+    public Match getPostcodeMatch() {
+        return postcodeMatch;
+    }
+
+    public Match getCityMatch() {
+        return cityMatch;
+    }
+
+    /**
+     * @return the consultation number, proof of the check, only returned when the requester was given
+     */
+    public String getRequestIdentifier() {
+        return requestIdentifier;
+    }
+}
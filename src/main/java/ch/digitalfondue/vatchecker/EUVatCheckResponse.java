@@ -15,16 +15,92 @@
  */
 package ch.digitalfondue.vatchecker;
 
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 public class EUVatCheckResponse {
 
+    /**
+     * The outcome of a check.
+     */
+    public enum Status {
+        /**
+         * The vat number is valid.
+         */
+        VALID,
+        /**
+         * The vat number is not valid.
+         */
+        INVALID,
+        /**
+         * The webservice returned a fault that is expected to be transient (e.g. MS_UNAVAILABLE, TIMEOUT):
+         * the check can be retried later. See {@link #getFaultCode()}.
+         */
+        RETRYABLE_FAULT,
+        /**
+         * The webservice returned a fault that will not go away by retrying (e.g. INVALID_INPUT), or an unexpected
+         * response. See {@link #getFaultCode()}.
+         */
+        PERMANENT_FAULT
+    }
+
+    // See https://ec.europa.eu/taxation_customs/vies/checkVatService.wsdl
+    private static final Set<String> RETRYABLE_FAULT_CODES = new HashSet<>(Arrays.asList(
+            "SERVICE_UNAVAILABLE",
+            "MS_UNAVAILABLE",
+            "TIMEOUT",
+            "GLOBAL_MAX_CONCURRENT_REQ",
+            "GLOBAL_MAX_CONCURRENT_REQ_TIME",
+            "MS_MAX_CONCURRENT_REQ",
+            "MS_MAX_CONCURRENT_REQ_TIME"));
+
     private final boolean isValid;
     private final String name;
     private final String address;
+    private final Status status;
+    private final String faultCode;
+    private final String countryCode;
+    private final String vatNumber;
+    // the strings are read in the parsing pass, a StAX text event does not outlive it: only the date is deferred
+    private final String requestDateText;
+    // parsed on first access, racy but idempotent as LocalDate is immutable. MALFORMED if it cannot be parsed
+    private LocalDate requestDate;
 
-    EUVatCheckResponse(boolean isValid, String name, String address) {
-        this.isValid = isValid;
+    private static final LocalDate MALFORMED = LocalDate.MIN;
+
+    EUVatCheckResponse(boolean isValid, String name, String address, String countryCode, String vatNumber, String requestDate) {
+        this(isValid ? Status.VALID : Status.INVALID, name, address, null, countryCode, vatNumber, requestDate);
+    }
+
+    EUVatCheckResponse(Status status, String name, String address, String faultCode) {
+        this(status, name, address, faultCode, null, null, null);
+    }
+
+    private EUVatCheckResponse(Status status, String name, String address, String faultCode, String countryCode, String vatNumber, String requestDate) {
+        this.isValid = status == Status.VALID;
         this.name = name;
         this.address = address;
+        this.status = status;
+        this.faultCode = faultCode;
+        this.countryCode = countryCode;
+        this.vatNumber = vatNumber;
+        this.requestDateText = requestDate;
+    }
+
+    /**
+     * @param faultCode the fault code as returned by the webservice, null if the response was not understood
+     */
+    static EUVatCheckResponse fault(String faultCode) {
+        return new EUVatCheckResponse(faultStatus(faultCode), null, null, faultCode);
+    }
+
+    static Status faultStatus(String faultCode) {
+        boolean retryable = faultCode != null && RETRYABLE_FAULT_CODES.contains(faultCode);
+        return retryable ? Status.RETRYABLE_FAULT : Status.PERMANENT_FAULT;
     }
 
     public boolean isValid() {
@@ -38,4 +114,71 @@ public class EUVatCheckResponse {
     public String getAddress() {
         return address;
     }
+
+    /**
+     * @return the country code as returned by the webservice, null for a fault
+     */
+    public String getCountryCode() {
+        return countryCode;
+    }
+
+    /**
+     * @return the vat number as returned by the webservice, null for a fault
+     */
+    public String getVatNumber() {
+        return vatNumber;
+    }
+
+    /**
+     * @return the date of the check according to the webservice, null for a fault, if the check was answered
+     * locally (see {@link EUVatChecker#withFormatValidation()}) or if the date is malformed, see
+     * {@link #getRequestDateText()}
+     */
+    public LocalDate getRequestDate() {
+        LocalDate date = requestDate;
+        if (date == null && requestDateText != null) {
+            try {
+                // xsd:date, with an optional offset: 2020-10-21+02:00
+                date = LocalDate.parse(requestDateText.trim(), DateTimeFormatter.ISO_DATE);
+            } catch (DateTimeParseException e) {
+                date = MALFORMED;
+            }
+            requestDate = date;
+        }
+        return date != MALFORMED ? date : null;
+    }
+
+    /**
+     * @return the date of the check as returned by the webservice, e.g. 2020-10-21+02:00, null for a fault
+     */
+    public String getRequestDateText() {
+        return requestDateText;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true if the webservice did not answer with a validity, see {@link #getFaultCode()}
+     */
+    public boolean isFault() {
+        return status == Status.RETRYABLE_FAULT || status == Status.PERMANENT_FAULT;
+    }
+
+    /**
+     * @return true if the webservice was not called because the circuit breaker of the country code was open, the
+     * fault code is then MS_UNAVAILABLE. See {@link EUVatChecker#withCircuitBreaker(VatCheckCircuitBreaker)}.
+     */
+    public boolean isCircuitOpen() {
+        return VatCheckCircuitBreaker.isRejection(this);
+    }
+
+    /**
+     * @return the fault code returned by the webservice (e.g. INVALID_INPUT, MS_UNAVAILABLE), null if the check
+     * was not a fault or if the response was not understood
+     */
+    public String getFaultCode() {
+        return faultCode;
+    }
 }
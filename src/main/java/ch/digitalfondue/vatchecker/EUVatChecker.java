@@ -15,29 +15,22 @@
  */
 package ch.digitalfondue.vatchecker;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMResult;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.*;
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Collection;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * A small utility for calling the VIES webservice. See https://ec.europa.eu/taxation_customs/vies/ .
@@ -45,152 +38,555 @@ import java.util.function.BiFunction;
  * The main entry points are {@link #doCheck(String, String)} and if more customization is needed {@link #doCheck(String, String, BiFunction)}.
  */
 public class EUVatChecker {
-    
-    private static final Document BASE_DOCUMENT_TEMPLATE;
 
-    private static final String ENDPOINT = "https://ec.europa.eu/taxation_customs/vies/services/checkVatService";
-    private static final XPathExpression VALID_ELEMENT_MATCHER;
-    private static final XPathExpression NAME_ELEMENT_MATCHER;
-    private static final XPathExpression ADDRESS_ELEMENT_MATCHER;
+    /**
+     * The url of the VIES webservice.
+     */
+    public static final String DEFAULT_ENDPOINT = "https://ec.europa.eu/taxation_customs/vies/services/checkVatService";
+    // no connection limit, as before the HttpDocumentFetcher: the static doCheck callers are not throttled
+    private static final HttpDocumentFetcher DEFAULT_DOCUMENT_FETCHER = new HttpDocumentFetcher(HttpDocumentFetcher.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+            HttpDocumentFetcher.DEFAULT_READ_TIMEOUT_MILLIS, HttpDocumentFetcher.UNLIMITED_CONNECTIONS);
 
+    private final Builder settings;
+    // resolved when building, so the calls do not look up the configuration
     private final BiFunction<String, String, InputStream> documentFetcher;
-
+    private final ResponseParser responseParser;
+    private final BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher;
+    private final Executor executor;
+    private final VatCheckCache cache;
+    private final SingleFlight<VatId, EUVatCheckResponse> singleFlight;
+    private final VatCheckLimiter limiter;
+    private final RetryPolicy retryPolicy;
+    private final VatCheckCircuitBreaker circuitBreaker;
+    private final boolean formatValidation;
+    private final VatCheckStore store;
+    private final VatCheckMetrics metrics;
 
     /**
-     *
+     * A checker with the default configuration, see {@link #builder()}.
      */
     public EUVatChecker() {
-        this(EUVatChecker::doCall);
+        this(new Builder());
     }
 
     /**
-     * @param documentFetcher the function that, given the url of the web service and the body to post, return the resulting body as InputStream
+     * @param documentFetcher the function that, given the url of the web service and the body to post, return the resulting body as InputStream.
+     *                        See {@link HttpDocumentFetcher} for the default implementation with configurable timeouts and pool size.
      */
     public EUVatChecker(BiFunction<String, String, InputStream> documentFetcher) {
-        this.documentFetcher = documentFetcher;
+        this(new Builder().documentFetcher(documentFetcher));
     }
 
     /**
-     * See {@link #doCheck(String, String)}.
+     * @param documentFetcher the function that, given the url of the web service and the body to post, return the resulting body as InputStream
+     * @param responseParser  the strategy used for reading the response, see {@link ResponseParser}
+     */
+    public EUVatChecker(BiFunction<String, String, InputStream> documentFetcher, ResponseParser responseParser) {
+        this(new Builder().documentFetcher(documentFetcher).responseParser(responseParser));
+    }
+
+    private EUVatChecker(Builder builder) {
+        this.settings = builder;
+        BiFunction<String, String, InputStream> fetcher = builder.documentFetcher();
+        BiFunction<String, String, CompletableFuture<InputStream>> asyncFetcher = builder.asyncDocumentFetcher;
+        VatCheckEndpoints endpoints = builder.endpoints;
+        // the static methods call DEFAULT_ENDPOINT, the configured endpoints take over
+        this.documentFetcher = endpoints == null ? fetcher : (url, body) -> endpoints.fetch(body, fetcher);
+        this.asyncDocumentFetcher = endpoints == null || asyncFetcher == null ? asyncFetcher : (url, body) -> endpoints.fetchAsync(body, asyncFetcher);
+        this.responseParser = builder.responseParser;
+        this.executor = builder.executor != null ? builder.executor : DefaultExecutor.INSTANCE;
+        this.cache = builder.cache;
+        this.singleFlight = builder.requestCoalescing ? new SingleFlight<>() : null;
+        this.limiter = builder.limiter;
+        this.retryPolicy = builder.retryPolicy;
+        this.circuitBreaker = builder.circuitBreaker;
+        this.formatValidation = builder.formatValidation;
+        this.store = builder.store;
+        this.metrics = builder.metrics;
+    }
+
+    /**
+     * @return a builder with the default configuration
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder with the configuration of this checker
+     */
+    public Builder toBuilder() {
+        return settings;
+    }
+
+    /**
+     * Return a new checker using the given non blocking fetcher for {@link #checkAsync(String, String)}.
+     * If none is set, the blocking documentFetcher is run on the executor, see {@link #withExecutor(Executor)}.
+     *
+     * @param asyncDocumentFetcher the function that, given the url of the web service and the body to post, return a future completed with the resulting body
+     * @return a new checker
+     */
+    public EUVatChecker withAsyncDocumentFetcher(BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher) {
+        return toBuilder().asyncDocumentFetcher(asyncDocumentFetcher).build();
+    }
+
+    /**
+     * Return a new checker using the given executor for parsing the responses in {@link #checkAsync(String, String)}
+     * and, when no async documentFetcher is set, for running the blocking documentFetcher. It's also used for
+     * running the workers of {@link #checkAll(Collection, int, Consumer)}.
+     *
+     * The default executor has {@link HttpDocumentFetcher#DEFAULT_MAX_CONNECTIONS} threads, shared by all the
+     * checkers: the checks beyond that wait in its queue. Set an executor with more threads for more concurrent
+     * blocking calls.
+     *
+     * @param executor the executor
+     * @return a new checker
+     */
+    public EUVatChecker withExecutor(Executor executor) {
+        return toBuilder().executor(executor).build();
+    }
+
+    /**
+     * Return a new checker answering from the given cache when possible, for both {@link #check(String, String)}
+     * and {@link #checkAsync(String, String)}.
+     *
+     * @param cache the cache, see {@link VatCheckCache}
+     * @return a new checker
+     */
+    public EUVatChecker withCache(VatCheckCache cache) {
+        return toBuilder().cache(cache).build();
+    }
+
+    /**
+     * Return a new checker answering from the given persistent store when possible, and writing to it the valid and
+     * invalid responses received from the webservice. The store is consulted after the cache, see
+     * {@link #withCache(VatCheckCache)}.
+     *
+     * @param store the store, see {@link VatCheckStore}
+     * @return a new checker
+     */
+    public EUVatChecker withStore(VatCheckStore store) {
+        return toBuilder().store(store).build();
+    }
+
+    /**
+     * Return a new checker calling the webservice at the given url instead of {@link #DEFAULT_ENDPOINT}, e.g. a
+     * caching proxy or a local simulator. Also used by {@link #checkApprox(VatCheckApproxRequest)}.
+     *
+     * @param url the url of the webservice
+     * @return a new checker
+     */
+    public EUVatChecker withEndpoint(String url) {
+        return toBuilder().endpoint(url).build();
+    }
+
+    /**
+     * Return a new checker calling the webservice at the given urls, with failover and latency based selection,
+     * see {@link VatCheckEndpoints}.
+     *
+     * @param endpoints the urls of the webservice
+     * @return a new checker
+     */
+    public EUVatChecker withEndpoints(VatCheckEndpoints endpoints) {
+        return toBuilder().endpoints(endpoints).build();
+    }
+
+    /**
+     * Return a new checker pacing its calls to the webservice with the given limiter.
+     *
+     * @param limiter the limiter, see {@link VatCheckLimiter}
+     * @return a new checker
+     */
+    public EUVatChecker withLimiter(VatCheckLimiter limiter) {
+        return toBuilder().limiter(limiter).build();
+    }
+
+    /**
+     * Return a new checker failing fast, with a {@link EUVatCheckResponse.Status#RETRYABLE_FAULT} response, the
+     * checks of the country codes whose member state is unavailable, see {@link VatCheckCircuitBreaker}.
+     *
+     * @param circuitBreaker the circuit breaker
+     * @return a new checker
+     */
+    public EUVatChecker withCircuitBreaker(VatCheckCircuitBreaker circuitBreaker) {
+        return toBuilder().circuitBreaker(circuitBreaker).build();
+    }
+
+    /**
+     * Return a new checker retrying the checks that failed for a transient reason, see {@link RetryPolicy}.
+     * The retries happen below the cache and the request coalescing and above the limiter: each attempt takes its
+     * own permits.
+     *
+     * @param retryPolicy the retry policy
+     * @return a new checker
+     */
+    public EUVatChecker withRetryPolicy(RetryPolicy retryPolicy) {
+        return toBuilder().retryPolicy(retryPolicy).build();
+    }
+
+    /**
+     * Return a new checker verifying locally the country code and the syntax and check digits of the vat number,
+     * see {@link VatNumberFormat}. The checks that cannot succeed are answered without calling the webservice: an
+     * unknown country code with a {@link EUVatCheckResponse.Status#PERMANENT_FAULT} response (INVALID_INPUT), a
+     * malformed vat number with an {@link EUVatCheckResponse.Status#INVALID} response.
+     *
+     * @return a new checker
+     */
+    public EUVatChecker withFormatValidation() {
+        return toBuilder().formatValidation(true).build();
+    }
+
+    /**
+     * Return a new checker where concurrent checks of the same country code and vat number share a single call
+     * to the webservice: the callers arriving while a call is in flight receive its outcome.
+     *
+     * @return a new checker
+     */
+    public EUVatChecker withRequestCoalescing() {
+        return toBuilder().requestCoalescing(true).build();
+    }
+
+    /**
+     * Return a new checker reporting the duration and the outcome of its calls to the webservice, see
+     * {@link VatCheckMetrics} and the built-in {@link VatCheckStats}.
+     *
+     * @param metrics the receiver of the measurements
+     * @return a new checker
+     */
+    public EUVatChecker withMetrics(VatCheckMetrics metrics) {
+        return toBuilder().metrics(metrics).build();
+    }
+
+    /**
+     * See {@link #doCheck(String, String)}. The country code and the vat number are normalized first, see {@link VatId}.
      *
      * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR. See http://ec.europa.eu/taxation_customs/vies/faq.html#item_11
      * @param vatNr vat number
      * @return the response, see {@link EUVatCheckResponse}
      */
     public EUVatCheckResponse check(String countryCode, String vatNr) {
-        return doCheck(countryCode, vatNr, this.documentFetcher);
+        Objects.requireNonNull(countryCode, "countryCode cannot be null");
+        Objects.requireNonNull(vatNr, "vatNumber cannot be null");
+        return check(new VatId(countryCode, vatNr));
     }
 
-    static {
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        try {
-            VALID_ELEMENT_MATCHER = xPath.compile("//*[local-name()='checkVatResponse']/*[local-name()='valid']");
-            NAME_ELEMENT_MATCHER = xPath.compile("//*[local-name()='checkVatResponse']/*[local-name()='name']");
-            ADDRESS_ELEMENT_MATCHER = xPath.compile("//*[local-name()='checkVatResponse']/*[local-name()='address']");
-
-            String soapCallTemplate = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
-                    "<soapenv:Header/>" +
-                    "<soapenv:Body>" +
-                    "<checkVat xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
-                    "<countryCode></countryCode><vatNumber></vatNumber>" +
-                    "</checkVat>" +
-                    "</soapenv:Body>" +
-                    "</soapenv:Envelope>";
-
-            BASE_DOCUMENT_TEMPLATE = toDocument(new StringReader(soapCallTemplate));
-
-        } catch (XPathExpressionException e) {
-            throw new IllegalStateException(e);
+    /**
+     * See {@link #check(String, String)}.
+     *
+     * @param vatId the vat identification number
+     * @return the response, see {@link EUVatCheckResponse}
+     */
+    public EUVatCheckResponse check(VatId vatId) {
+        Objects.requireNonNull(vatId, "vatId cannot be null");
+        String countryCode = vatId.getCountryCode();
+        String vatNr = vatId.getVatNumber();
+        if (formatValidation) {
+            EUVatCheckResponse rejected = VatNumberFormat.reject(countryCode, vatNr);
+            if (rejected != null) {
+                return rejected;
+            }
         }
+        if (cache == null && singleFlight == null && store == null) {
+            return attempt(countryCode, vatNr);
+        }
+        Supplier<EUVatCheckResponse> call = () -> attempt(countryCode, vatNr);
+        if (singleFlight != null) {
+            Supplier<EUVatCheckResponse> uncoalesced = call;
+            call = () -> singleFlight.execute(vatId, uncoalesced);
+        }
+        if (store == null) {
+            return cache != null ? cache.get(vatId, call, call, executor) : call.get();
+        }
+        Supplier<EUVatCheckResponse> unstored = call;
+        Supplier<EUVatCheckResponse> stored = () -> store.get(vatId, unstored);
+        if (cache == null) {
+            return stored.get();
+        }
+        // a stale response is refreshed from the webservice, the store would answer with the same response
+        return cache.get(vatId, stored, () -> {
+            EUVatCheckResponse response = unstored.get();
+            store.put(vatId, response);
+            return response;
+        }, executor);
     }
 
-    private static String prepareTemplate(String countryCode, String vatNumber) {
-        Document doc = copyDocument(BASE_DOCUMENT_TEMPLATE);
-        doc.getElementsByTagName("countryCode").item(0).setTextContent(countryCode);
-        doc.getElementsByTagName("vatNumber").item(0).setTextContent(vatNumber);
-        return fromDocument(doc);
+    /**
+     * @return the number of callers waiting for the in-flight call of the given vat number, see {@link #withRequestCoalescing()}
+     */
+    int coalescedWaiterCount(VatId vatId) {
+        return singleFlight != null ? singleFlight.waiterCount(vatId) : 0;
     }
 
-    private static Document copyDocument(Document document) {
-        try {
-            Transformer tx = getTransformer();
-            DOMSource source = new DOMSource(document);
-            DOMResult result = new DOMResult();
-            tx.transform(source, result);
-            return (Document) result.getNode();
-        } catch (TransformerException e) {
-            throw new IllegalStateException(e);
+    /**
+     * Asynchronous variant of {@link #check(String, String)}. The calling thread is only used for preparing the request.
+     *
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR. See http://ec.europa.eu/taxation_customs/vies/faq.html#item_11
+     * @param vatNr vat number
+     * @return a future completed with the response, see {@link EUVatCheckResponse}, or exceptionally if the call failed
+     */
+    public CompletableFuture<EUVatCheckResponse> checkAsync(String countryCode, String vatNr) {
+        if (countryCode == null || vatNr == null) {
+            return attemptAsync(countryCode, vatNr);
         }
+        return checkAsync(new VatId(countryCode, vatNr));
     }
 
-    private static Transformer getTransformer() throws TransformerConfigurationException {
-        TransformerFactory tf = TransformerFactory.newInstance();
-        try {
-            tf.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
-        } catch (IllegalArgumentException e) {
-            try {
-                tf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-            } catch (IllegalArgumentException e1) {}
+    /**
+     * See {@link #checkAsync(String, String)}.
+     *
+     * @param vatId the vat identification number
+     * @return a future completed with the response, see {@link EUVatCheckResponse}, or exceptionally if the call failed
+     */
+    public CompletableFuture<EUVatCheckResponse> checkAsync(VatId vatId) {
+        Objects.requireNonNull(vatId, "vatId cannot be null");
+        String countryCode = vatId.getCountryCode();
+        String vatNr = vatId.getVatNumber();
+        if (formatValidation) {
+            EUVatCheckResponse rejected = VatNumberFormat.reject(countryCode, vatNr);
+            if (rejected != null) {
+                return CompletableFuture.completedFuture(rejected);
+            }
         }
-        try {
-            tf.setAttribute(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
-        } catch (IllegalArgumentException e) {}
-        return tf.newTransformer();
+        if (cache == null && singleFlight == null && store == null) {
+            return attemptAsync(countryCode, vatNr);
+        }
+        if (cache != null) {
+            VatCheckCache.CachedResponse entry = cache.getIfPresent(vatId);
+            if (entry != null) {
+                if (cache.startRefresh(entry)) {
+                    try {
+                        loadAsync(vatId, true).whenComplete((response, error) -> cache.refreshed(vatId, entry, response));
+                    } catch (RuntimeException e) {
+                        // e.g. rejected by the executor, the next access will try again
+                        cache.refreshed(vatId, entry, null);
+                    }
+                }
+                CompletableFuture<EUVatCheckResponse> cached = new CompletableFuture<>();
+                try {
+                    cached.complete(entry.get());
+                } catch (RuntimeException e) {
+                    cached.completeExceptionally(e);
+                }
+                return cached;
+            }
+        }
+        CompletableFuture<EUVatCheckResponse> result = loadAsync(vatId, false);
+        if (cache == null) {
+            return result;
+        }
+        return result.whenComplete((response, error) -> {
+            if (response != null) {
+                cache.put(vatId, response);
+            } else if (error instanceof CompletionException && error.getCause() instanceof RuntimeException) {
+                cache.putError(vatId, (RuntimeException) error.getCause());
+            } else if (error instanceof RuntimeException) {
+                cache.putError(vatId, (RuntimeException) error);
+            }
+        });
     }
 
-    private static Document toDocument(Reader reader) {
-        try {
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            dbFactory.setNamespaceAware(true);
-            //
-            setFeature(dbFactory, "http://apache.org/xml/features/disallow-doctype-decl", true);
-            setFeature(dbFactory,"http://xml.org/sax/features/external-general-entities", false);
-            setFeature(dbFactory,"http://xml.org/sax/features/external-parameter-entities", false);
-            setFeature(dbFactory,"http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-            dbFactory.setXIncludeAware(false);
-            dbFactory.setExpandEntityReferences(false);
-            //
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            return dBuilder.parse(new InputSource(reader));
-        } catch (ParserConfigurationException | IOException | SAXException e) {
-            throw new IllegalStateException(e);
+    /**
+     * The part of {@link #checkAsync(VatId)} below the cache.
+     *
+     * @param refresh true when refreshing a stale cache entry: the store is not read, only updated
+     */
+    private CompletableFuture<EUVatCheckResponse> loadAsync(VatId vatId, boolean refresh) {
+        EUVatCheckResponse stored = store != null && !refresh ? store.getIfPresent(vatId) : null;
+        if (stored != null) {
+            return CompletableFuture.completedFuture(stored);
         }
+        String countryCode = vatId.getCountryCode();
+        String vatNr = vatId.getVatNumber();
+        CompletableFuture<EUVatCheckResponse> result = singleFlight != null ?
+                singleFlight.executeAsync(vatId, () -> attemptAsync(countryCode, vatNr)) :
+                attemptAsync(countryCode, vatNr);
+        if (store == null) {
+            return result;
+        }
+        return result.whenComplete((response, error) -> {
+            if (response != null) {
+                store.put(vatId, response);
+            }
+        });
     }
 
-    private static void setFeature(DocumentBuilderFactory dbFactory, String feature, boolean value) {
-        try {
-            dbFactory.setFeature(feature, value);
-        } catch (ParserConfigurationException e) {
+    /**
+     * Do a call to the checkVatApprox operation of the webservice, which also returns a consultation number
+     * (see {@link EUVatCheckApproxResponse#getRequestIdentifier()}) that can be kept as a proof of the check.
+     *
+     * The retry policy, the circuit breaker and the limiter of this checker are used, the response is never cached
+     * nor shared with a concurrent call. The response is always read with the {@link ResponseParser#STAX} strategy.
+     *
+     * @param request the request, see {@link VatCheckApproxRequest}
+     * @return the response, see {@link EUVatCheckApproxResponse}
+     */
+    public EUVatCheckApproxResponse checkApprox(VatCheckApproxRequest request) {
+        Objects.requireNonNull(request, "request cannot be null");
+        String countryCode = request.getVatId().getCountryCode();
+        Supplier<EUVatCheckApproxResponse> call = () -> call(countryCode, fetcher -> doCheckApprox(request, fetcher), VatCheckCircuitBreaker.UNAVAILABLE_APPROX);
+        return retryPolicy != null ? retryPolicy.execute(call) : call.get();
+    }
+
+    /**
+     * Check all the given vat numbers, with at most <code>parallelism</code> checks in flight. The results are passed
+     * to the consumer, on the calling thread, as soon as they are available: a failing check is reported as a
+     * failed {@link VatCheckResult} and does not abort the batch. The work is spread across the country codes, so
+     * a slow member state does not stall the others.
+     *
+     * This method returns when all the results have been consumed. If a check throws an {@link Error}, the batch is
+     * cancelled and the error is rethrown.
+     *
+     * @param vatIds      the vat numbers to check
+     * @param parallelism the maximum number of concurrent checks, also bounded by the threads of the executor
+     * @param consumer    the consumer of the results
+     */
+    public void checkAll(Collection<VatId> vatIds, int parallelism, Consumer<VatCheckResult> consumer) {
+        Objects.requireNonNull(vatIds, "vatIds cannot be null");
+        Objects.requireNonNull(consumer, "consumer cannot be null");
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        new BatchCheck(vatIds, this::check).run(parallelism, executor, consumer);
+    }
+
+    private EUVatCheckResponse attempt(String countryCode, String vatNr) {
+        return retryPolicy != null ? retryPolicy.execute(() -> call(countryCode, vatNr)) : call(countryCode, vatNr);
+    }
+
+    private CompletableFuture<EUVatCheckResponse> attemptAsync(String countryCode, String vatNr) {
+        return retryPolicy != null ? retryPolicy.executeAsync(() -> doCheckAsync(countryCode, vatNr)) : doCheckAsync(countryCode, vatNr);
+    }
+
+    private EUVatCheckResponse call(String countryCode, String vatNr) {
+        if (metrics == null) {
+            return call(countryCode, fetcher -> doCheck(countryCode, vatNr, fetcher, responseParser), VatCheckCircuitBreaker.UNAVAILABLE);
         }
+        return call(countryCode, fetcher -> doCheck(countryCode, vatNr, fetcher, responseParser, metrics), VatCheckCircuitBreaker.UNAVAILABLE);
+    }
+
+    /**
+     * Do a single call through the circuit breaker and the limiter, if any.
+     *
+     * @param unavailable the response given when the circuit breaker is open
+     */
+    private <T extends EUVatCheckResponse> T call(String countryCode, Function<BiFunction<String, String, InputStream>, T> check, T unavailable) {
+        BiFunction<String, String, InputStream> timed = metrics != null ? timed(countryCode, documentFetcher, metrics) : documentFetcher;
+        BiFunction<String, String, InputStream> fetcher = limiter != null ?
+                (url, body) -> limiter.call(countryCode, () -> timed.apply(url, body)) : timed;
+        Supplier<T> call = metrics != null ? () -> measure(countryCode, () -> check.apply(fetcher), metrics) : () -> check.apply(fetcher);
+        return circuitBreaker != null ? circuitBreaker.call(countryCode, call, unavailable) : call.get();
     }
 
-    private static String fromDocument(Document doc) {
+    private static <T extends EUVatCheckResponse> T measure(String countryCode, Supplier<T> call, VatCheckMetrics metrics) {
+        long start = System.nanoTime();
+        T response;
         try {
-            DOMSource domSource = new DOMSource(doc);
-            Transformer transformer = getTransformer();
-            StringWriter sw = new StringWriter();
-            StreamResult sr = new StreamResult(sw);
-            transformer.transform(domSource, sr);
-            return sw.toString();
-        } catch (TransformerException e) {
-            throw new IllegalStateException(e);
+            response = call.get();
+        } catch (RuntimeException e) {
+            metrics.recordCall(countryCode, null, e, System.nanoTime() - start);
+            throw e;
         }
+        metrics.recordCall(countryCode, response, null, System.nanoTime() - start);
+        return response;
     }
 
+    private static BiFunction<String, String, InputStream> timed(String countryCode, BiFunction<String, String, InputStream> documentFetcher, VatCheckMetrics metrics) {
+        return (url, body) -> {
+            long start = System.nanoTime();
+            try {
+                return documentFetcher.apply(url, body);
+            } finally {
+                metrics.recordPhase(countryCode, VatCheckMetrics.Phase.FETCH, System.nanoTime() - start);
+            }
+        };
+    }
 
-    private static InputStream doCall(String endpointUrl, String document) {
+    private CompletableFuture<EUVatCheckResponse> doCheckAsync(String countryCode, String vatNr) {
+        if (circuitBreaker == null || countryCode == null) {
+            return fetchAsync(countryCode, vatNr);
+        }
+        if (!circuitBreaker.tryAcquire(countryCode)) {
+            return CompletableFuture.completedFuture(VatCheckCircuitBreaker.UNAVAILABLE);
+        }
+        CompletableFuture<EUVatCheckResponse> response;
         try {
-            URL url = new URL(endpointUrl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "text/xml;charset=UTF-8");
-            conn.setDoOutput(true);
-            conn.getOutputStream().write(document.getBytes(StandardCharsets.UTF_8));
-            conn.getOutputStream().flush();
-            return conn.getInputStream();
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+            response = fetchAsync(countryCode, vatNr);
+        } catch (Throwable e) {
+            circuitBreaker.record(countryCode, true);
+            throw e;
+        }
+        return response.whenComplete((r, error) ->
+                circuitBreaker.record(countryCode, VatCheckCircuitBreaker.isFailure(r, error)));
+    }
+
+    private CompletableFuture<EUVatCheckResponse> fetchAsync(String countryCode, String vatNr) {
+        long start = System.nanoTime();
+        CompletableFuture<InputStream> response;
+        try {
+            Objects.requireNonNull(countryCode, "countryCode cannot be null");
+            Objects.requireNonNull(vatNr, "vatNumber cannot be null");
+            String body = prepareTemplate(countryCode, vatNr);
+            if (metrics != null) {
+                metrics.recordPhase(countryCode, VatCheckMetrics.Phase.PREPARE_TEMPLATE, System.nanoTime() - start);
+            }
+            if (asyncDocumentFetcher == null) {
+                BiFunction<String, String, InputStream> fetcher = metrics != null ?
+                        timed(countryCode, documentFetcher, metrics) : documentFetcher;
+                response = CompletableFuture.supplyAsync(() -> limiter != null ?
+                        limiter.call(countryCode, () -> fetcher.apply(DEFAULT_ENDPOINT, body)) :
+                        fetcher.apply(DEFAULT_ENDPOINT, body), executor);
+            } else {
+                BiFunction<String, String, CompletableFuture<InputStream>> fetcher = metrics != null ?
+                        timedAsync(countryCode, asyncDocumentFetcher, metrics) : asyncDocumentFetcher;
+                response = limiter == null ? fetcher.apply(DEFAULT_ENDPOINT, body) : limitedAsync(countryCode, body, fetcher);
+            }
+        } catch (RuntimeException e) {
+            if (metrics != null && countryCode != null && vatNr != null) {
+                metrics.recordCall(countryCode, null, e, System.nanoTime() - start);
+            }
+            CompletableFuture<EUVatCheckResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
         }
+        if (metrics == null) {
+            return response.thenApplyAsync(is -> readResponse(is, responseParser), executor);
+        }
+        return response.thenApplyAsync(is -> readResponse(countryCode, is, responseParser, metrics), executor)
+                .whenComplete((result, error) -> metrics.recordCall(countryCode, result,
+                        error instanceof CompletionException && error.getCause() != null ? error.getCause() : error,
+                        System.nanoTime() - start));
+    }
+
+    private CompletableFuture<InputStream> limitedAsync(String countryCode, String body, BiFunction<String, String, CompletableFuture<InputStream>> fetcher) {
+        // waiting for the permits is done on the executor, not on the calling thread
+        return CompletableFuture.runAsync(() -> limiter.acquire(countryCode), executor).thenCompose(ignored -> {
+            CompletableFuture<InputStream> fetched;
+            try {
+                fetched = fetcher.apply(DEFAULT_ENDPOINT, body);
+            } catch (RuntimeException e) {
+                limiter.release(countryCode);
+                throw e;
+            }
+            return fetched.whenComplete((is, error) -> limiter.release(countryCode));
+        });
+    }
+
+    private static BiFunction<String, String, CompletableFuture<InputStream>> timedAsync(String countryCode, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher, VatCheckMetrics metrics) {
+        return (url, body) -> {
+            long start = System.nanoTime();
+            CompletableFuture<InputStream> fetched;
+            try {
+                fetched = asyncDocumentFetcher.apply(url, body);
+            } catch (RuntimeException e) {
+                metrics.recordPhase(countryCode, VatCheckMetrics.Phase.FETCH, System.nanoTime() - start);
+                throw e;
+            }
+            return fetched.whenComplete((is, error) -> metrics.recordPhase(countryCode, VatCheckMetrics.Phase.FETCH, System.nanoTime() - start));
+        };
+    }
+
+    static String prepareTemplate(String countryCode, String vatNumber) {
+        return SoapRequestWriter.checkVat(countryCode, vatNumber);
     }
 
     /**
@@ -201,7 +597,7 @@ public class EUVatChecker {
      * @return the response, see {@link EUVatCheckResponse}
      */
     public static EUVatCheckResponse doCheck(String countryCode, String vatNumber) {
-        return doCheck(countryCode, vatNumber, EUVatChecker::doCall);
+        return doCheck(countryCode, vatNumber, DEFAULT_DOCUMENT_FETCHER);
     }
 
     /**
@@ -214,27 +610,364 @@ public class EUVatChecker {
      * @return the response, see {@link EUVatCheckResponse}
      */
     public static EUVatCheckResponse doCheck(String countryCode, String vatNumber, BiFunction<String, String, InputStream> documentFetcher) {
+        return doCheck(countryCode, vatNumber, documentFetcher, ResponseParser.STAX);
+    }
+
+    /**
+     * See {@link #doCheck(String, String, BiFunction)}. This method accept a responseParser if you need to select
+     * how the response is read.
+     *
+     * @param countryCode     2 character ISO country code. Note: Greece is EL, not GR. See http://ec.europa.eu/taxation_customs/vies/faq.html#item_11
+     * @param vatNumber       the vat number to check
+     * @param documentFetcher the function that, given the url of the web service and the body to post, return the resulting body as InputStream
+     * @param responseParser  the strategy used for reading the response, see {@link ResponseParser}
+     * @return the response, see {@link EUVatCheckResponse}
+     */
+    public static EUVatCheckResponse doCheck(String countryCode, String vatNumber, BiFunction<String, String, InputStream> documentFetcher, ResponseParser responseParser) {
         Objects.requireNonNull(countryCode, "countryCode cannot be null");
         Objects.requireNonNull(vatNumber, "vatNumber cannot be null");
+        String body = prepareTemplate(countryCode, vatNumber);
+        return readResponse(documentFetcher.apply(DEFAULT_ENDPOINT, body), responseParser);
+    }
+
+    /**
+     * See {@link #doCheck(String, String, BiFunction, ResponseParser)}, reporting the duration of the phases.
+     */
+    private static EUVatCheckResponse doCheck(String countryCode, String vatNumber, BiFunction<String, String, InputStream> documentFetcher, ResponseParser responseParser, VatCheckMetrics metrics) {
+        long start = System.nanoTime();
+        String body = prepareTemplate(countryCode, vatNumber);
+        metrics.recordPhase(countryCode, VatCheckMetrics.Phase.PREPARE_TEMPLATE, System.nanoTime() - start);
+        return readResponse(countryCode, documentFetcher.apply(DEFAULT_ENDPOINT, body), responseParser, metrics);
+    }
+
+    /**
+     * Do a call to the checkVatApprox operation of the EU vat checker web service.
+     *
+     * @param request         the request, see {@link VatCheckApproxRequest}
+     * @param documentFetcher the function that, given the url of the web service and the body to post, return the resulting body as InputStream
+     * @return the response, see {@link EUVatCheckApproxResponse}
+     */
+    public static EUVatCheckApproxResponse doCheckApprox(VatCheckApproxRequest request, BiFunction<String, String, InputStream> documentFetcher) {
+        Objects.requireNonNull(request, "request cannot be null");
+        String body = SoapRequestWriter.checkVatApprox(request);
+        try (InputStream is = documentFetcher.apply(DEFAULT_ENDPOINT, body)) {
+            return StaxResponseParser.parseApprox(is);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static EUVatCheckResponse readResponse(InputStream response, ResponseParser responseParser) {
+        try (InputStream is = response) {
+            return responseParser.parse(is);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static EUVatCheckResponse readResponse(String countryCode, InputStream response, ResponseParser responseParser, VatCheckMetrics metrics) {
+        long start = System.nanoTime();
         try {
-            String body = prepareTemplate(countryCode, vatNumber);
-            try (InputStream is = documentFetcher.apply(ENDPOINT, body); Reader isr = new InputStreamReader(is, StandardCharsets.UTF_8)) {
-                Document result = toDocument(isr);
-                Node validNode = (Node) VALID_ELEMENT_MATCHER.evaluate(result, XPathConstants.NODE);
-                if (validNode != null) {
-                    Node nameNode = (Node) NAME_ELEMENT_MATCHER.evaluate(result, XPathConstants.NODE);
-                    Node addressNode = (Node) ADDRESS_ELEMENT_MATCHER.evaluate(result, XPathConstants.NODE);
-                    return new EUVatCheckResponse("true".equals(textNode(validNode)), textNode(nameNode), textNode(addressNode));
-                } else {
-                    return new EUVatCheckResponse(false, null, null);
+            return readResponse(response, responseParser);
+        } finally {
+            metrics.recordPhase(countryCode, VatCheckMetrics.Phase.PARSE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The configuration of a checker, see {@link EUVatChecker#builder()}. All the settings are optional:
+     *
+     * <pre>
+     * EUVatChecker checker = EUVatChecker.builder()
+     *         .timeouts(Duration.ofSeconds(5), Duration.ofSeconds(20))
+     *         .cache(new VatCheckCache(10_000, Duration.ofHours(24), Duration.ofHours(1), Duration.ofMinutes(1)))
+     *         .retryPolicy(new RetryPolicy(4, Duration.ofMillis(200), Duration.ofSeconds(2), Duration.ofSeconds(10)))
+     *         .build();
+     * </pre>
+     *
+     * Builders are immutable: each method returns a new builder, so a builder can be shared and used as a template.
+     * The combination of the settings is validated by {@link #build()}.
+     */
+    public static final class Builder {
+        private BiFunction<String, String, InputStream> documentFetcher;
+        private Duration connectTimeout;
+        private Duration readTimeout;
+        private int maxConnections;
+        private ResponseParser responseParser = ResponseParser.STAX;
+        private BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher;
+        private Executor executor;
+        private VatCheckEndpoints endpoints;
+        private VatCheckCache cache;
+        private VatCheckStore store;
+        private boolean requestCoalescing;
+        private VatCheckLimiter limiter;
+        private RetryPolicy retryPolicy;
+        private VatCheckCircuitBreaker circuitBreaker;
+        private boolean formatValidation;
+        private VatCheckMetrics metrics;
+        // created once, so the checkers derived with the withers share the connection pool
+        private HttpDocumentFetcher httpDocumentFetcher;
+
+        private Builder() {
+        }
+
+        private Builder copy() {
+            Builder copy = new Builder();
+            copy.documentFetcher = documentFetcher;
+            copy.connectTimeout = connectTimeout;
+            copy.readTimeout = readTimeout;
+            copy.maxConnections = maxConnections;
+            copy.responseParser = responseParser;
+            copy.asyncDocumentFetcher = asyncDocumentFetcher;
+            copy.executor = executor;
+            copy.endpoints = endpoints;
+            copy.cache = cache;
+            copy.store = store;
+            copy.requestCoalescing = requestCoalescing;
+            copy.limiter = limiter;
+            copy.retryPolicy = retryPolicy;
+            copy.circuitBreaker = circuitBreaker;
+            copy.formatValidation = formatValidation;
+            copy.metrics = metrics;
+            copy.httpDocumentFetcher = httpDocumentFetcher;
+            return copy;
+        }
+
+        /**
+         * @param documentFetcher the function that, given the url of the web service and the body to post, return
+         *                        the resulting body as InputStream. Cannot be combined with {@link #timeouts(Duration, Duration)}
+         *                        and {@link #maxConnections(int)}, which configure the default {@link HttpDocumentFetcher}.
+         * @return a new builder
+         */
+        public Builder documentFetcher(BiFunction<String, String, InputStream> documentFetcher) {
+            Builder copy = copy();
+            copy.documentFetcher = Objects.requireNonNull(documentFetcher, "documentFetcher cannot be null");
+            return copy;
+        }
+
+        /**
+         * @param connectTimeout timeout for establishing the connection, see {@link HttpDocumentFetcher}
+         * @param readTimeout    timeout while waiting for the response
+         * @return a new builder
+         */
+        public Builder timeouts(Duration connectTimeout, Duration readTimeout) {
+            Builder copy = copy();
+            copy.connectTimeout = timeout(connectTimeout, "connectTimeout");
+            copy.readTimeout = timeout(readTimeout, "readTimeout");
+            copy.httpDocumentFetcher = null;
+            return copy;
+        }
+
+        private static Duration timeout(Duration timeout, String name) {
+            Objects.requireNonNull(timeout, name + " cannot be null");
+            if (timeout.isNegative() || timeout.isZero() || timeout.toMillis() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(name + " must be between 1ms and " + Integer.MAX_VALUE + "ms");
+            }
+            return timeout;
+        }
+
+        /**
+         * @param maxConnections maximum number of concurrently open connections, see {@link HttpDocumentFetcher}.
+         *                       Not limited by default.
+         * @return a new builder
+         */
+        public Builder maxConnections(int maxConnections) {
+            if (maxConnections <= 0) {
+                throw new IllegalArgumentException("maxConnections must be positive");
+            }
+            Builder copy = copy();
+            copy.maxConnections = maxConnections;
+            copy.httpDocumentFetcher = null;
+            return copy;
+        }
+
+        /**
+         * @param responseParser the strategy used for reading the response, see {@link ResponseParser}
+         * @return a new builder
+         */
+        public Builder responseParser(ResponseParser responseParser) {
+            Builder copy = copy();
+            copy.responseParser = Objects.requireNonNull(responseParser, "responseParser cannot be null");
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withAsyncDocumentFetcher(BiFunction)}.
+         *
+         * @return a new builder
+         */
+        public Builder asyncDocumentFetcher(BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher) {
+            Builder copy = copy();
+            copy.asyncDocumentFetcher = Objects.requireNonNull(asyncDocumentFetcher, "asyncDocumentFetcher cannot be null");
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withExecutor(Executor)}.
+         *
+         * @return a new builder
+         */
+        public Builder executor(Executor executor) {
+            Builder copy = copy();
+            copy.executor = Objects.requireNonNull(executor, "executor cannot be null");
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withEndpoint(String)}.
+         *
+         * @return a new builder
+         */
+        public Builder endpoint(String url) {
+            return endpoints(new VatCheckEndpoints(Objects.requireNonNull(url, "url cannot be null")));
+        }
+
+        /**
+         * See {@link EUVatChecker#withEndpoints(VatCheckEndpoints)}.
+         *
+         * @return a new builder
+         */
+        public Builder endpoints(VatCheckEndpoints endpoints) {
+            Builder copy = copy();
+            copy.endpoints = Objects.requireNonNull(endpoints, "endpoints cannot be null");
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withCache(VatCheckCache)}.
+         *
+         * @return a new builder
+         */
+        public Builder cache(VatCheckCache cache) {
+            Builder copy = copy();
+            copy.cache = Objects.requireNonNull(cache, "cache cannot be null");
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withStore(VatCheckStore)}.
+         *
+         * @return a new builder
+         */
+        public Builder store(VatCheckStore store) {
+            Builder copy = copy();
+            copy.store = Objects.requireNonNull(store, "store cannot be null");
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withRequestCoalescing()}. Each checker built has its own set of calls in flight.
+         *
+         * @return a new builder
+         */
+        public Builder requestCoalescing(boolean requestCoalescing) {
+            Builder copy = copy();
+            copy.requestCoalescing = requestCoalescing;
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withLimiter(VatCheckLimiter)}.
+         *
+         * @return a new builder
+         */
+        public Builder limiter(VatCheckLimiter limiter) {
+            Builder copy = copy();
+            copy.limiter = Objects.requireNonNull(limiter, "limiter cannot be null");
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withRetryPolicy(RetryPolicy)}.
+         *
+         * @return a new builder
+         */
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            Builder copy = copy();
+            copy.retryPolicy = Objects.requireNonNull(retryPolicy, "retryPolicy cannot be null");
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withCircuitBreaker(VatCheckCircuitBreaker)}.
+         *
+         * @return a new builder
+         */
+        public Builder circuitBreaker(VatCheckCircuitBreaker circuitBreaker) {
+            Builder copy = copy();
+            copy.circuitBreaker = Objects.requireNonNull(circuitBreaker, "circuitBreaker cannot be null");
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withFormatValidation()}.
+         *
+         * @return a new builder
+         */
+        public Builder formatValidation(boolean formatValidation) {
+            Builder copy = copy();
+            copy.formatValidation = formatValidation;
+            return copy;
+        }
+
+        /**
+         * See {@link EUVatChecker#withMetrics(VatCheckMetrics)}.
+         *
+         * @return a new builder
+         */
+        public Builder metrics(VatCheckMetrics metrics) {
+            Builder copy = copy();
+            copy.metrics = Objects.requireNonNull(metrics, "metrics cannot be null");
+            return copy;
+        }
+
+        /**
+         * @return a new checker, thread-safe and meant to be shared
+         * @throws IllegalStateException if the settings cannot be combined
+         */
+        public EUVatChecker build() {
+            boolean httpSettings = connectTimeout != null || maxConnections > 0;
+            if (documentFetcher != null && httpSettings) {
+                throw new IllegalStateException("timeouts and maxConnections configure the default documentFetcher, they cannot be combined with a custom one");
+            }
+            return new EUVatChecker(this);
+        }
+
+        private BiFunction<String, String, InputStream> documentFetcher() {
+            if (documentFetcher != null) {
+                return documentFetcher;
+            }
+            if (connectTimeout == null && maxConnections == 0) {
+                return DEFAULT_DOCUMENT_FETCHER;
+            }
+            synchronized (this) {
+                if (httpDocumentFetcher == null) {
+                    httpDocumentFetcher = new HttpDocumentFetcher(
+                            connectTimeout != null ? (int) connectTimeout.toMillis() : HttpDocumentFetcher.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                            readTimeout != null ? (int) readTimeout.toMillis() : HttpDocumentFetcher.DEFAULT_READ_TIMEOUT_MILLIS,
+                            maxConnections > 0 ? maxConnections : HttpDocumentFetcher.UNLIMITED_CONNECTIONS);
                 }
+                return httpDocumentFetcher;
             }
-        } catch (IOException | XPathExpressionException e) {
-            throw new IllegalStateException(e);
         }
     }
 
-    private static final String textNode(Node node) {
-        return node != null ? node.getTextContent() : null;
+    // holder of the executor used when none is configured, its threads are only created by checkAsync, checkAll
+    // and the refreshes of the stale cache entries. A blocking fetch, or a wait for the limiter, holds a thread:
+    // the pool is bounded so a large fan-out queues its checks instead of parking a thread for each of them
+    private static final class DefaultExecutor {
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        private static final Executor INSTANCE = newExecutor();
+
+        private static Executor newExecutor() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(HttpDocumentFetcher.DEFAULT_MAX_CONNECTIONS,
+                    HttpDocumentFetcher.DEFAULT_MAX_CONNECTIONS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "vatchecker-" + COUNTER.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
     }
 }
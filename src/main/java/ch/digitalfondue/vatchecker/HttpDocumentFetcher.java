@@ -0,0 +1,189 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * The default documentFetcher, based on {@link HttpURLConnection}.
+ *
+ * A SOAP fault, sent with a 500 status, is returned as the body so it can be read as a fault response, see
+ * {@link EUVatCheckResponse#getStatus()}; any other non 2xx status fail with an {@link IllegalStateException}.
+ * The transient failures (I/O errors, 502, 503 and 504 statuses, no free connection) have an {@link IOException}
+ * as cause, so they are retried by a {@link RetryPolicy}.
+ *
+ * The response is always fully read and the stream closed, so the underlying connection is handed back to the JDK
+ * keep-alive cache and reused by the next call to the same endpoint, avoiding a TLS handshake per check.
+ * The number of concurrently open connections is bounded by <code>maxConnections</code>: note that the JDK keeps
+ * at most <code>http.maxConnections</code> (system property, default 5) idle connections per destination. The
+ * checkers that are not given a documentFetcher, and the static {@link EUVatChecker#doCheck(String, String)}, use
+ * a fetcher without this bound ({@link #UNLIMITED_CONNECTIONS}), as the previous versions did.
+ *
+ * Instances are thread-safe and are meant to be shared.
+ */
+public class HttpDocumentFetcher implements BiFunction<String, String, InputStream> {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10_000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30_000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int UNLIMITED_CONNECTIONS = Integer.MAX_VALUE;
+
+    private static final int MAX_ERROR_BODY_IN_MESSAGE = 512;
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int maxConnections;
+    private final Semaphore connections;
+
+    /**
+     * Create a fetcher with the default timeouts and pool size.
+     */
+    public HttpDocumentFetcher() {
+        this(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param connectTimeoutMillis timeout for establishing the connection, also used as the maximum time waiting for a free connection
+     * @param readTimeoutMillis    timeout while waiting for the response
+     * @param maxConnections       maximum number of concurrently open connections, {@link #UNLIMITED_CONNECTIONS} for no limit
+     */
+    public HttpDocumentFetcher(int connectTimeoutMillis, int readTimeoutMillis, int maxConnections) {
+        if (connectTimeoutMillis <= 0 || readTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeouts must be positive");
+        }
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxConnections = maxConnections;
+        this.connections = maxConnections == UNLIMITED_CONNECTIONS ? null : new Semaphore(maxConnections, true);
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Override
+    public InputStream apply(String endpointUrl, String document) {
+        byte[] body = document.getBytes(StandardCharsets.UTF_8);
+        if (connections == null) {
+            return new ByteArrayInputStream(post(endpointUrl, body));
+        }
+        acquireConnection();
+        try {
+            return new ByteArrayInputStream(post(endpointUrl, body));
+        } finally {
+            connections.release();
+        }
+    }
+
+    private void acquireConnection() {
+        try {
+            if (!connections.tryAcquire(connectTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                String message = "No free connection after " + connectTimeoutMillis + "ms, maxConnections is " + maxConnections;
+                throw new IllegalStateException(message, new IOException(message));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] post(String endpointUrl, byte[] body) {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(endpointUrl).openConnection();
+            conn.setConnectTimeout(connectTimeoutMillis);
+            conn.setReadTimeout(readTimeoutMillis);
+            conn.setUseCaches(false);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "text/xml;charset=UTF-8");
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(body.length);
+            try (OutputStream os = conn.getOutputStream()) {
+                os.write(body);
+            }
+            int status = conn.getResponseCode();
+            if (status >= 200 && status < 300) {
+                return readFully(conn.getInputStream());
+            }
+            byte[] error = readFully(conn.getErrorStream());
+            // SOAP 1.1: the faults are sent with a 500 status, let the parser read them
+            if (status == HttpURLConnection.HTTP_INTERNAL_ERROR && isXml(conn.getContentType()) && error.length > 0) {
+                return error;
+            }
+            String message = "Unexpected HTTP status " + status + " from " + endpointUrl + ": " + truncate(error);
+            if (isTransient(status)) {
+                throw new IllegalStateException(message, new IOException(message));
+            }
+            throw new IllegalStateException(message);
+        } catch (IOException e) {
+            // the connection may be in an unknown state, do not let it go back in the keep-alive cache
+            if (conn != null) {
+                conn.disconnect();
+            }
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isTransient(int status) {
+        return status == HttpURLConnection.HTTP_BAD_GATEWAY || status == HttpURLConnection.HTTP_UNAVAILABLE || status == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+    }
+
+    private static boolean isXml(String contentType) {
+        return contentType != null && contentType.toLowerCase(Locale.ROOT).contains("xml");
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        if (is == null) {
+            return new byte[0];
+        }
+        try (InputStream in = is) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(1024);
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+            return os.toByteArray();
+        }
+    }
+
+    private static String truncate(byte[] body) {
+        String s = new String(body, StandardCharsets.UTF_8);
+        return s.length() > MAX_ERROR_BODY_IN_MESSAGE ? s.substring(0, MAX_ERROR_BODY_IN_MESSAGE) + "..." : s;
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.InputStream;
+
+/**
+ * The strategy used for reading the response of the VIES webservice.
+ *
+ * All the strategies can be used concurrently from multiple threads.
+ */
+public enum ResponseParser {
+
+    /**
+     * Read the response in a single forward pass with a StAX pull parser. This is the default.
+     */
+    STAX {
+        @Override
+        EUVatCheckResponse parse(InputStream is) {
+            return StaxResponseParser.parse(is);
+        }
+    },
+
+    /**
+     * Build a DOM of the whole response and extract the values from it, as done up to version 1.4.
+     */
+    DOM {
+        @Override
+        EUVatCheckResponse parse(InputStream is) {
+            return DomResponseParser.parse(is);
+        }
+    };
+
+    abstract EUVatCheckResponse parse(InputStream is);
+}
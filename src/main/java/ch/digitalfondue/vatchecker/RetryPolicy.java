@@ -0,0 +1,181 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Retry the checks that failed for a transient reason, see {@link EUVatChecker#withRetryPolicy(RetryPolicy)}.
+ *
+ * A check is retried when the response is a {@link EUVatCheckResponse.Status#RETRYABLE_FAULT} or when it failed
+ * with an {@link IOException} (as a cause), except when the fault comes from an open {@link VatCheckCircuitBreaker}.
+ * The n-th retry waits a random duration between half and the whole of
+ * <code>min(maxBackoff, initialBackoff * 2^(n-1))</code>, and no retry is started if it could not complete its
+ * wait before the deadline. When giving up, the outcome of the last attempt is returned.
+ *
+ * In {@link EUVatChecker#checkAsync(String, String)} the waits are scheduled, no thread is blocked.
+ *
+ * Instances are immutable and thread-safe.
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final long deadlineNanos;
+    private final Ticker ticker;
+    private final DoubleSupplier random;
+
+    /**
+     * @param maxAttempts    maximum number of attempts, including the first one
+     * @param initialBackoff the wait before the first retry
+     * @param maxBackoff     the maximum wait between two attempts
+     * @param deadline       the maximum time spent retrying, measured from the start of the first attempt
+     */
+    public RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, Duration deadline) {
+        this(maxAttempts, initialBackoff, maxBackoff, deadline, Ticker.SYSTEM, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, Duration deadline, Ticker ticker, DoubleSupplier random) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        Objects.requireNonNull(initialBackoff, "initialBackoff cannot be null");
+        Objects.requireNonNull(maxBackoff, "maxBackoff cannot be null");
+        Objects.requireNonNull(deadline, "deadline cannot be null");
+        if (initialBackoff.isNegative() || maxBackoff.compareTo(initialBackoff) < 0 || deadline.isNegative()) {
+            throw new IllegalArgumentException("expected 0 <= initialBackoff <= maxBackoff and deadline >= 0");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+        this.deadlineNanos = deadline.toNanos();
+        this.ticker = ticker;
+        this.random = random;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    static boolean isRetryable(EUVatCheckResponse response) {
+        // an open circuit breaker fails fast, retrying would only wait for it to reject again
+        return response.getStatus() == EUVatCheckResponse.Status.RETRYABLE_FAULT && !response.isCircuitOpen();
+    }
+
+    static boolean isRetryable(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the wait before the given retry (1 based), or -1 if no retry should be done
+     */
+    long backoffNanos(int retry, long startNanos) {
+        if (retry >= maxAttempts) {
+            return -1;
+        }
+        long base = initialBackoffNanos << Math.min(retry - 1, 30);
+        if (base > maxBackoffNanos || base < 0) {
+            base = maxBackoffNanos;
+        }
+        long wait = base / 2 + (long) (random.getAsDouble() * (base - base / 2));
+        long elapsed = ticker.nanoTime() - startNanos;
+        return elapsed + wait > deadlineNanos ? -1 : wait;
+    }
+
+    <T extends EUVatCheckResponse> T execute(Supplier<T> call) {
+        long start = ticker.nanoTime();
+        for (int retry = 1; ; retry++) {
+            T response;
+            try {
+                response = call.get();
+            } catch (RuntimeException e) {
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+                waitBeforeRetry(retry, start, e);
+                continue;
+            }
+            if (!isRetryable(response)) {
+                return response;
+            }
+            long wait = backoffNanos(retry, start);
+            if (wait < 0) {
+                return response;
+            }
+            sleep(wait);
+        }
+    }
+
+    private void waitBeforeRetry(int retry, long start, RuntimeException e) {
+        long wait = backoffNanos(retry, start);
+        if (wait < 0) {
+            throw e;
+        }
+        sleep(wait);
+    }
+
+    private void sleep(long nanos) {
+        try {
+            ticker.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    CompletableFuture<EUVatCheckResponse> executeAsync(Supplier<CompletableFuture<EUVatCheckResponse>> call) {
+        CompletableFuture<EUVatCheckResponse> result = new CompletableFuture<>();
+        attemptAsync(call, 1, ticker.nanoTime(), result);
+        return result;
+    }
+
+    private void attemptAsync(Supplier<CompletableFuture<EUVatCheckResponse>> call, int retry, long start, CompletableFuture<EUVatCheckResponse> result) {
+        CompletableFuture<EUVatCheckResponse> attempt;
+        try {
+            attempt = call.get();
+        } catch (RuntimeException e) {
+            attempt = new CompletableFuture<>();
+            attempt.completeExceptionally(e);
+        }
+        attempt.whenComplete((response, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            boolean retryable = cause != null ? isRetryable(cause) : isRetryable(response);
+            long wait = retryable ? backoffNanos(retry, start) : -1;
+            if (wait < 0) {
+                if (cause != null) {
+                    result.completeExceptionally(cause);
+                } else {
+                    result.complete(response);
+                }
+                return;
+            }
+            ticker.delay(wait).thenRun(() -> attemptAsync(call, retry + 1, start, result));
+        });
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicate concurrent calls with the same key: while a call is in flight, the other callers wait for its
+ * outcome instead of doing their own. See {@link EUVatChecker#withRequestCoalescing()}.
+ */
+final class SingleFlight<K, T> {
+
+    private final ConcurrentMap<K, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+
+    T execute(K key, Supplier<T> call) {
+        CompletableFuture<T> mine = new CompletableFuture<>();
+        CompletableFuture<T> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            T result = call.get();
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    CompletableFuture<T> executeAsync(K key, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> mine = new CompletableFuture<>();
+        CompletableFuture<T> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            // a dependent stage, so a waiter cancelling its future does not affect the others
+            return existing.thenApply(t -> t);
+        }
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+            return mine;
+        }
+        result.whenComplete((t, error) -> {
+            inFlight.remove(key, mine);
+            if (error != null) {
+                mine.completeExceptionally(error);
+            } else {
+                mine.complete(t);
+            }
+        });
+        return mine.thenApply(t -> t);
+    }
+
+    int inFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return an estimate of the number of callers waiting for the in-flight call with the given key
+     */
+    int waiterCount(K key) {
+        CompletableFuture<T> future = inFlight.get(key);
+        return future != null ? future.getNumberOfDependents() : 0;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // the result is shared: keep waiting and restore the flag afterwards
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
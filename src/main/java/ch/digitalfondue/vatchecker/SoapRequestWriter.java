@@ -0,0 +1,131 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+/**
+ * Write the SOAP request bodies without building a DOM.
+ *
+ * The output is byte for byte what the JDK Transformer produced when serializing the previous DOM based template,
+ * including the xml declaration and the escaping of the text content.
+ */
+final class SoapRequestWriter {
+
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" +
+            "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<soapenv:Header/>" +
+            "<soapenv:Body>";
+    private static final String ENVELOPE_END = "</soapenv:Body></soapenv:Envelope>";
+
+    private static final String CHECK_VAT_START = ENVELOPE_START + "<checkVat xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">";
+    private static final String CHECK_VAT_END = "</checkVat>" + ENVELOPE_END;
+
+    private static final String CHECK_VAT_APPROX_START = ENVELOPE_START + "<checkVatApprox xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">";
+    private static final String CHECK_VAT_APPROX_END = "</checkVatApprox>" + ENVELOPE_END;
+
+    private static final int INITIAL_CAPACITY = 512;
+    // avoid keeping around huge buffers if a caller sent an abnormally long value
+    private static final int MAX_RETAINED_CAPACITY = 8192;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_CAPACITY));
+
+    private SoapRequestWriter() {
+    }
+
+    static String checkVat(String countryCode, String vatNumber) {
+        StringBuilder sb = buffer();
+        sb.append(CHECK_VAT_START);
+        element(sb, "countryCode", countryCode);
+        element(sb, "vatNumber", vatNumber);
+        sb.append(CHECK_VAT_END);
+        return sb.toString();
+    }
+
+    /**
+     * The optional elements that are not set are omitted, in the order required by the wsdl.
+     */
+    static String checkVatApprox(VatCheckApproxRequest request) {
+        StringBuilder sb = buffer();
+        sb.append(CHECK_VAT_APPROX_START);
+        element(sb, "countryCode", request.getVatId().getCountryCode());
+        element(sb, "vatNumber", request.getVatId().getVatNumber());
+        optionalElement(sb, "traderName", request.getTraderName());
+        optionalElement(sb, "traderCompanyType", request.getTraderCompanyType());
+        optionalElement(sb, "traderStreet", request.getTraderStreet());
+        optionalElement(sb, "traderPostcode", request.getTraderPostcode());
+        optionalElement(sb, "traderCity", request.getTraderCity());
+        VatId requester = request.getRequester();
+        if (requester != null) {
+            element(sb, "requesterCountryCode", requester.getCountryCode());
+            element(sb, "requesterVatNumber", requester.getVatNumber());
+        }
+        sb.append(CHECK_VAT_APPROX_END);
+        return sb.toString();
+    }
+
+    private static StringBuilder buffer() {
+        StringBuilder sb = BUFFER.get();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            sb = new StringBuilder(INITIAL_CAPACITY);
+            BUFFER.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+
+    static void element(StringBuilder sb, String name, String value) {
+        if (value.isEmpty()) {
+            sb.append('<').append(name).append("/>");
+            return;
+        }
+        sb.append('<').append(name).append('>');
+        appendEscaped(sb, value);
+        sb.append("</").append(name).append('>');
+    }
+
+    private static void optionalElement(StringBuilder sb, String name, String value) {
+        if (value != null) {
+            element(sb, name, value);
+        }
+    }
+
+    static void appendEscaped(StringBuilder sb, String value) {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            int consumed = 1;
+            if (c == '&') {
+                replacement = "&amp;";
+            } else if (c == '<') {
+                replacement = "&lt;";
+            } else if (c == '>') {
+                replacement = "&gt;";
+            } else if (c < 0x20 && c != '\t' && c != '\n') {
+                replacement = "&#" + (int) c + ";";
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                replacement = "&#" + Character.toCodePoint(c, value.charAt(i + 1)) + ";";
+                consumed = 2;
+            } else {
+                continue;
+            }
+            sb.append(value, start, i).append(replacement);
+            i += consumed - 1;
+            start = i + 1;
+        }
+        sb.append(value, start, length);
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+
+/**
+ * Read the checkVat response in a single forward pass with a StAX pull parser. See {@link ResponseParser#STAX}.
+ *
+ * The parsing stop as soon as the checkVatResponse element is closed.
+ */
+final class StaxResponseParser {
+
+    private StaxResponseParser() {
+    }
+
+    static EUVatCheckResponse parse(InputStream is) {
+        XMLStreamReader reader = null;
+        try {
+            reader = XmlFactories.xmlInputFactory().createXMLStreamReader(is);
+            EUVatCheckResponse response;
+            String element = moveToElement(reader, "checkVatResponse", "Fault");
+            if (element == null) {
+                return EUVatCheckResponse.fault(null);
+            } else if ("Fault".equals(element)) {
+                response = EUVatCheckResponse.fault(readFaultString(reader));
+            } else {
+                response = readCheckVatResponse(reader);
+            }
+            return response;
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    static EUVatCheckApproxResponse parseApprox(InputStream is) {
+        XMLStreamReader reader = null;
+        try {
+            reader = XmlFactories.xmlInputFactory().createXMLStreamReader(is);
+            EUVatCheckApproxResponse response;
+            String element = moveToElement(reader, "checkVatApproxResponse", "Fault");
+            if (element == null) {
+                return EUVatCheckApproxResponse.fault(null);
+            } else if ("Fault".equals(element)) {
+                response = EUVatCheckApproxResponse.fault(readFaultString(reader));
+            } else {
+                response = readCheckVatApproxResponse(reader);
+            }
+            return response;
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Move to the first element with one of the given local names, return the matching name or null.
+     */
+    private static String moveToElement(XMLStreamReader reader, String localName, String otherLocalName) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.DTD) {
+                throw new IllegalStateException("DOCTYPE is not allowed in the response");
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (localName.equals(name) || otherLocalName.equals(name)) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * VIES put the fault code (e.g. MS_UNAVAILABLE) in the faultstring element.
+     */
+    private static String readFaultString(XMLStreamReader reader) throws XMLStreamException {
+        String faultString = null;
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1 && "faultstring".equals(reader.getLocalName()) && faultString == null) {
+                    faultString = reader.getElementText().trim();
+                    continue;
+                }
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return faultString;
+    }
+
+    private static EUVatCheckResponse readCheckVatResponse(XMLStreamReader reader) throws XMLStreamException {
+        String valid = null;
+        String name = null;
+        String address = null;
+        String countryCode = null;
+        String vatNumber = null;
+        String requestDate = null;
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1) {
+                    String localName = reader.getLocalName();
+                    // only the first occurrence is kept, as with the DOM/XPath variant
+                    if ("valid".equals(localName) && valid == null) {
+                        valid = reader.getElementText();
+                        continue;
+                    } else if ("name".equals(localName) && name == null) {
+                        name = reader.getElementText();
+                        continue;
+                    } else if ("address".equals(localName) && address == null) {
+                        address = reader.getElementText();
+                        continue;
+                    } else if ("countryCode".equals(localName) && countryCode == null) {
+                        countryCode = reader.getElementText();
+                        continue;
+                    } else if ("vatNumber".equals(localName) && vatNumber == null) {
+                        vatNumber = reader.getElementText();
+                        continue;
+                    } else if ("requestDate".equals(localName) && requestDate == null) {
+                        requestDate = reader.getElementText();
+                        continue;
+                    }
+                }
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        if (valid == null) {
+            return EUVatCheckResponse.fault(null);
+        }
+        return new EUVatCheckResponse("true".equals(valid), name, address, countryCode, vatNumber, requestDate);
+    }
+
+    private static EUVatCheckApproxResponse readCheckVatApproxResponse(XMLStreamReader reader) throws XMLStreamException {
+        String valid = null;
+        String[] values = new String[EUVatCheckApproxResponse.FIELDS.length];
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1) {
+                    String localName = reader.getLocalName();
+                    if ("valid".equals(localName)) {
+                        if (valid == null) {
+                            valid = reader.getElementText();
+                            continue;
+                        }
+                    } else {
+                        int index = EUVatCheckApproxResponse.fieldIndex(localName);
+                        if (index >= 0 && values[index] == null) {
+                            values[index] = reader.getElementText();
+                            continue;
+                        }
+                    }
+                }
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        if (valid == null) {
+            return EUVatCheckApproxResponse.fault(null);
+        }
+        return new EUVatCheckApproxResponse("true".equals(valid), values);
+    }
+
+    /**
+     * Closing the reader is enough for the JDK implementation to recycle it, the tail of the document is not read.
+     */
+    private static void close(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of time and of waiting, replaceable in tests.
+ */
+interface Ticker {
+
+    Ticker SYSTEM = new Ticker() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+
+        @Override
+        public CompletableFuture<Void> delay(long nanos) {
+            CompletableFuture<Void> delayed = new CompletableFuture<>();
+            Scheduler.INSTANCE.schedule(() -> delayed.complete(null), nanos, TimeUnit.NANOSECONDS);
+            return delayed;
+        }
+    };
+
+    long nanoTime();
+
+    void sleep(long nanos) throws InterruptedException;
+
+    /**
+     * @return a future completed after the given delay, without blocking a thread while waiting
+     */
+    CompletableFuture<Void> delay(long nanos);
+
+    // lazily created: only needed when delay is used
+    final class Scheduler {
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vatchecker-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+
+        private Scheduler() {
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.Objects;
+
+/**
+ * The parameters of the checkVatApprox operation, see {@link EUVatChecker#checkApprox(VatCheckApproxRequest)}.
+ *
+ * The webservice returns a consultation number only if the requester is given. The trader details are optional:
+ * when given, the member states that support it return whether they match the registered ones.
+ *
+ * Instances are immutable: the <code>withXxx</code> methods return a modified copy.
+ */
+public final class VatCheckApproxRequest {
+
+    private final VatId vatId;
+    private final VatId requester;
+    private final String traderName;
+    private final String traderCompanyType;
+    private final String traderStreet;
+    private final String traderPostcode;
+    private final String traderCity;
+
+    /**
+     * @param vatId the vat identification number to check
+     */
+    public VatCheckApproxRequest(VatId vatId) {
+        this(Objects.requireNonNull(vatId, "vatId cannot be null"), null, null, null, null, null, null);
+    }
+
+    private VatCheckApproxRequest(VatId vatId, VatId requester, String traderName, String traderCompanyType,
+                                  String traderStreet, String traderPostcode, String traderCity) {
+        this.vatId = vatId;
+        this.requester = requester;
+        this.traderName = traderName;
+        this.traderCompanyType = traderCompanyType;
+        this.traderStreet = traderStreet;
+        this.traderPostcode = traderPostcode;
+        this.traderCity = traderCity;
+    }
+
+    /**
+     * @param requester the vat identification number of the one doing the check
+     * @return a new request
+     */
+    public VatCheckApproxRequest withRequester(VatId requester) {
+        Objects.requireNonNull(requester, "requester cannot be null");
+        return new VatCheckApproxRequest(vatId, requester, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity);
+    }
+
+    public VatCheckApproxRequest withTraderName(String traderName) {
+        Objects.requireNonNull(traderName, "traderName cannot be null");
+        return new VatCheckApproxRequest(vatId, requester, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity);
+    }
+
+    public VatCheckApproxRequest withTraderCompanyType(String traderCompanyType) {
+        Objects.requireNonNull(traderCompanyType, "traderCompanyType cannot be null");
+        return new VatCheckApproxRequest(vatId, requester, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity);
+    }
+
+    public VatCheckApproxRequest withTraderStreet(String traderStreet) {
+        Objects.requireNonNull(traderStreet, "traderStreet cannot be null");
+        return new VatCheckApproxRequest(vatId, requester, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity);
+    }
+
+    public VatCheckApproxRequest withTraderPostcode(String traderPostcode) {
+        Objects.requireNonNull(traderPostcode, "traderPostcode cannot be null");
+        return new VatCheckApproxRequest(vatId, requester, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity);
+    }
+
+    public VatCheckApproxRequest withTraderCity(String traderCity) {
+        Objects.requireNonNull(traderCity, "traderCity cannot be null");
+        return new VatCheckApproxRequest(vatId, requester, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity);
+    }
+
+    public VatId getVatId() {
+        return vatId;
+    }
+
+    public VatId getRequester() {
+        return requester;
+    }
+
+    public String getTraderName() {
+        return traderName;
+    }
+
+    public String getTraderCompanyType() {
+        return traderCompanyType;
+    }
+
+    public String getTraderStreet() {
+        return traderStreet;
+    }
+
+    public String getTraderPostcode() {
+        return traderPostcode;
+    }
+
+    public String getTraderCity() {
+        return traderCity;
+    }
+}
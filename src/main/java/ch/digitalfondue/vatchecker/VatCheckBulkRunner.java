@@ -0,0 +1,672 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Check all the vat numbers of a file, writing the outcomes to another file, see {@link #run(Path, Format, Path, Format)}.
+ *
+ * The input is read line by line and the results are appended to the output as soon as they are available, so
+ * the files are never loaded in memory. At most <code>parallelism</code> checks are in flight, through
+ * {@link EUVatChecker#checkAsync(VatId)}: the cache, store, limiter, retry policy, etc. of the checker apply.
+ *
+ * Each output record carries the number of the input line it comes from, and the results are not in the input
+ * order. The output is also the checkpoint: when it already exists, the lines with a final record (VALID, INVALID,
+ * PERMANENT_FAULT or UNREADABLE status) are not checked again and the others are checked and appended. Thus the
+ * lines that failed for a transient reason (RETRYABLE_FAULT or ERROR status) get a new record on each run until
+ * they succeed, the output can then contain several records for a line. A record partially written when the
+ * process was stopped is discarded, so an interrupted run can be resumed by running it again with the same input
+ * and output files.
+ *
+ * Instances are thread-safe, but a given output file must not be used by two runs at the same time.
+ */
+public class VatCheckBulkRunner {
+
+    /**
+     * The file formats, both in UTF-8.
+     *
+     * For the input, the vat number is read from the <code>vatId</code> field, prefixed by the country code, or
+     * from the <code>countryCode</code> and <code>vatNumber</code> fields. The other fields are ignored.
+     */
+    public enum Format {
+        /**
+         * Comma separated values, the first line being the header. In the input, if the header has neither a
+         * <code>vatId</code> column nor the <code>countryCode</code> and <code>vatNumber</code> columns, the first
+         * column is used. The quoted values cannot span multiple lines.
+         */
+        CSV,
+        /**
+         * A json object per line.
+         */
+        NDJSON
+    }
+
+    /**
+     * The fields of the output records, <code>status</code> is one of {@link EUVatCheckResponse.Status},
+     * <code>UNREADABLE</code> when the line could not be read or <code>ERROR</code> when the check threw an exception.
+     * The status comes right after the line number, so the checkpoint can be read without parsing the records.
+     */
+    static final String[] FIELDS = {"line", "status", "vatId", "name", "address", "requestDate", "faultCode", "error"};
+    static final String UNREADABLE = "UNREADABLE";
+    static final String ERROR = "ERROR";
+
+    private static final Set<String> FINAL_STATUSES = new HashSet<>(Arrays.asList(
+            EUVatCheckResponse.Status.VALID.name(),
+            EUVatCheckResponse.Status.INVALID.name(),
+            EUVatCheckResponse.Status.PERMANENT_FAULT.name(),
+            UNREADABLE));
+    private static final int MAX_STATUS_FIELD_LENGTH = 64;
+
+    private final EUVatChecker checker;
+    private final int parallelism;
+
+    /**
+     * @param checker     the checker
+     * @param parallelism the maximum number of concurrent checks
+     */
+    public VatCheckBulkRunner(EUVatChecker checker, int parallelism) {
+        this.checker = Objects.requireNonNull(checker, "checker cannot be null");
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Check the lines of the input that are not already in the output. This method returns when all the results
+     * have been written.
+     *
+     * @param input        the input file
+     * @param inputFormat  the format of the input
+     * @param output       the output file, created if it does not exist
+     * @param outputFormat the format of the output, must be the same across the runs resuming each other
+     * @return the counts of this run
+     */
+    public Summary run(Path input, Format inputFormat, Path output, Format outputFormat) {
+        Objects.requireNonNull(input, "input cannot be null");
+        Objects.requireNonNull(inputFormat, "inputFormat cannot be null");
+        Objects.requireNonNull(output, "output cannot be null");
+        Objects.requireNonNull(outputFormat, "outputFormat cannot be null");
+        Summary summary = new Summary();
+        Semaphore permits = new Semaphore(parallelism);
+        try {
+            BitSet done = recover(output, outputFormat);
+            try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+                 ResultWriter writer = new ResultWriter(output, outputFormat, summary)) {
+                RecordReader records = inputFormat == Format.CSV ? new CsvRecordReader() : new JsonRecordReader();
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null && writer.failure == null) {
+                    lineNumber++;
+                    if (inputFormat == Format.CSV && lineNumber == 1) {
+                        records.header(line);
+                    } else if (done.get(lineNumber)) {
+                        summary.skip();
+                    } else if (!line.trim().isEmpty()) {
+                        VatId vatId;
+                        try {
+                            vatId = records.read(line);
+                        } catch (RuntimeException e) {
+                            writer.write(lineNumber, UNREADABLE, null, null, e);
+                            continue;
+                        }
+                        permits.acquire();
+                        int current = lineNumber;
+                        CompletableFuture<EUVatCheckResponse> result;
+                        try {
+                            result = checker.checkAsync(vatId);
+                        } catch (RuntimeException e) {
+                            permits.release();
+                            writer.write(lineNumber, ERROR, vatId, null, e);
+                            continue;
+                        }
+                        result.whenComplete((response, error) -> {
+                            try {
+                                writer.write(current, ERROR, vatId, response, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                            } finally {
+                                permits.release();
+                            }
+                        });
+                    }
+                }
+                permits.acquire(parallelism);
+                if (writer.failure != null) {
+                    throw writer.failure;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        return summary;
+    }
+
+    /**
+     * Return the input lines with a final record in the output, and cut the output after its last complete record.
+     */
+    static BitSet recover(Path output, Format format) throws IOException {
+        BitSet done = new BitSet();
+        if (!Files.exists(output)) {
+            return done;
+        }
+        long position = 0;
+        long complete = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(output), 64 * 1024)) {
+            boolean quoted = false;
+            int field = 0;
+            long lineNumber = 0;
+            StringBuilder status = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b == '"' && format == Format.CSV) {
+                    // a doubled quote toggles twice
+                    quoted = !quoted;
+                } else if (b == '\n' && !quoted) {
+                    if (lineNumber > 0 && lineNumber <= Integer.MAX_VALUE && isFinal(status)) {
+                        done.set((int) lineNumber);
+                    }
+                    complete = position;
+                    field = 0;
+                    lineNumber = 0;
+                    status.setLength(0);
+                } else if (b == ',' && !quoted) {
+                    field++;
+                } else if (field == 0 && b >= '0' && b <= '9') {
+                    // the csv header and the json key have no digits
+                    lineNumber = Math.min(lineNumber * 10 + (b - '0'), Integer.MAX_VALUE + 1L);
+                } else if (field == 1 && status.length() < MAX_STATUS_FIELD_LENGTH) {
+                    status.append((char) b);
+                }
+            }
+        }
+        if (complete < position) {
+            try (FileChannel fc = FileChannel.open(output, StandardOpenOption.WRITE)) {
+                fc.truncate(complete);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * @param statusField the status field, as a csv value or as a json member
+     */
+    private static boolean isFinal(CharSequence statusField) {
+        String value = statusField.toString();
+        value = value.substring(value.lastIndexOf(':') + 1).replace("\"", "").trim();
+        return FINAL_STATUSES.contains(value);
+    }
+
+    /**
+     * The counts of a run.
+     */
+    public static final class Summary {
+        private long skipped;
+        private long valid;
+        private long invalid;
+        private long faults;
+        private long errors;
+
+        private Summary() {
+        }
+
+        /**
+         * @return the number of lines with a final record already in the output, thus not checked again
+         */
+        public synchronized long getSkippedCount() {
+            return skipped;
+        }
+
+        /**
+         * @return the number of results written by this run
+         */
+        public synchronized long getWrittenCount() {
+            return valid + invalid + faults + errors;
+        }
+
+        public synchronized long getValidCount() {
+            return valid;
+        }
+
+        public synchronized long getInvalidCount() {
+            return invalid;
+        }
+
+        /**
+         * @return the number of fault responses, permanent or retryable, see {@link EUVatCheckResponse#getStatus()}
+         */
+        public synchronized long getFaultCount() {
+            return faults;
+        }
+
+        /**
+         * @return the number of lines that could not be read or whose check threw an exception
+         */
+        public synchronized long getErrorCount() {
+            return errors;
+        }
+
+        private synchronized void skip() {
+            skipped++;
+        }
+
+        private synchronized void add(EUVatCheckResponse response) {
+            if (response == null) {
+                errors++;
+            } else if (response.getStatus() == EUVatCheckResponse.Status.VALID) {
+                valid++;
+            } else if (response.getStatus() == EUVatCheckResponse.Status.INVALID) {
+                invalid++;
+            } else {
+                faults++;
+            }
+        }
+    }
+
+    private static final class ResultWriter implements Closeable {
+        private final Writer writer;
+        private final Format format;
+        private final Summary summary;
+        private boolean closed;
+        private volatile IOException failure;
+
+        private ResultWriter(Path output, Format format, Summary summary) throws IOException {
+            this.writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.format = format;
+            this.summary = summary;
+            if (format == Format.CSV && Files.size(output) == 0) {
+                writeRecord(FIELDS);
+                writer.flush();
+            }
+        }
+
+        /**
+         * @param errorStatus the status written when there is no response
+         */
+        private void write(int lineNumber, String errorStatus, VatId vatId, EUVatCheckResponse response, Throwable error) {
+            String[] values;
+            try {
+                values = values(lineNumber, errorStatus, vatId, response, error);
+            } catch (RuntimeException e) {
+                // e.g. a malformed request date: the line is recorded as failed, not silently skipped
+                response = null;
+                values = values(lineNumber, ERROR, vatId, null, e);
+            }
+            synchronized (this) {
+                if (closed || failure != null) {
+                    return;
+                }
+                try {
+                    writeRecord(values);
+                    // the output is the checkpoint, each result is handed to the OS as soon as it's written
+                    writer.flush();
+                } catch (IOException e) {
+                    failure = e;
+                    return;
+                }
+                summary.add(response);
+            }
+        }
+
+        private static String[] values(int lineNumber, String errorStatus, VatId vatId, EUVatCheckResponse response, Throwable error) {
+            String[] values = new String[FIELDS.length];
+            values[0] = Integer.toString(lineNumber);
+            values[2] = vatId != null ? vatId.toString() : null;
+            if (response != null) {
+                values[1] = response.getStatus().name();
+                values[3] = response.getName();
+                values[4] = response.getAddress();
+                // a malformed date is written as received
+                values[5] = response.getRequestDate() != null ? response.getRequestDate().toString() : response.getRequestDateText();
+                values[6] = response.getFaultCode();
+            } else {
+                values[1] = errorStatus;
+                values[7] = String.valueOf(error);
+            }
+            return values;
+        }
+
+        private void writeRecord(String[] values) throws IOException {
+            if (format == Format.CSV) {
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    writeCsvValue(values[i]);
+                }
+            } else {
+                writer.write('{');
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    writeJsonString(FIELDS[i]);
+                    writer.write(':');
+                    if (i == 0) {
+                        writer.write(values[i]);
+                    } else if (values[i] == null) {
+                        writer.write("null");
+                    } else {
+                        writeJsonString(values[i]);
+                    }
+                }
+                writer.write('}');
+            }
+            writer.write('\n');
+        }
+
+        private void writeCsvValue(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+
+        private void writeJsonString(String value) throws IOException {
+            writer.write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        writer.write("\\\"");
+                        break;
+                    case '\\':
+                        writer.write("\\\\");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    case '\r':
+                        writer.write("\\r");
+                        break;
+                    case '\t':
+                        writer.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writer.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            writer.write(c);
+                        }
+                }
+            }
+            writer.write('"');
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            writer.close();
+        }
+    }
+
+    private interface RecordReader {
+
+        default void header(String line) {
+        }
+
+        VatId read(String line);
+    }
+
+    private static VatId vatId(String vatId, String countryCode, String vatNumber) {
+        if (vatId != null && !vatId.isEmpty()) {
+            return VatId.parse(vatId);
+        }
+        if (countryCode != null && vatNumber != null) {
+            return VatId.of(countryCode, vatNumber);
+        }
+        throw new IllegalArgumentException("missing vat number");
+    }
+
+    private static final class CsvRecordReader implements RecordReader {
+        private int vatIdColumn;
+        private int countryCodeColumn = -1;
+        private int vatNumberColumn = -1;
+
+        @Override
+        public void header(String line) {
+            List<String> columns = split(line);
+            int vatId = columns.indexOf("vatId");
+            int countryCode = columns.indexOf("countryCode");
+            int vatNumber = columns.indexOf("vatNumber");
+            if (vatId < 0 && countryCode >= 0 && vatNumber >= 0) {
+                vatIdColumn = -1;
+                countryCodeColumn = countryCode;
+                vatNumberColumn = vatNumber;
+            } else {
+                vatIdColumn = Math.max(vatId, 0);
+            }
+        }
+
+        @Override
+        public VatId read(String line) {
+            List<String> values = split(line);
+            return vatId(get(values, vatIdColumn), get(values, countryCodeColumn), get(values, vatNumberColumn));
+        }
+
+        private static String get(List<String> values, int column) {
+            return column >= 0 && column < values.size() ? values.get(column) : null;
+        }
+
+        static List<String> split(String line) {
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c != '"') {
+                        value.append(c);
+                    } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else {
+                    value.append(c);
+                }
+            }
+            if (quoted) {
+                throw new IllegalArgumentException("unterminated quoted value");
+            }
+            values.add(value.toString());
+            return values;
+        }
+    }
+
+    private static final class JsonRecordReader implements RecordReader {
+
+        @Override
+        public VatId read(String line) {
+            Map<String, String> fields = new JsonObjectReader(line).read();
+            return vatId(fields.get("vatId"), fields.get("countryCode"), fields.get("vatNumber"));
+        }
+    }
+
+    /**
+     * Read the scalar values of a json object, the nested objects and arrays are skipped.
+     */
+    static final class JsonObjectReader {
+        private final String json;
+        private int pos;
+
+        JsonObjectReader(String json) {
+            this.json = json;
+        }
+
+        Map<String, String> read() {
+            Map<String, String> fields = new HashMap<>();
+            expect('{');
+            if (peek() == '}') {
+                pos++;
+            } else {
+                do {
+                    String key = string();
+                    expect(':');
+                    char c = peek();
+                    if (c == '{' || c == '[') {
+                        skipNested();
+                    } else {
+                        fields.put(key, scalar());
+                    }
+                } while (next(',', '}') == ',');
+            }
+            if (peek() != 0) {
+                throw error("unexpected content");
+            }
+            return fields;
+        }
+
+        private char peek() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+                pos++;
+            }
+            return pos < json.length() ? json.charAt(pos) : 0;
+        }
+
+        private void expect(char expected) {
+            if (peek() != expected) {
+                throw error("expected " + expected);
+            }
+            pos++;
+        }
+
+        private char next(char first, char second) {
+            char c = peek();
+            if (c != first && c != second) {
+                throw error("expected " + first + " or " + second);
+            }
+            pos++;
+            return c;
+        }
+
+        private String scalar() {
+            if (peek() == '"') {
+                return string();
+            }
+            int start = pos;
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0) {
+                pos++;
+            }
+            String value = json.substring(start, pos);
+            if (value.isEmpty()) {
+                throw error("expected a value");
+            }
+            return "null".equals(value) ? null : value;
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < json.length()) {
+                char c = json.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= json.length()) {
+                    break;
+                }
+                char escaped = json.charAt(pos++);
+                switch (escaped) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'u':
+                        if (pos + 4 > json.length()) {
+                            throw error("invalid escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("invalid escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        sb.append(escaped);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private void skipNested() {
+            int depth = 0;
+            do {
+                char c = peek();
+                if (c == 0) {
+                    throw error("unterminated value");
+                } else if (c == '"') {
+                    string();
+                    continue;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0);
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("malformed json, " + message + " at " + pos);
+        }
+    }
+}
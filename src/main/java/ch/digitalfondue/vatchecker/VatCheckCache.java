@@ -0,0 +1,350 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A bounded in-memory cache of {@link EUVatCheckResponse}, see {@link EUVatChecker#withCache(VatCheckCache)}.
+ *
+ * Entries are keyed by the normalized country code and vat number, see {@link VatId}, and expire after a time to
+ * live that depends on the outcome: valid, invalid (including the permanent faults like INVALID_INPUT) or error
+ * (retryable faults like MS_UNAVAILABLE and exceptions thrown by the check), see {@link EUVatCheckResponse#getStatus()}.
+ *
+ * With a stale time to live, the valid and invalid responses remain available for that duration after their time
+ * to live expired (stale-while-revalidate): a stale response is returned at once while a single background call
+ * refreshes it. If the refresh fails (exception or retryable fault), the stale response is kept and served until
+ * it's refreshed or the stale time to live expires (stale-if-error).
+ *
+ * When full, the least recently used entry is evicted. For limiting the contention, big caches are split in
+ * independently locked segments, so the eviction order is only approximately LRU.
+ *
+ * Instances are thread-safe and can be shared by multiple checkers.
+ */
+public class VatCheckCache {
+
+    private static final int SEGMENTED_THRESHOLD = 1024;
+    private static final int SEGMENTS = 16;
+
+    private final long validTtlNanos;
+    private final long invalidTtlNanos;
+    private final long errorTtlNanos;
+    private final long staleTtlNanos;
+    private final LongSupplier nanoClock;
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder failedRefreshes = new LongAdder();
+
+    /**
+     * @param maximumSize maximum number of entries
+     * @param validTtl    time to live of the valid responses
+     * @param invalidTtl  time to live of the invalid responses and of the permanent faults
+     * @param errorTtl    time to live of the retryable faults and of the exceptions, {@link Duration#ZERO} for not caching them
+     */
+    public VatCheckCache(int maximumSize, Duration validTtl, Duration invalidTtl, Duration errorTtl) {
+        this(maximumSize, validTtl, invalidTtl, errorTtl, Duration.ZERO);
+    }
+
+    /**
+     * @param maximumSize maximum number of entries
+     * @param validTtl    time to live of the valid responses
+     * @param invalidTtl  time to live of the invalid responses and of the permanent faults
+     * @param errorTtl    time to live of the retryable faults and of the exceptions, {@link Duration#ZERO} for not caching them
+     * @param staleTtl    how long the valid and invalid responses can be served while being refreshed after their time to live
+     */
+    public VatCheckCache(int maximumSize, Duration validTtl, Duration invalidTtl, Duration errorTtl, Duration staleTtl) {
+        this(maximumSize, validTtl, invalidTtl, errorTtl, staleTtl, System::nanoTime);
+    }
+
+    VatCheckCache(int maximumSize, Duration validTtl, Duration invalidTtl, Duration errorTtl, LongSupplier nanoClock) {
+        this(maximumSize, validTtl, invalidTtl, errorTtl, Duration.ZERO, nanoClock);
+    }
+
+    VatCheckCache(int maximumSize, Duration validTtl, Duration invalidTtl, Duration errorTtl, Duration staleTtl, LongSupplier nanoClock) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        this.validTtlNanos = ttl(validTtl, "validTtl");
+        this.invalidTtlNanos = ttl(invalidTtl, "invalidTtl");
+        this.errorTtlNanos = ttl(errorTtl, "errorTtl");
+        this.staleTtlNanos = ttl(staleTtl, "staleTtl");
+        this.nanoClock = nanoClock;
+        int segmentCount = maximumSize >= SEGMENTED_THRESHOLD ? SEGMENTS : 1;
+        int segmentSize = (maximumSize + segmentCount - 1) / segmentCount;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    private static long ttl(Duration ttl, String name) {
+        Objects.requireNonNull(ttl, name + " cannot be null");
+        if (ttl.isNegative()) {
+            throw new IllegalArgumentException(name + " cannot be negative");
+        }
+        return ttl.toNanos();
+    }
+
+    /**
+     * Return the cached response for the given key, or call the loader and cache its outcome. A stale response is
+     * refreshed by calling the refresher on the given executor.
+     */
+    EUVatCheckResponse get(VatId key, Supplier<EUVatCheckResponse> loader, Supplier<EUVatCheckResponse> refresher, Executor refreshExecutor) {
+        CachedResponse entry = getIfPresent(key);
+        if (entry != null) {
+            if (startRefresh(entry)) {
+                try {
+                    refreshExecutor.execute(() -> {
+                        EUVatCheckResponse response;
+                        try {
+                            response = refresher.get();
+                        } catch (RuntimeException e) {
+                            refreshed(key, entry, null);
+                            return;
+                        }
+                        refreshed(key, entry, response);
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the next access will try again
+                    entry.endRefresh();
+                }
+            }
+            return entry.get();
+        }
+        EUVatCheckResponse response;
+        try {
+            response = loader.get();
+        } catch (RuntimeException e) {
+            putError(key, e);
+            throw e;
+        }
+        put(key, response);
+        return response;
+    }
+
+    /**
+     * Return the entry, fresh or stale, for the given key. If {@link #startRefresh(CachedResponse)} returns true, the
+     * caller must refresh it and report the outcome with {@link #refreshed(VatId, CachedResponse, EUVatCheckResponse)}.
+     */
+    CachedResponse getIfPresent(VatId key) {
+        Segment segment = segmentFor(key);
+        long now = nanoClock.getAsLong();
+        CachedResponse entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && entry.isExpired(now)) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+        } else if (entry.isStale(now)) {
+            staleHits.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Return true if the entry is stale and nobody else is refreshing it.
+     */
+    boolean startRefresh(CachedResponse entry) {
+        return entry.startRefresh(nanoClock.getAsLong());
+    }
+
+    /**
+     * Complete the refresh of a stale entry: the response replaces it, unless it's null (the refresh failed) or a
+     * retryable fault, in which case the stale entry is kept.
+     */
+    void refreshed(VatId key, CachedResponse stale, EUVatCheckResponse response) {
+        if (response == null || response.getStatus() == EUVatCheckResponse.Status.RETRYABLE_FAULT) {
+            failedRefreshes.increment();
+            stale.endRefresh();
+        } else {
+            put(key, response);
+        }
+    }
+
+    void put(VatId key, EUVatCheckResponse response) {
+        EUVatCheckResponse.Status status = response.getStatus();
+        long ttl = ttl(status);
+        long staleTtl = status == EUVatCheckResponse.Status.VALID || status == EUVatCheckResponse.Status.INVALID ? staleTtlNanos : 0;
+        long now = nanoClock.getAsLong();
+        store(key, new CachedResponse(response, null, now + ttl, now + ttl + staleTtl), ttl);
+    }
+
+    private long ttl(EUVatCheckResponse.Status status) {
+        switch (status) {
+            case VALID:
+                return validTtlNanos;
+            case RETRYABLE_FAULT:
+                return errorTtlNanos;
+            default:
+                return invalidTtlNanos;
+        }
+    }
+
+    void putError(VatId key, RuntimeException error) {
+        long expiresAt = nanoClock.getAsLong() + errorTtlNanos;
+        store(key, new CachedResponse(null, error, expiresAt, expiresAt), errorTtlNanos);
+    }
+
+    private void store(VatId key, CachedResponse entry, long ttl) {
+        if (ttl <= 0) {
+            return;
+        }
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    private Segment segmentFor(VatId key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries, including the expired ones that have not been removed yet
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of stale responses returned while being refreshed, not included in {@link #getHitCount()}
+     */
+    public long getStaleHitCount() {
+        return staleHits.sum();
+    }
+
+    /**
+     * @return the number of refreshes of stale responses that failed, the stale response being kept
+     */
+    public long getFailedRefreshCount() {
+        return failedRefreshes.sum();
+    }
+
+    /**
+     * @return the number of entries removed because the cache was full
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    static final class CachedResponse {
+        private final EUVatCheckResponse response;
+        private final RuntimeException error;
+        private final long staleAt;
+        private final long expiresAt;
+        private boolean refreshing;
+
+        private CachedResponse(EUVatCheckResponse response, RuntimeException error, long staleAt, long expiresAt) {
+            this.response = response;
+            this.error = error;
+            this.staleAt = staleAt;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+
+        private boolean isStale(long now) {
+            return now - staleAt >= 0;
+        }
+
+        private synchronized boolean startRefresh(long now) {
+            if (refreshing || !isStale(now)) {
+                return false;
+            }
+            refreshing = true;
+            return true;
+        }
+
+        private synchronized void endRefresh() {
+            refreshing = false;
+        }
+
+        EUVatCheckResponse get() {
+            if (error != null) {
+                throw error;
+            }
+            return response;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<VatId, CachedResponse> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maximumSize;
+
+        private Segment(int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<VatId, CachedResponse> eldest) {
+            if (size() > maximumSize) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
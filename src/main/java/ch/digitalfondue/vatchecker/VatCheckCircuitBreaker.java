@@ -0,0 +1,252 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Stop calling a member state that is down, see {@link EUVatChecker#withCircuitBreaker(VatCheckCircuitBreaker)}.
+ *
+ * There is one breaker for each country code. It records the outcome of the last <code>windowSize</code> calls:
+ * a {@link EUVatCheckResponse.Status#RETRYABLE_FAULT} response or an exception is a failure. When at least
+ * <code>minimumCalls</code> calls have been recorded and the failure rate reaches <code>failureRateThreshold</code>
+ * the breaker opens: for <code>openDuration</code> the checks of that country code fail fast, without calling the
+ * webservice, with a {@link EUVatCheckResponse.Status#RETRYABLE_FAULT} response with the MS_UNAVAILABLE fault code,
+ * for which {@link EUVatCheckResponse#isCircuitOpen()} is true.
+ * Then a single probe call is let through (half-open): if it succeeds the breaker closes, otherwise it opens again.
+ *
+ * Instances are thread-safe and can be shared by multiple checkers.
+ */
+public class VatCheckCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final double failureRateThreshold;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final long openDurationNanos;
+    private final Ticker ticker;
+    private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param failureRateThreshold the failure rate, between 0 (excluded) and 1, that opens the breaker
+     * @param windowSize           the number of recent calls considered for the failure rate
+     * @param minimumCalls         the number of calls needed before computing the failure rate
+     * @param openDuration         how long the breaker stays open before letting a probe call through
+     */
+    public VatCheckCircuitBreaker(double failureRateThreshold, int windowSize, int minimumCalls, Duration openDuration) {
+        this(failureRateThreshold, windowSize, minimumCalls, openDuration, Ticker.SYSTEM);
+    }
+
+    VatCheckCircuitBreaker(double failureRateThreshold, int windowSize, int minimumCalls, Duration openDuration, Ticker ticker) {
+        if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+            throw new IllegalArgumentException("failureRateThreshold must be in ]0, 1]");
+        }
+        if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("expected 0 < minimumCalls <= windowSize");
+        }
+        Objects.requireNonNull(openDuration, "openDuration cannot be null");
+        if (openDuration.isNegative()) {
+            throw new IllegalArgumentException("openDuration cannot be negative");
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.openDurationNanos = openDuration.toNanos();
+        this.ticker = ticker;
+    }
+
+    /**
+     * @param countryCode the country code
+     * @return the current state of the breaker of the given country code
+     */
+    public State getState(String countryCode) {
+        Breaker breaker = breakers.get(countryCode.toUpperCase(Locale.ROOT));
+        return breaker != null ? breaker.state(ticker.nanoTime()) : State.CLOSED;
+    }
+
+    /**
+     * @return the state of the breakers of the country codes that have been called, sorted by country code
+     */
+    public Map<String, State> getStates() {
+        long now = ticker.nanoTime();
+        Map<String, State> states = new TreeMap<>();
+        breakers.forEach((countryCode, breaker) -> states.put(countryCode, breaker.state(now)));
+        return states;
+    }
+
+    /**
+     * @return the number of checks that failed fast because the breaker was open
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    static final String UNAVAILABLE_FAULT_CODE = "MS_UNAVAILABLE";
+
+    // shared instances, so a rejection can be told apart from a fault returned by the webservice
+    static final EUVatCheckResponse UNAVAILABLE = EUVatCheckResponse.fault(UNAVAILABLE_FAULT_CODE);
+    static final EUVatCheckApproxResponse UNAVAILABLE_APPROX = EUVatCheckApproxResponse.fault(UNAVAILABLE_FAULT_CODE);
+
+    /**
+     * @return true if the response was given because the breaker was open
+     */
+    static boolean isRejection(EUVatCheckResponse response) {
+        return response == UNAVAILABLE || response == UNAVAILABLE_APPROX;
+    }
+
+    static boolean isFailure(EUVatCheckResponse response, Throwable error) {
+        return error != null || response.getStatus() == EUVatCheckResponse.Status.RETRYABLE_FAULT;
+    }
+
+    /**
+     * @param unavailable the response given when the breaker is open, {@link #UNAVAILABLE} or {@link #UNAVAILABLE_APPROX}
+     */
+    <T extends EUVatCheckResponse> T call(String countryCode, Supplier<T> call, T unavailable) {
+        Breaker breaker = breaker(countryCode);
+        if (!tryAcquire(breaker)) {
+            return unavailable;
+        }
+        T response;
+        try {
+            response = call.get();
+        } catch (Throwable e) {
+            // an Error too must be recorded, or a half-open breaker would wait forever for its probe
+            breaker.record(true, ticker.nanoTime());
+            throw e;
+        }
+        breaker.record(isFailure(response, null), ticker.nanoTime());
+        return response;
+    }
+
+    /**
+     * Return true if the call can be done. Must be followed by a call to {@link #record(String, boolean)}.
+     */
+    boolean tryAcquire(String countryCode) {
+        return tryAcquire(breaker(countryCode));
+    }
+
+    void record(String countryCode, boolean failure) {
+        breaker(countryCode).record(failure, ticker.nanoTime());
+    }
+
+    private boolean tryAcquire(Breaker breaker) {
+        if (breaker.tryAcquire(ticker.nanoTime())) {
+            return true;
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    private Breaker breaker(String countryCode) {
+        String key = countryCode.toUpperCase(Locale.ROOT);
+        Breaker breaker = breakers.get(key);
+        if (breaker == null) {
+            breaker = breakers.computeIfAbsent(key, k -> new Breaker());
+        }
+        return breaker;
+    }
+
+    private final class Breaker {
+
+        // ring buffer of the last outcomes, true is a failure
+        private final boolean[] outcomes = new boolean[windowSize];
+        private int recorded;
+        private int position;
+        private int failures;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private boolean probeInFlight;
+
+        private synchronized State state(long now) {
+            if (state == State.OPEN && now - openedAt >= openDurationNanos) {
+                return State.HALF_OPEN;
+            }
+            return state;
+        }
+
+        private synchronized boolean tryAcquire(long now) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.OPEN) {
+                if (now - openedAt < openDurationNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+            }
+            if (probeInFlight) {
+                return false;
+            }
+            probeInFlight = true;
+            return true;
+        }
+
+        private synchronized void record(boolean failure, long now) {
+            if (state == State.HALF_OPEN) {
+                probeInFlight = false;
+                if (failure) {
+                    open(now);
+                } else {
+                    reset();
+                }
+                return;
+            }
+            if (state == State.OPEN) {
+                // a call started before the breaker opened
+                return;
+            }
+            if (recorded == windowSize) {
+                if (outcomes[position]) {
+                    failures--;
+                }
+            } else {
+                recorded++;
+            }
+            outcomes[position] = failure;
+            if (failure) {
+                failures++;
+            }
+            position = (position + 1) % windowSize;
+            if (recorded >= minimumCalls && failures >= failureRateThreshold * recorded) {
+                open(now);
+            }
+        }
+
+        private void open(long now) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+
+        private void reset() {
+            state = State.CLOSED;
+            recorded = 0;
+            position = 0;
+            failures = 0;
+        }
+    }
+}
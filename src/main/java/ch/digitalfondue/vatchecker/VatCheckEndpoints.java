@@ -0,0 +1,263 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiFunction;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The urls of the webservice used by a checker, see {@link EUVatChecker#withEndpoints(VatCheckEndpoints)}: the
+ * official endpoint, a caching proxy, a mirror or a local simulator.
+ *
+ * With multiple urls, each call goes first to the healthy url with the lowest average latency (an exponentially
+ * weighted moving average of the successful calls), a small share of the calls go to the second best so its
+ * latency stays known. If the call fails for a transient reason, an exception with an {@link java.io.IOException}
+ * as a cause (I/O errors and 502, 503 and 504 statuses with {@link HttpDocumentFetcher}), it's tried on the next
+ * url, in order of latency. After <code>failureThreshold</code> consecutive failures a url is unhealthy and skipped
+ * for <code>cooldown</code>; when all the urls are unhealthy they are all tried, in the given order.
+ *
+ * Any other exception (e.g. a 4xx status) is thrown at once, without trying the other urls. Neither these nor the
+ * faults answered by the webservice (e.g. MS_UNAVAILABLE) are failures of the url.
+ *
+ * Instances are thread-safe and can be shared by multiple checkers.
+ */
+public class VatCheckEndpoints {
+
+    private static final double EWMA_WEIGHT = 0.2;
+    private static final double EXPLORATION_RATE = 0.05;
+
+    private final Endpoint[] endpoints;
+    private final List<String> urls;
+    private final int failureThreshold;
+    private final long cooldownNanos;
+    private final Ticker ticker;
+    private final DoubleSupplier random;
+
+    /**
+     * Use the given urls, a url being unhealthy for 30 seconds after 3 consecutive failures.
+     *
+     * @param urls the urls
+     */
+    public VatCheckEndpoints(String... urls) {
+        this(Arrays.asList(urls), 3, Duration.ofSeconds(30));
+    }
+
+    /**
+     * @param urls             the urls, in order of preference when their latency is not known
+     * @param failureThreshold number of consecutive failures after which a url is unhealthy
+     * @param cooldown         how long an unhealthy url is skipped
+     */
+    public VatCheckEndpoints(List<String> urls, int failureThreshold, Duration cooldown) {
+        this(urls, failureThreshold, cooldown, Ticker.SYSTEM, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    VatCheckEndpoints(List<String> urls, int failureThreshold, Duration cooldown, Ticker ticker, DoubleSupplier random) {
+        Objects.requireNonNull(urls, "urls cannot be null");
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("urls cannot be empty");
+        }
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+        Objects.requireNonNull(cooldown, "cooldown cannot be null");
+        if (cooldown.isNegative()) {
+            throw new IllegalArgumentException("cooldown cannot be negative");
+        }
+        this.endpoints = new Endpoint[urls.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(Objects.requireNonNull(urls.get(i), "url cannot be null"));
+        }
+        this.urls = Collections.unmodifiableList(new ArrayList<>(urls));
+        this.failureThreshold = failureThreshold;
+        this.cooldownNanos = cooldown.toNanos();
+        this.ticker = ticker;
+        this.random = random;
+    }
+
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * @param url one of the urls
+     * @return false if the url is skipped after too many consecutive failures
+     */
+    public boolean isHealthy(String url) {
+        return endpoint(url).isHealthy(ticker.nanoTime());
+    }
+
+    /**
+     * @param url one of the urls
+     * @return the average latency of the successful calls, null if none succeeded yet
+     */
+    public Duration getLatency(String url) {
+        long latency = endpoint(url).latencyNanos;
+        return latency < 0 ? null : Duration.ofNanos(latency);
+    }
+
+    private Endpoint endpoint(String url) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.url.equals(url)) {
+                return endpoint;
+            }
+        }
+        throw new IllegalArgumentException("Unknown url " + url);
+    }
+
+    InputStream fetch(String body, BiFunction<String, String, InputStream> documentFetcher) {
+        if (endpoints.length == 1) {
+            return documentFetcher.apply(endpoints[0].url, body);
+        }
+        RuntimeException failure = null;
+        for (Endpoint endpoint : order()) {
+            long start = ticker.nanoTime();
+            try {
+                InputStream is = documentFetcher.apply(endpoint.url, body);
+                endpoint.success(ticker.nanoTime() - start);
+                return is;
+            } catch (RuntimeException e) {
+                if (!RetryPolicy.isRetryable(e)) {
+                    throw suppress(e, failure);
+                }
+                endpoint.failure(ticker.nanoTime());
+                failure = suppress(e, failure);
+            }
+        }
+        throw failure;
+    }
+
+    CompletableFuture<InputStream> fetchAsync(String body, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher) {
+        if (endpoints.length == 1) {
+            return asyncDocumentFetcher.apply(endpoints[0].url, body);
+        }
+        CompletableFuture<InputStream> result = new CompletableFuture<>();
+        fetchAsync(order(), 0, body, asyncDocumentFetcher, null, result);
+        return result;
+    }
+
+    private void fetchAsync(Endpoint[] order, int index, String body, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher,
+                            Throwable previous, CompletableFuture<InputStream> result) {
+        Endpoint endpoint = order[index];
+        long start = ticker.nanoTime();
+        CompletableFuture<InputStream> fetched;
+        try {
+            fetched = asyncDocumentFetcher.apply(endpoint.url, body);
+        } catch (RuntimeException e) {
+            fetched = new CompletableFuture<>();
+            fetched.completeExceptionally(e);
+        }
+        fetched.whenComplete((is, error) -> {
+            if (error == null) {
+                endpoint.success(ticker.nanoTime() - start);
+                result.complete(is);
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (!RetryPolicy.isRetryable(cause)) {
+                result.completeExceptionally(suppress(cause, previous));
+                return;
+            }
+            endpoint.failure(ticker.nanoTime());
+            if (index + 1 < order.length) {
+                fetchAsync(order, index + 1, body, asyncDocumentFetcher, suppress(cause, previous), result);
+            } else {
+                result.completeExceptionally(suppress(cause, previous));
+            }
+        });
+    }
+
+    private static <T extends Throwable> T suppress(T failure, Throwable previous) {
+        if (previous != null && previous != failure) {
+            failure.addSuppressed(previous);
+        }
+        return failure;
+    }
+
+    /**
+     * The healthy urls by latency (unknown first), then the unhealthy ones. Occasionally the two best are swapped.
+     */
+    Endpoint[] order() {
+        long now = ticker.nanoTime();
+        Endpoint[] order = new Endpoint[endpoints.length];
+        int healthy = 0;
+        int unhealthy = endpoints.length;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isHealthy(now)) {
+                order[healthy++] = endpoint;
+            } else {
+                order[--unhealthy] = endpoint;
+            }
+        }
+        // insertion sort, stable: the given order is kept between equal latencies
+        for (int i = 1; i < healthy; i++) {
+            Endpoint endpoint = order[i];
+            long latency = endpoint.latencyNanos;
+            int j = i - 1;
+            while (j >= 0 && order[j].latencyNanos > latency) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = endpoint;
+        }
+        // the unhealthy ones were added from the end
+        Collections.reverse(Arrays.asList(order).subList(healthy, order.length));
+        if (healthy >= 2 && random.getAsDouble() < EXPLORATION_RATE) {
+            Endpoint first = order[0];
+            order[0] = order[1];
+            order[1] = first;
+        }
+        return order;
+    }
+
+    final class Endpoint {
+        final String url;
+        private volatile long latencyNanos = -1;
+        private int consecutiveFailures;
+        private long unhealthyUntil;
+
+        private Endpoint(String url) {
+            this.url = url;
+        }
+
+        private synchronized boolean isHealthy(long now) {
+            return consecutiveFailures < failureThreshold || now - unhealthyUntil >= 0;
+        }
+
+        private synchronized void success(long nanos) {
+            consecutiveFailures = 0;
+            long latency = latencyNanos;
+            latencyNanos = latency < 0 ? nanos : (long) (latency + EWMA_WEIGHT * (nanos - latency));
+        }
+
+        private synchronized void failure(long now) {
+            consecutiveFailures++;
+            if (consecutiveFailures >= failureThreshold) {
+                // a failing probe after the cooldown starts a new one
+                unhealthyUntil = now + cooldownNanos;
+            }
+        }
+    }
+}
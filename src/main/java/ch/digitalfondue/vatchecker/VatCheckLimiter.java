@@ -0,0 +1,210 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Pace the calls to the webservice, see {@link EUVatChecker#withLimiter(VatCheckLimiter)}.
+ *
+ * VIES rejects bursts with the MS_MAX_CONCURRENT_REQ and GLOBAL_MAX_CONCURRENT_REQ faults: each call must obtain
+ * a permit from the global {@link Limit} and from the {@link Limit} of its country code, which combine a token
+ * bucket (requests per second with a burst size) and a maximum number of concurrent calls. Callers wait until
+ * the permits are available.
+ *
+ * Instances are thread-safe and can be shared by multiple checkers.
+ */
+public class VatCheckLimiter {
+
+    private final Ticker ticker;
+    private final Bucket global;
+    private final Limit defaultCountryLimit;
+    private final Map<String, Limit> countryLimits;
+    private final ConcurrentMap<String, Bucket> countries = new ConcurrentHashMap<>();
+
+    /**
+     * @param globalLimit         the limit for all the calls
+     * @param defaultCountryLimit the limit for each country code not present in countryLimits
+     * @param countryLimits       the limit for specific country codes
+     */
+    public VatCheckLimiter(Limit globalLimit, Limit defaultCountryLimit, Map<String, Limit> countryLimits) {
+        this(globalLimit, defaultCountryLimit, countryLimits, Ticker.SYSTEM);
+    }
+
+    VatCheckLimiter(Limit globalLimit, Limit defaultCountryLimit, Map<String, Limit> countryLimits, Ticker ticker) {
+        this.ticker = ticker;
+        this.global = new Bucket(Objects.requireNonNull(globalLimit, "globalLimit cannot be null"), ticker.nanoTime());
+        this.defaultCountryLimit = Objects.requireNonNull(defaultCountryLimit, "defaultCountryLimit cannot be null");
+        Map<String, Limit> limits = new HashMap<>();
+        for (Map.Entry<String, Limit> e : Objects.requireNonNull(countryLimits, "countryLimits cannot be null").entrySet()) {
+            limits.put(e.getKey().toUpperCase(Locale.ROOT), Objects.requireNonNull(e.getValue()));
+        }
+        this.countryLimits = limits;
+    }
+
+    <T> T call(String countryCode, Supplier<T> call) {
+        Bucket country = country(countryCode);
+        acquire(country);
+        try {
+            return call.get();
+        } finally {
+            release(country);
+        }
+    }
+
+    /**
+     * Wait for the permits of the given country code. Must be followed by a call to {@link #release(String)}.
+     */
+    void acquire(String countryCode) {
+        acquire(country(countryCode));
+    }
+
+    void release(String countryCode) {
+        release(country(countryCode));
+    }
+
+    private Bucket country(String countryCode) {
+        String key = countryCode.toUpperCase(Locale.ROOT);
+        Bucket bucket = countries.get(key);
+        if (bucket == null) {
+            bucket = countries.computeIfAbsent(key, k -> new Bucket(countryLimits.getOrDefault(k, defaultCountryLimit), ticker.nanoTime()));
+        }
+        return bucket;
+    }
+
+    private void acquire(Bucket country) {
+        try {
+            // the rate first, without holding any permit: a country waiting for its tokens must not keep the
+            // global permits from the other countries. The global token is only taken once the country's is
+            // due, so a throttled country does not consume the global rate in advance
+            sleep(country.reserve(ticker.nanoTime()));
+            sleep(global.reserve(ticker.nanoTime()));
+            // always in the same order (country, then global) so two callers cannot hold each other's permit
+            country.concurrent.acquire();
+            try {
+                global.concurrent.acquire();
+            } catch (InterruptedException e) {
+                country.concurrent.release();
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void sleep(long wait) throws InterruptedException {
+        if (wait > 0) {
+            ticker.sleep(wait);
+        }
+    }
+
+    private void release(Bucket country) {
+        global.concurrent.release();
+        country.concurrent.release();
+    }
+
+    /**
+     * A rate and concurrency limit.
+     */
+    public static class Limit {
+
+        /**
+         * No limit.
+         */
+        public static final Limit UNLIMITED = new Limit(Double.POSITIVE_INFINITY, 1, Integer.MAX_VALUE);
+
+        private final double requestsPerSecond;
+        private final int burst;
+        private final int maxConcurrent;
+
+        /**
+         * @param requestsPerSecond the sustained rate, {@link Double#POSITIVE_INFINITY} for no rate limit
+         * @param burst             the number of requests that can be done at once after an idle period
+         * @param maxConcurrent     the maximum number of calls in flight
+         */
+        public Limit(double requestsPerSecond, int burst, int maxConcurrent) {
+            if (!(requestsPerSecond > 0)) {
+                throw new IllegalArgumentException("requestsPerSecond must be positive");
+            }
+            if (burst <= 0 || maxConcurrent <= 0) {
+                throw new IllegalArgumentException("burst and maxConcurrent must be positive");
+            }
+            this.requestsPerSecond = requestsPerSecond;
+            this.burst = burst;
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        public static Limit ofRate(double requestsPerSecond, int burst) {
+            return new Limit(requestsPerSecond, burst, Integer.MAX_VALUE);
+        }
+
+        public static Limit ofConcurrency(int maxConcurrent) {
+            return new Limit(Double.POSITIVE_INFINITY, 1, maxConcurrent);
+        }
+
+        public double getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+    }
+
+    private static final class Bucket {
+
+        private final Semaphore concurrent;
+        private final boolean unlimitedRate;
+        private final double nanosPerToken;
+        private final double maxTokens;
+        private double tokens;
+        private long lastRefill;
+
+        private Bucket(Limit limit, long now) {
+            this.concurrent = new Semaphore(limit.maxConcurrent, true);
+            this.unlimitedRate = Double.isInfinite(limit.requestsPerSecond);
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / limit.requestsPerSecond;
+            this.maxTokens = limit.burst;
+            this.tokens = limit.burst;
+            this.lastRefill = now;
+        }
+
+        /**
+         * Take a token, possibly in advance: return how long the caller must wait before using it.
+         */
+        private synchronized long reserve(long now) {
+            if (unlimitedRate) {
+                return 0;
+            }
+            if (now > lastRefill) {
+                tokens = Math.min(maxTokens, tokens + (now - lastRefill) / nanosPerToken);
+                lastRefill = now;
+            }
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * nanosPerToken);
+        }
+    }
+}
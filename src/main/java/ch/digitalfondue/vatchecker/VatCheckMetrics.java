@@ -0,0 +1,65 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+/**
+ * Receive the measurements of the calls to the webservice, see {@link EUVatChecker#withMetrics(VatCheckMetrics)}.
+ *
+ * {@link VatCheckStats} is the built-in implementation, an adapter to another metrics system can implement this
+ * interface directly. The methods are called on the hot path, from multiple threads: they must be thread-safe,
+ * fast and must not throw.
+ */
+public interface VatCheckMetrics {
+
+    /**
+     * The phases of a call to the webservice.
+     */
+    enum Phase {
+        /**
+         * Writing the SOAP request.
+         */
+        PREPARE_TEMPLATE,
+        /**
+         * From sending the request to receiving the response stream, as given by the document fetcher. The wait for
+         * the permits of the limiter is not included.
+         */
+        FETCH,
+        /**
+         * Reading and parsing the response stream. Only the checkVat calls are measured.
+         */
+        PARSE
+    }
+
+    /**
+     * Called when a phase of a call is completed, successfully or not.
+     *
+     * @param countryCode the normalized country code
+     * @param phase       the phase
+     * @param nanos       the duration
+     */
+    void recordPhase(String countryCode, Phase phase, long nanos);
+
+    /**
+     * Called when a call to the webservice is completed. Each attempt of a retried check is a call, the checks
+     * answered by the cache, the store, the format validation or an open circuit breaker are not.
+     *
+     * @param countryCode the normalized country code
+     * @param response    the response, null if the call failed
+     * @param error       the exception thrown by the call, null if it completed
+     * @param nanos       the duration, including the wait for the permits of the limiter
+     */
+    void recordCall(String countryCode, EUVatCheckResponse response, Throwable error, long nanos);
+}
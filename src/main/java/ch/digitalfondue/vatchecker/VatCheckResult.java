@@ -0,0 +1,58 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+/**
+ * The outcome of a check in a batch, see {@link EUVatChecker#checkAll(java.util.Collection, int, java.util.function.Consumer)}:
+ * either a response or the exception thrown while checking.
+ */
+public class VatCheckResult {
+
+    private final VatId vatId;
+    private final EUVatCheckResponse response;
+    private final RuntimeException error;
+
+    VatCheckResult(VatId vatId, EUVatCheckResponse response, RuntimeException error) {
+        this.vatId = vatId;
+        this.response = response;
+        this.error = error;
+    }
+
+    public VatId getVatId() {
+        return vatId;
+    }
+
+    /**
+     * @return true if the check completed, see {@link #getResponse()}, false if it failed, see {@link #getError()}
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return the response, null if the check failed
+     */
+    public EUVatCheckResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return the exception thrown while checking, null if the check completed
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+}
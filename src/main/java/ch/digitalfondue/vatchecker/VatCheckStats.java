@@ -0,0 +1,138 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The built-in {@link VatCheckMetrics}: counts the outcomes of the calls and keeps a {@link LatencyHistogram} of
+ * the calls and of each {@link VatCheckMetrics.Phase}, for each country code.
+ *
+ * <pre>
+ * VatCheckStats stats = new VatCheckStats();
+ * EUVatChecker checker = new EUVatChecker().withMetrics(stats);
+ * ...
+ * long p99 = stats.getCallLatency("DE").getValueAtPercentile(99, TimeUnit.MILLISECONDS);
+ * </pre>
+ *
+ * Instances are thread-safe and can be shared by multiple checkers.
+ */
+public class VatCheckStats implements VatCheckMetrics {
+
+    private static final EUVatCheckResponse.Status[] STATUSES = EUVatCheckResponse.Status.values();
+    private static final Phase[] PHASES = Phase.values();
+
+    private final ConcurrentMap<String, CountryStats> countries = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordPhase(String countryCode, Phase phase, long nanos) {
+        country(countryCode).phases[phase.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void recordCall(String countryCode, EUVatCheckResponse response, Throwable error, long nanos) {
+        CountryStats stats = country(countryCode);
+        stats.calls.record(nanos);
+        if (response != null) {
+            stats.statuses[response.getStatus().ordinal()].increment();
+        } else {
+            stats.errors.increment();
+        }
+    }
+
+    private CountryStats country(String countryCode) {
+        CountryStats stats = countries.get(countryCode);
+        if (stats == null) {
+            stats = countries.computeIfAbsent(countryCode, k -> new CountryStats());
+        }
+        return stats;
+    }
+
+    /**
+     * @return the country codes that have been called, sorted
+     */
+    public Set<String> getCountryCodes() {
+        return Collections.unmodifiableSet(new TreeSet<>(countries.keySet()));
+    }
+
+    /**
+     * @param countryCode the country code
+     * @return the number of calls, completed or failed
+     */
+    public long getCallCount(String countryCode) {
+        CountryStats stats = countries.get(countryCode);
+        return stats == null ? 0 : stats.calls.getCount();
+    }
+
+    /**
+     * @param countryCode the country code
+     * @param status      the status of the response
+     * @return the number of calls that completed with a response with the given status
+     */
+    public long getCallCount(String countryCode, EUVatCheckResponse.Status status) {
+        CountryStats stats = countries.get(countryCode);
+        return stats == null ? 0 : stats.statuses[status.ordinal()].sum();
+    }
+
+    /**
+     * @param countryCode the country code
+     * @return the number of calls that failed with an exception
+     */
+    public long getErrorCount(String countryCode) {
+        CountryStats stats = countries.get(countryCode);
+        return stats == null ? 0 : stats.errors.sum();
+    }
+
+    /**
+     * @param countryCode the country code
+     * @return the latency of the calls, empty if the country code has not been called
+     */
+    public LatencyHistogram getCallLatency(String countryCode) {
+        CountryStats stats = countries.get(countryCode);
+        return stats == null ? new LatencyHistogram() : stats.calls;
+    }
+
+    /**
+     * @param countryCode the country code
+     * @param phase       the phase
+     * @return the duration of the given phase, empty if the country code has not been called
+     */
+    public LatencyHistogram getPhaseLatency(String countryCode, Phase phase) {
+        CountryStats stats = countries.get(countryCode);
+        return stats == null ? new LatencyHistogram() : stats.phases[phase.ordinal()];
+    }
+
+    private static final class CountryStats {
+        private final LatencyHistogram calls = new LatencyHistogram();
+        private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+        private final LongAdder[] statuses = new LongAdder[STATUSES.length];
+        private final LongAdder errors = new LongAdder();
+
+        private CountryStats() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = new LongAdder();
+            }
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store of {@link EUVatCheckResponse}, see {@link EUVatChecker#withStore(VatCheckStore)}.
+ *
+ * The valid and invalid responses are appended to a log file, keyed by {@link VatId} and with the time they were
+ * received. The whole log is read when the store is opened, so the responses received before a restart are
+ * available at once, until their time to live expires. The writes are done in the background by a single thread,
+ * which syncs the file to the disk after each batch. The faults are not stored.
+ *
+ * Each record carries a checksum: if the process crashed while writing, the partially written tail is discarded
+ * when opening the store. If a write fails, the file is cut back to the end of the last complete record. When most of the records have been superseded or have expired, the log is rewritten in a
+ * temporary file which then atomically replaces it.
+ *
+ * The responses received after the store has been closed, or whose write failed, are not persisted, see
+ * {@link #getDroppedWriteCount()}.
+ *
+ * Instances are thread-safe and must be closed.
+ */
+public class VatCheckStore implements Closeable {
+
+    private static final int MAGIC = 0x56415432; // VAT2
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private final Path file;
+    private final long validTtlMillis;
+    private final long invalidTtlMillis;
+    private final LongSupplier clock;
+    private final ConcurrentMap<VatId, Record> index = new ConcurrentHashMap<>();
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder droppedWrites = new LongAdder();
+
+    // only used by the writer thread once opened
+    private FileChannel channel;
+    private long recordsInFile;
+    // guarded by queue: nothing is queued after CLOSE
+    private boolean closed;
+
+    private static final Object CLOSE = new Object();
+
+    /**
+     * Open the store, creating the file if it does not exist.
+     *
+     * @param file       the log file
+     * @param validTtl   time to live of the valid responses
+     * @param invalidTtl time to live of the invalid responses
+     */
+    public VatCheckStore(Path file, Duration validTtl, Duration invalidTtl) {
+        this(file, validTtl, invalidTtl, System::currentTimeMillis);
+    }
+
+    VatCheckStore(Path file, Duration validTtl, Duration invalidTtl, LongSupplier clock) {
+        this.file = Objects.requireNonNull(file, "file cannot be null");
+        this.validTtlMillis = ttl(validTtl, "validTtl");
+        this.invalidTtlMillis = ttl(invalidTtl, "invalidTtl");
+        this.clock = clock;
+        try {
+            Files.deleteIfExists(compactionFile());
+            this.channel = recover();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        this.writer = new Thread(this::writeLoop, "vatchecker-store");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static long ttl(Duration ttl, String name) {
+        Objects.requireNonNull(ttl, name + " cannot be null");
+        if (ttl.isNegative()) {
+            throw new IllegalArgumentException(name + " cannot be negative");
+        }
+        return ttl.toMillis();
+    }
+
+    private Path compactionFile() {
+        return file.resolveSibling(file.getFileName() + ".compact");
+    }
+
+    /**
+     * Load the valid records and cut the file after the last one.
+     */
+    private FileChannel recover() throws IOException {
+        FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLength = 0;
+        if (fc.size() >= 4) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(fc.position(0))));
+            if (in.readInt() != MAGIC) {
+                fc.close();
+                throw new IllegalStateException(file + " is not a vat check store");
+            }
+            validLength = 4;
+            long now = clock.getAsLong();
+            Record record;
+            while ((record = readRecord(in)) != null) {
+                validLength += 8 + record.encodedLength;
+                recordsInFile++;
+                // the last record wins, even if expired: it supersedes the earlier ones
+                if (record.isExpired(now)) {
+                    index.remove(record.vatId);
+                } else {
+                    index.put(record.vatId, record);
+                }
+            }
+        }
+        if (validLength == 0) {
+            fc.truncate(0);
+            fc.write(ByteBuffer.allocate(4).putInt(0, MAGIC), 0);
+            validLength = 4;
+        } else if (fc.size() > validLength) {
+            fc.truncate(validLength);
+        }
+        fc.force(true);
+        fc.position(validLength);
+        return fc;
+    }
+
+    /**
+     * Return null at the end of the log or on the first truncated or corrupted record.
+     */
+    private Record readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            int checksum = in.readInt();
+            if (checksum != checksum(payload)) {
+                return null;
+            }
+            return Record.decode(payload, this);
+        } catch (EOFException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Return the stored response, if not expired.
+     */
+    EUVatCheckResponse getIfPresent(VatId vatId) {
+        Record record = index.get(vatId);
+        if (record != null && record.isExpired(clock.getAsLong())) {
+            index.remove(vatId, record);
+            record = null;
+        }
+        if (record == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return record.response;
+    }
+
+    /**
+     * Return the stored response, or call the loader and store its outcome.
+     */
+    EUVatCheckResponse get(VatId vatId, Supplier<EUVatCheckResponse> loader) {
+        EUVatCheckResponse stored = getIfPresent(vatId);
+        if (stored != null) {
+            return stored;
+        }
+        EUVatCheckResponse response = loader.get();
+        put(vatId, response);
+        return response;
+    }
+
+    /**
+     * Store the response in the background. The faults are ignored, and so are the responses received once the
+     * store has been closed: a good response must not fail the check because the store cannot take it.
+     */
+    void put(VatId vatId, EUVatCheckResponse response) {
+        if (!isStored(response.getStatus())) {
+            return;
+        }
+        Record record = new Record(vatId, clock.getAsLong(), response, this);
+        if (record.isExpired(record.receivedAt)) {
+            return;
+        }
+        synchronized (queue) {
+            if (closed) {
+                droppedWrites.increment();
+                return;
+            }
+            index.put(vatId, record);
+            queue.add(record);
+        }
+    }
+
+    private static boolean isStored(EUVatCheckResponse.Status status) {
+        return status == EUVatCheckResponse.Status.VALID || status == EUVatCheckResponse.Status.INVALID;
+    }
+
+    /**
+     * Wait until the responses stored before this call have been written and synced to the disk. Once closed, there
+     * is nothing left to write and this returns at once.
+     */
+    public void flush() {
+        awaitWriter(new Flush(false));
+    }
+
+    /**
+     * Rewrite the log with only the current responses. This is done automatically when the log has grown. Once
+     * closed, this does nothing.
+     */
+    public void compact() {
+        awaitWriter(new Flush(true));
+    }
+
+    private void awaitWriter(Flush flush) {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            queue.add(flush);
+        }
+        flush.done.join();
+    }
+
+    /**
+     * Write the pending responses and close the file.
+     */
+    @Override
+    public void close() {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(CLOSE);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of responses, including the expired ones that have not been removed yet
+     */
+    public int size() {
+        return index.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of valid or invalid responses that have not been written to the log
+     */
+    public long getDroppedWriteCount() {
+        return droppedWrites.sum();
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+            } catch (InterruptedException e) {
+                // only closing stops the writer
+                continue;
+            }
+            List<Flush> flushes = new ArrayList<>();
+            boolean compact = false;
+            int records = 0;
+            Throwable failure = null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Object item : batch) {
+                if (item instanceof Record) {
+                    if (encode((Record) item, out)) {
+                        records++;
+                    } else {
+                        droppedWrites.increment();
+                    }
+                } else if (item instanceof Flush) {
+                    flushes.add((Flush) item);
+                    compact |= ((Flush) item).compact;
+                } else if (item == CLOSE) {
+                    running = false;
+                }
+            }
+            long position = -1;
+            try {
+                position = channel.position();
+                ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                recordsInFile += records;
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                droppedWrites.add(records);
+                truncate(position);
+            }
+            if (failure == null && (compact || (recordsInFile > MIN_COMPACTION_RECORDS && recordsInFile > 2L * index.size()))) {
+                try {
+                    rewrite();
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+            }
+            for (Flush flush : flushes) {
+                if (failure != null) {
+                    flush.done.completeExceptionally(failure);
+                } else {
+                    flush.done.complete(null);
+                }
+            }
+            batch.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more can be done
+        }
+    }
+
+    private static boolean encode(Record record, ByteArrayOutputStream out) {
+        try {
+            return record.encode(out);
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            return false;
+        }
+    }
+
+    /**
+     * Cut a partially written batch, so that the next records are appended after the last complete one. If this
+     * fails too, the tail is discarded when opening the store, with everything written after it.
+     */
+    private void truncate(long position) {
+        if (position < 0) {
+            return;
+        }
+        try {
+            channel.truncate(position);
+            channel.position(position);
+        } catch (IOException | RuntimeException e) {
+            // nothing more can be done
+        }
+    }
+
+    private void rewrite() throws IOException {
+        Path compacted = compactionFile();
+        long now = clock.getAsLong();
+        long count = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(compacted))) {
+            new DataOutputStream(out).writeInt(MAGIC);
+            for (Record record : index.values()) {
+                if (record.isExpired(now)) {
+                    index.remove(record.vatId, record);
+                } else if (record.encode(out)) {
+                    count++;
+                }
+            }
+        }
+        try (FileChannel fc = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+            fc.force(true);
+        }
+        channel.close();
+        try {
+            Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            recordsInFile = count;
+        } finally {
+            // the previous log is still complete if the move failed
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+    }
+
+    private static final class Flush {
+        private final boolean compact;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Flush(boolean compact) {
+            this.compact = compact;
+        }
+    }
+
+    private static final class Record {
+        private static final EUVatCheckResponse.Status[] STATUSES = EUVatCheckResponse.Status.values();
+
+        private final VatId vatId;
+        private final long receivedAt;
+        private final long expiresAt;
+        private final EUVatCheckResponse response;
+        private final int encodedLength;
+
+        private Record(VatId vatId, long receivedAt, EUVatCheckResponse response, VatCheckStore store) {
+            this(vatId, receivedAt, response, store, 0);
+        }
+
+        private Record(VatId vatId, long receivedAt, EUVatCheckResponse response, VatCheckStore store, int encodedLength) {
+            this.vatId = vatId;
+            this.receivedAt = receivedAt;
+            this.expiresAt = receivedAt + (response.isValid() ? store.validTtlMillis : store.invalidTtlMillis);
+            this.response = response;
+            this.encodedLength = encodedLength;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        /**
+         * Write the length, the payload and its checksum.
+         *
+         * @return false if the record is too large to be read back, nothing is written then
+         */
+        private boolean encode(OutputStream out) throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+            DataOutputStream data = new DataOutputStream(payload);
+            data.writeLong(receivedAt);
+            writeString(data, vatId.getCountryCode());
+            writeString(data, vatId.getVatNumber());
+            data.writeByte(response.getStatus().ordinal());
+            writeString(data, response.getName());
+            writeString(data, response.getAddress());
+            writeString(data, response.getCountryCode());
+            writeString(data, response.getVatNumber());
+            writeString(data, response.getRequestDateText());
+            byte[] bytes = payload.toByteArray();
+            if (bytes.length > MAX_RECORD_SIZE) {
+                return false;
+            }
+            DataOutputStream framed = new DataOutputStream(out);
+            framed.writeInt(bytes.length);
+            framed.write(bytes);
+            framed.writeInt(checksum(bytes));
+            framed.flush();
+            return true;
+        }
+
+        private static Record decode(byte[] payload, VatCheckStore store) throws IOException {
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+            long receivedAt = data.readLong();
+            VatId vatId = new VatId(readString(data), readString(data));
+            int ordinal = data.readUnsignedByte();
+            if (ordinal >= STATUSES.length || !isStored(STATUSES[ordinal])) {
+                throw new IllegalArgumentException("Unexpected status " + ordinal);
+            }
+            EUVatCheckResponse.Status status = STATUSES[ordinal];
+            EUVatCheckResponse response = new EUVatCheckResponse(status == EUVatCheckResponse.Status.VALID,
+                    readString(data), readString(data), readString(data), readString(data), readString(data));
+            return new Record(vatId, receivedAt, response, store, payload.length);
+        }
+
+        /**
+         * The UTF-8 bytes prefixed by their int length, -1 for null. Unlike writeUTF, there is no 64KB limit.
+         */
+        private static void writeString(DataOutputStream data, String value) throws IOException {
+            if (value == null) {
+                data.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+
+        private static String readString(DataInputStream data) throws IOException {
+            int length = data.readInt();
+            if (length == -1) {
+                return null;
+            }
+            if (length < 0 || length > data.available()) {
+                throw new IllegalArgumentException("Unexpected length " + length);
+            }
+            byte[] bytes = new byte[length];
+            data.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.Objects;
+
+/**
+ * A vat identification number: country code and number, in their canonical form.
+ *
+ * The values are normalized when creating the instance: spaces, dots and dashes are removed, the letters are upper
+ * cased, the country code repeated at the start of the number is removed and the GR country code is replaced by EL,
+ * as used by VIES. Thus <code>VatId.of("it", "IT 009.505.010-07")</code> is equal to
+ * <code>VatId.of("IT", "00950501007")</code>.
+ *
+ * The prefix is removed once: <code>VatId.of("IT", "ITIT00950501007")</code> has the number IT00950501007, which
+ * will be reported as invalid rather than silently corrected. For FR the prefix is removed only when the number is
+ * longer than the 11 characters of a french number, as FR is also a valid key of a french number.
+ *
+ * The hash code only depends on the normalized values (see {@link String#hashCode()}), so it's stable across
+ * runs and suitable as a cache or deduplication key.
+ */
+public final class VatId {
+
+    private final String countryCode;
+    private final String vatNumber;
+    private final int hash;
+
+    /**
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, GR is accepted and replaced. See http://ec.europa.eu/taxation_customs/vies/faq.html#item_11
+     * @param vatNumber   the vat number, optionally prefixed by the country code
+     */
+    public VatId(String countryCode, String vatNumber) {
+        this.countryCode = normalizeCountryCode(Objects.requireNonNull(countryCode, "countryCode cannot be null"));
+        this.vatNumber = normalizeVatNumber(this.countryCode, Objects.requireNonNull(vatNumber, "vatNumber cannot be null"));
+        this.hash = 31 * this.countryCode.hashCode() + this.vatNumber.hashCode();
+    }
+
+    public static VatId of(String countryCode, String vatNumber) {
+        return new VatId(countryCode, vatNumber);
+    }
+
+    /**
+     * @param vatId a vat identification number prefixed by its country code, e.g. "IT 00950501007"
+     * @return the parsed vat identification number
+     */
+    public static VatId parse(String vatId) {
+        Objects.requireNonNull(vatId, "vatId cannot be null");
+        String stripped = stripSeparators(vatId);
+        if (stripped.length() < 2) {
+            throw new IllegalArgumentException("Missing country code in " + vatId);
+        }
+        return new VatId(stripped.substring(0, 2), stripped.substring(2));
+    }
+
+    public String getCountryCode() {
+        return countryCode;
+    }
+
+    public String getVatNumber() {
+        return vatNumber;
+    }
+
+    static String normalizeCountryCode(String countryCode) {
+        String normalized = stripSeparators(countryCode);
+        return "GR".equals(normalized) ? "EL" : normalized;
+    }
+
+    /**
+     * Remove a single country code prefix, see the class documentation.
+     */
+    private static String normalizeVatNumber(String countryCode, String vatNumber) {
+        String normalized = stripSeparators(vatNumber);
+        if (hasPrefix(normalized, countryCode) || ("EL".equals(countryCode) && hasPrefix(normalized, "GR"))) {
+            return normalized.substring(2);
+        }
+        return normalized;
+    }
+
+    private static boolean hasPrefix(String vatNumber, String countryCode) {
+        if (countryCode.length() != 2 || !vatNumber.startsWith(countryCode)) {
+            return false;
+        }
+        // "FR" is also a valid key of a 11 character french number
+        return !"FR".equals(countryCode) || vatNumber.length() > 11;
+    }
+
+    /**
+     * Remove the spaces, dots and dashes and upper case the letters. No copy is done if the value is already
+     * normalized.
+     */
+    static String stripSeparators(String value) {
+        StringBuilder sb = null;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            boolean separator = c == '.' || c == '-' || Character.isWhitespace(c);
+            boolean lowerCase = c >= 'a' && c <= 'z';
+            if (sb == null && (separator || lowerCase)) {
+                sb = new StringBuilder(length).append(value, 0, i);
+            }
+            if (sb != null && !separator) {
+                sb.append(lowerCase ? (char) (c - ('a' - 'A')) : c);
+            }
+        }
+        return sb == null ? value : sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VatId)) {
+            return false;
+        }
+        VatId other = (VatId) o;
+        return hash == other.hash && countryCode.equals(other.countryCode) && vatNumber.equals(other.vatNumber);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return countryCode + vatNumber;
+    }
+}
@@ -0,0 +1,381 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Local syntax and check digit rules of the vat numbers of each member state, see
+ * {@link EUVatChecker#withFormatValidation()}.
+ *
+ * The rules are lenient: a number is rejected only when it cannot be valid, when the check digits of a format are
+ * not implemented only the syntax is verified. Spaces, dots and dashes are ignored. Greece is EL, GR is accepted
+ * and replaced, as in {@link VatId}.
+ */
+public final class VatNumberFormat {
+
+    private static final Map<String, Rule> RULES;
+
+    static {
+        Map<String, Rule> rules = new HashMap<>();
+        rule(rules, "AT", "U[0-9]{8}", VatNumberFormat::at);
+        rule(rules, "BE", "[01]?[0-9]{9}", VatNumberFormat::be);
+        rule(rules, "BG", "[0-9]{9,10}", VatNumberFormat::bg);
+        rule(rules, "CY", "[0-59][0-9]{7}[A-Z]", VatNumberFormat::cy);
+        rule(rules, "CZ", "[0-9]{8,10}", VatNumberFormat::cz);
+        rule(rules, "DE", "[1-9][0-9]{8}", VatNumberFormat::mod1110);
+        rule(rules, "DK", "[1-9][0-9]{7}", VatNumberFormat::dk);
+        rule(rules, "EE", "10[0-9]{7}", VatNumberFormat::ee);
+        rule(rules, "EL", "[0-9]{9}", VatNumberFormat::el);
+        rule(rules, "ES", "[0-9A-Z][0-9]{7}[0-9A-Z]", VatNumberFormat::es);
+        rule(rules, "FI", "[0-9]{8}", VatNumberFormat::fi);
+        rule(rules, "FR", "[0-9A-HJ-NP-Z]{2}[0-9]{9}", VatNumberFormat::fr);
+        rule(rules, "HR", "[0-9]{11}", VatNumberFormat::mod1110);
+        rule(rules, "HU", "[0-9]{8}", VatNumberFormat::hu);
+        rule(rules, "IE", "[0-9][0-9A-Z+*][0-9]{5}[A-Z]{1,2}", VatNumberFormat::ie);
+        rule(rules, "IT", "[0-9]{11}", VatNumberFormat::luhn);
+        rule(rules, "LT", "[0-9]{9}|[0-9]{12}", VatNumberFormat::lt);
+        rule(rules, "LU", "[0-9]{8}", VatNumberFormat::lu);
+        rule(rules, "LV", "[0-9]{11}", null);
+        rule(rules, "MT", "[1-9][0-9]{7}", VatNumberFormat::mt);
+        rule(rules, "NL", "[0-9]{9}B[0-9]{2}", VatNumberFormat::nl);
+        rule(rules, "PL", "[0-9]{10}", VatNumberFormat::pl);
+        rule(rules, "PT", "[1-9][0-9]{8}", VatNumberFormat::pt);
+        rule(rules, "RO", "[1-9][0-9]{1,9}", VatNumberFormat::ro);
+        rule(rules, "SE", "[0-9]{10}01", VatNumberFormat::se);
+        rule(rules, "SI", "[1-9][0-9]{7}", VatNumberFormat::si);
+        rule(rules, "SK", "[1-9][0-9]{9}", VatNumberFormat::sk);
+        rule(rules, "XI", "[0-9]{9}|[0-9]{12}|GD[0-4][0-9]{2}|HA[5-9][0-9]{2}", null);
+        RULES = Collections.unmodifiableMap(rules);
+    }
+
+    private VatNumberFormat() {
+    }
+
+    private static void rule(Map<String, Rule> rules, String countryCode, String pattern, Predicate<String> checkDigits) {
+        rules.put(countryCode, new Rule(Pattern.compile(pattern), checkDigits));
+    }
+
+    /**
+     * @return the country codes accepted by the webservice
+     */
+    public static Set<String> countryCodes() {
+        return RULES.keySet();
+    }
+
+    /**
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, GR is accepted and replaced.
+     * @return true if the country code is accepted by the webservice
+     */
+    public static boolean isKnownCountryCode(String countryCode) {
+        Objects.requireNonNull(countryCode, "countryCode cannot be null");
+        return RULES.containsKey(VatId.normalizeCountryCode(countryCode));
+    }
+
+    /**
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, GR is accepted and replaced.
+     * @param vatNumber   the vat number, without the country code
+     * @return true if the country code is known and the vat number satisfies its syntax and check digits
+     */
+    public static boolean isValid(String countryCode, String vatNumber) {
+        Objects.requireNonNull(countryCode, "countryCode cannot be null");
+        Objects.requireNonNull(vatNumber, "vatNumber cannot be null");
+        Rule rule = RULES.get(VatId.normalizeCountryCode(countryCode));
+        if (rule == null) {
+            return false;
+        }
+        String number = VatId.stripSeparators(vatNumber);
+        return rule.pattern.matcher(number).matches() && (rule.checkDigits == null || rule.checkDigits.test(number));
+    }
+
+    /**
+     * Return null if the number may be valid, else the response the webservice would have given.
+     */
+    static EUVatCheckResponse reject(String countryCode, String vatNumber) {
+        if (!isKnownCountryCode(countryCode)) {
+            return EUVatCheckResponse.fault("INVALID_INPUT");
+        }
+        return isValid(countryCode, vatNumber) ? null : new EUVatCheckResponse(false, null, null, countryCode, vatNumber, null);
+    }
+
+    private static int digit(String number, int index) {
+        return number.charAt(index) - '0';
+    }
+
+    private static int weightedSum(String number, int from, int... weights) {
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += digit(number, from + i) * weights[i];
+        }
+        return sum;
+    }
+
+    // check digits algorithms, the numbers have already been matched against the pattern
+
+    private static boolean at(String number) {
+        int sum = 0;
+        for (int i = 0; i < 7; i++) {
+            int d = digit(number, 1 + i) * (i % 2 == 1 ? 2 : 1);
+            sum += d / 10 + d % 10;
+        }
+        return (10 - (sum + 4) % 10) % 10 == digit(number, 8);
+    }
+
+    private static boolean be(String number) {
+        String n = number.length() == 9 ? "0" + number : number;
+        int base = Integer.parseInt(n.substring(0, 8));
+        return 97 - base % 97 == Integer.parseInt(n.substring(8));
+    }
+
+    private static boolean bg(String number) {
+        if (number.length() == 10) {
+            // several schemes depending on the kind of person
+            return true;
+        }
+        int check = weightedSum(number, 0, 1, 2, 3, 4, 5, 6, 7, 8) % 11;
+        if (check == 10) {
+            check = weightedSum(number, 0, 3, 4, 5, 6, 7, 8, 9, 10) % 11 % 10;
+        }
+        return check == digit(number, 8);
+    }
+
+    private static final int[] CY_ODD_POSITIONS = {1, 0, 5, 7, 9, 13, 15, 17, 19, 21};
+
+    private static boolean cy(String number) {
+        int sum = 0;
+        for (int i = 0; i < 8; i++) {
+            sum += i % 2 == 0 ? CY_ODD_POSITIONS[digit(number, i)] : digit(number, i);
+        }
+        return number.charAt(8) == 'A' + sum % 26;
+    }
+
+    private static boolean cz(String number) {
+        if (number.length() != 8) {
+            // individuals: derived from the birth number
+            return true;
+        }
+        return number.charAt(0) != '9' && (11 - weightedSum(number, 0, 8, 7, 6, 5, 4, 3, 2) % 11) % 10 == digit(number, 7);
+    }
+
+    /**
+     * ISO 7064 MOD 11,10, used by DE and HR.
+     */
+    private static boolean mod1110(String number) {
+        int last = number.length() - 1;
+        int product = 10;
+        for (int i = 0; i < last; i++) {
+            int sum = (digit(number, i) + product) % 10;
+            product = (sum == 0 ? 10 : sum) * 2 % 11;
+        }
+        return (11 - product) % 10 == digit(number, last);
+    }
+
+    private static boolean dk(String number) {
+        return weightedSum(number, 0, 2, 7, 6, 5, 4, 3, 2, 1) % 11 == 0;
+    }
+
+    private static boolean ee(String number) {
+        return (10 - weightedSum(number, 0, 3, 7, 1, 3, 7, 1, 3, 7) % 10) % 10 == digit(number, 8);
+    }
+
+    private static boolean el(String number) {
+        return weightedSum(number, 0, 256, 128, 64, 32, 16, 8, 4, 2) % 11 % 10 == digit(number, 8);
+    }
+
+    private static final String ES_DNI_LETTERS = "TRWAGMYFPDXBNJZSQVHLCKE";
+
+    /**
+     * DNI (digits then a letter) and NIE (X, Y or Z for 0, 1 or 2) of the natural persons, and K, L, M for the
+     * persons without a DNI or NIE: a letter from the number mod 23. CIF of the legal entities: a Luhn check digit,
+     * or the corresponding letter.
+     */
+    private static boolean es(String number) {
+        char first = number.charAt(0);
+        char last = number.charAt(8);
+        if (Character.isDigit(first)) {
+            return last == ES_DNI_LETTERS.charAt(Integer.parseInt(number.substring(0, 8)) % 23);
+        }
+        int nie = "XYZ".indexOf(first);
+        if (nie >= 0) {
+            return last == ES_DNI_LETTERS.charAt(Integer.parseInt(nie + number.substring(1, 8)) % 23);
+        }
+        if ("KLM".indexOf(first) >= 0) {
+            return last == ES_DNI_LETTERS.charAt(Integer.parseInt(number.substring(1, 8)) % 23);
+        }
+        if ("ABCDEFGHJNPQRSUVW".indexOf(first) < 0) {
+            // no published scheme
+            return true;
+        }
+        int sum = 0;
+        for (int i = 1; i < 8; i++) {
+            int d = digit(number, i) * (i % 2 == 1 ? 2 : 1);
+            sum += d / 10 + d % 10;
+        }
+        int check = (10 - sum % 10) % 10;
+        return last == '0' + check || last == "JABCDEFGHI".charAt(check);
+    }
+
+    private static boolean fi(String number) {
+        int remainder = weightedSum(number, 0, 7, 9, 10, 5, 8, 4, 2) % 11;
+        return remainder != 1 && (remainder == 0 ? 0 : 11 - remainder) == digit(number, 7);
+    }
+
+    private static final String FR_KEY_ALPHABET = "0123456789ABCDEFGHJKLMNPQRSTUVWXYZ";
+
+    /**
+     * The numeric key is derived from the SIREN mod 97, the alphanumeric keys of the newer numbers mod 11.
+     */
+    private static boolean fr(String number) {
+        int siren = Integer.parseInt(number.substring(2));
+        if (Character.isDigit(number.charAt(0)) && Character.isDigit(number.charAt(1))) {
+            return (12 + 3 * (siren % 97)) % 97 == Integer.parseInt(number.substring(0, 2));
+        }
+        int first = FR_KEY_ALPHABET.indexOf(number.charAt(0));
+        int second = FR_KEY_ALPHABET.indexOf(number.charAt(1));
+        int check = Character.isDigit(number.charAt(0)) ? first * 24 + second - 10 : first * 34 + second - 100;
+        return (siren + 1 + check / 11) % 11 == check % 11;
+    }
+
+    private static boolean hu(String number) {
+        return (10 - weightedSum(number, 0, 9, 7, 3, 1, 9, 7, 3) % 10) % 10 == digit(number, 7);
+    }
+
+    private static final String IE_LETTERS = "WABCDEFGHIJKLMNOPQRSTUV";
+
+    /**
+     * Weights 8 to 2 on seven digits, plus 9 times the second letter of the numbers issued since 2013, mod 23. The
+     * old numbers, with a letter or symbol in second position, have their digits rotated.
+     */
+    private static boolean ie(String number) {
+        String digits;
+        int extra = 0;
+        if (Character.isDigit(number.charAt(1))) {
+            digits = number.substring(0, 7);
+            if (number.length() == 9) {
+                extra = IE_LETTERS.indexOf(number.charAt(8));
+                if (extra < 0) {
+                    return false;
+                }
+            }
+        } else {
+            digits = "0" + number.substring(2, 7) + number.charAt(0);
+        }
+        int sum = weightedSum(digits, 0, 8, 7, 6, 5, 4, 3, 2) + 9 * extra;
+        return number.charAt(7) == IE_LETTERS.charAt(sum % 23);
+    }
+
+    private static boolean luhn(String number) {
+        int sum = 0;
+        int length = number.length();
+        for (int i = 0; i < length; i++) {
+            int d = digit(number, length - 1 - i);
+            if (i % 2 == 1) {
+                d *= 2;
+                if (d > 9) {
+                    d -= 9;
+                }
+            }
+            sum += d;
+        }
+        return sum % 10 == 0;
+    }
+
+    private static boolean lt(String number) {
+        int last = number.length() - 1;
+        int check = 0;
+        for (int i = 0; i < last; i++) {
+            check += (1 + i % 9) * digit(number, i);
+        }
+        check %= 11;
+        if (check == 10) {
+            check = 0;
+            for (int i = 0; i < last; i++) {
+                check += (1 + (i + 2) % 9) * digit(number, i);
+            }
+            check = check % 11 % 10;
+        }
+        return check == digit(number, last);
+    }
+
+    private static boolean lu(String number) {
+        return Integer.parseInt(number.substring(0, 6)) % 89 == Integer.parseInt(number.substring(6));
+    }
+
+    private static boolean mt(String number) {
+        return 37 - weightedSum(number, 0, 3, 4, 6, 7, 8, 9) % 37 == Integer.parseInt(number.substring(6));
+    }
+
+    /**
+     * The numbers issued before 2020 use a mod 11 check digit, the ones of the sole proprietors issued since then
+     * satisfy ISO 7064 MOD 97-10 when prefixed by the country code.
+     */
+    private static boolean nl(String number) {
+        int check = weightedSum(number, 0, 9, 8, 7, 6, 5, 4, 3, 2) % 11;
+        if (check == digit(number, 8)) {
+            return true;
+        }
+        int remainder = 0;
+        String prefixed = "NL" + number;
+        for (int i = 0; i < prefixed.length(); i++) {
+            int value = Character.getNumericValue(prefixed.charAt(i));
+            remainder = (remainder * (value > 9 ? 100 : 10) + value) % 97;
+        }
+        return remainder == 1;
+    }
+
+    private static boolean pl(String number) {
+        return weightedSum(number, 0, 6, 5, 7, 2, 3, 4, 5, 6, 7) % 11 == digit(number, 9);
+    }
+
+    private static boolean pt(String number) {
+        int check = 11 - weightedSum(number, 0, 9, 8, 7, 6, 5, 4, 3, 2) % 11;
+        return (check >= 10 ? 0 : check) == digit(number, 8);
+    }
+
+    private static boolean ro(String number) {
+        String padded = "0000000000".substring(number.length()) + number;
+        return weightedSum(padded, 0, 7, 5, 3, 2, 1, 7, 5, 3, 2) * 10 % 11 % 10 == digit(padded, 9);
+    }
+
+    private static boolean se(String number) {
+        return luhn(number.substring(0, 10));
+    }
+
+    private static boolean si(String number) {
+        int check = 11 - weightedSum(number, 0, 8, 7, 6, 5, 4, 3, 2) % 11;
+        return check != 11 && check % 10 == digit(number, 7);
+    }
+
+    private static boolean sk(String number) {
+        return Long.parseLong(number) % 11 == 0;
+    }
+
+    private static final class Rule {
+        private final Pattern pattern;
+        private final Predicate<String> checkDigits;
+
+        private Rule(Pattern pattern, Predicate<String> checkDigits) {
+            this.pattern = pattern;
+            this.checkDigits = checkDigits;
+        }
+    }
+}
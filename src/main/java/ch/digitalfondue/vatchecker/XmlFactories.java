@@ -0,0 +1,86 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+
+/**
+ * Hardened, pre-configured XML parsers, cached per thread.
+ *
+ * Looking up a factory through <code>newInstance()</code> goes through the ServiceLoader machinery on each call, and
+ * the JAXP specification does not guarantee that factories or parsers are thread-safe: so they are created once per
+ * thread and reused.
+ */
+final class XmlFactories {
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(XmlFactories::newDocumentBuilder);
+    private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY = ThreadLocal.withInitial(XmlFactories::newXMLInputFactory);
+
+    private XmlFactories() {
+    }
+
+    /**
+     * The returned builder must be {@link DocumentBuilder#reset()} after use.
+     */
+    static DocumentBuilder documentBuilder() {
+        return DOCUMENT_BUILDER.get();
+    }
+
+    static XMLInputFactory xmlInputFactory() {
+        return XML_INPUT_FACTORY.get();
+    }
+
+    private static DocumentBuilder newDocumentBuilder() {
+        try {
+            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+            dbFactory.setNamespaceAware(true);
+            //
+            setFeature(dbFactory, "http://apache.org/xml/features/disallow-doctype-decl", true);
+            setFeature(dbFactory,"http://xml.org/sax/features/external-general-entities", false);
+            setFeature(dbFactory,"http://xml.org/sax/features/external-parameter-entities", false);
+            setFeature(dbFactory,"http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            dbFactory.setXIncludeAware(false);
+            dbFactory.setExpandEntityReferences(false);
+            //
+            return dbFactory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void setFeature(DocumentBuilderFactory dbFactory, String feature, boolean value) {
+        try {
+            dbFactory.setFeature(feature, value);
+        } catch (ParserConfigurationException e) {
+        }
+    }
+
+    private static XMLInputFactory newXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // the factory is confined to a thread: let the JDK implementation recycle its reader and buffers
+        try {
+            factory.setProperty("reuse-instance", true);
+        } catch (IllegalArgumentException e) {
+        }
+        return factory;
+    }
+}
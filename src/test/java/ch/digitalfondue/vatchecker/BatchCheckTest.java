@@ -0,0 +1,128 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchCheckTest {
+
+    private static String extract(String body, String element) {
+        return body.substring(body.indexOf("<" + element + ">") + element.length() + 2, body.indexOf("</" + element + ">"));
+    }
+
+    @Test
+    public void testAllResultsAndFailures() {
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            String vatNumber = extract(body, "vatNumber");
+            if (vatNumber.endsWith("7")) {
+                throw new IllegalStateException("failure " + vatNumber);
+            }
+            return ViesResponses.stream(ViesResponses.valid(extract(body, "countryCode"), vatNumber, "NAME-" + vatNumber));
+        });
+        List<VatId> vatIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            vatIds.add(VatId.of(i % 3 == 0 ? "DE" : "IT", Integer.toString(i)));
+        }
+        Map<VatId, VatCheckResult> results = new HashMap<>();
+        checker.checkAll(vatIds, 8, result -> Assert.assertNull(results.put(result.getVatId(), result)));
+        Assert.assertEquals(100, results.size());
+        for (VatId vatId : vatIds) {
+            VatCheckResult result = results.get(vatId);
+            if (vatId.getVatNumber().endsWith("7")) {
+                Assert.assertFalse(result.isSuccess());
+                Assert.assertEquals("failure " + vatId.getVatNumber(), result.getError().getMessage());
+            } else {
+                Assert.assertTrue(result.isSuccess());
+                Assert.assertEquals("NAME-" + vatId.getVatNumber(), result.getResponse().getName());
+            }
+        }
+    }
+
+    @Test
+    public void testErrorIsRethrown() {
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            if (body.contains(">13<")) {
+                throw new AssertionError("boom");
+            }
+            return ViesResponses.stream(ViesResponses.VALID);
+        });
+        List<VatId> vatIds = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            vatIds.add(VatId.of("IT", Integer.toString(i)));
+        }
+        try {
+            checker.checkAll(vatIds, 4, result -> Assert.assertTrue(result.isSuccess()));
+            Assert.fail();
+        } catch (AssertionError e) {
+            Assert.assertEquals("boom", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testParallelismLimit() {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            sleep(5);
+            inFlight.decrementAndGet();
+            return ViesResponses.stream(ViesResponses.VALID);
+        });
+        List<VatId> vatIds = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            vatIds.add(VatId.of("IT", Integer.toString(i)));
+        }
+        AtomicInteger count = new AtomicInteger();
+        checker.checkAll(vatIds, 3, result -> count.incrementAndGet());
+        Assert.assertEquals(60, count.get());
+        Assert.assertTrue(maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void testSlowCountryDoesNotStallOthers() {
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            String countryCode = extract(body, "countryCode");
+            sleep("DE".equals(countryCode) ? 300 : 2);
+            return ViesResponses.stream(ViesResponses.valid(countryCode, extract(body, "vatNumber"), "---"));
+        });
+        List<VatId> vatIds = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            vatIds.add(VatId.of("DE", Integer.toString(i)));
+        }
+        for (int i = 0; i < 100; i++) {
+            vatIds.add(VatId.of("IT", Integer.toString(i)));
+            vatIds.add(VatId.of("FR", Integer.toString(i)));
+        }
+        List<String> order = new ArrayList<>();
+        checker.checkAll(vatIds, 4, result -> order.add(result.getVatId().getCountryCode()));
+        Assert.assertEquals(208, order.size());
+        // the fast countries are not waiting behind the slow one
+        int lastFast = Math.max(order.lastIndexOf("IT"), order.lastIndexOf("FR"));
+        Assert.assertTrue("fast countries completed at " + lastFast, lastFast < order.size() - 4);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
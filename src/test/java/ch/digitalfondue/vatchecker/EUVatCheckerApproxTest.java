@@ -0,0 +1,66 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class EUVatCheckerApproxTest {
+
+    private static final VatCheckApproxRequest REQUEST = new VatCheckApproxRequest(VatId.of("IT", "00950501007"))
+            .withRequester(VatId.of("DE", "136695976"));
+
+    @Test
+    public void testCheckApprox() {
+        AtomicReference<String> sent = new AtomicReference<>();
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            sent.set(body);
+            return ViesResponses.stream(ViesResponses.VALID_APPROX);
+        });
+        EUVatCheckApproxResponse resp = checker.checkApprox(REQUEST);
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals("WAPIAAAAW1234567", resp.getRequestIdentifier());
+        Assert.assertEquals(SoapRequestWriter.checkVatApprox(REQUEST), sent.get());
+
+        Assert.assertEquals("WAPIAAAAW1234567", EUVatChecker.doCheckApprox(REQUEST, ViesResponses.fetcher(ViesResponses.VALID_APPROX)).getRequestIdentifier());
+    }
+
+    @Test
+    public void testRetryAndCircuitBreaker() {
+        FakeTicker ticker = new FakeTicker();
+        AtomicInteger calls = new AtomicInteger();
+        VatCheckCircuitBreaker circuitBreaker = new VatCheckCircuitBreaker(0.5, 4, 4, Duration.ofSeconds(30), ticker);
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            calls.incrementAndGet();
+            return ViesResponses.stream(ViesResponses.FAULT_MS_UNAVAILABLE);
+        }).withCircuitBreaker(circuitBreaker)
+                .withRetryPolicy(new RetryPolicy(3, Duration.ofMillis(100), Duration.ofMillis(100), Duration.ofSeconds(10), ticker, () -> 1.0));
+
+        EUVatCheckApproxResponse resp = checker.checkApprox(REQUEST);
+        Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, resp.getStatus());
+        Assert.assertEquals(3, calls.get());
+
+        // the 4th failure opens the breaker, then the remaining attempts fail fast
+        resp = checker.checkApprox(REQUEST);
+        Assert.assertEquals("MS_UNAVAILABLE", resp.getFaultCode());
+        Assert.assertEquals(4, calls.get());
+        Assert.assertEquals(VatCheckCircuitBreaker.State.OPEN, circuitBreaker.getState("IT"));
+    }
+}
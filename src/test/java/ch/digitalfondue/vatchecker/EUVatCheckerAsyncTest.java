@@ -0,0 +1,121 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+public class EUVatCheckerAsyncTest {
+
+    @Test
+    public void testManyInFlightChecksWithoutThreads() throws Exception {
+        // the "network": pending responses, completed later by the test thread
+        List<CompletableFuture<InputStream>> pending = new ArrayList<>();
+        List<String> bodies = new ArrayList<>();
+        ExecutorService parser = Executors.newSingleThreadExecutor();
+        try {
+            EUVatChecker checker = new EUVatChecker(ViesResponses.fetcher(ViesResponses.INVALID))
+                    .withAsyncDocumentFetcher((url, body) -> {
+                        CompletableFuture<InputStream> response = new CompletableFuture<>();
+                        pending.add(response);
+                        bodies.add(body);
+                        return response;
+                    })
+                    .withExecutor(parser);
+
+            int count = 2000;
+            List<CompletableFuture<EUVatCheckResponse>> results = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                results.add(checker.checkAsync("IT", Integer.toString(i)));
+            }
+            Assert.assertEquals(count, pending.size());
+            for (CompletableFuture<EUVatCheckResponse> result : results) {
+                Assert.assertFalse(result.isDone());
+            }
+
+            for (int i = 0; i < count; i++) {
+                Assert.assertTrue(bodies.get(i).contains("<vatNumber>" + i + "</vatNumber>"));
+                pending.get(i).complete(ViesResponses.stream(ViesResponses.valid("IT", Integer.toString(i), "NAME-" + i)));
+            }
+            for (int i = 0; i < count; i++) {
+                EUVatCheckResponse resp = results.get(i).get(10, TimeUnit.SECONDS);
+                Assert.assertTrue(resp.isValid());
+                Assert.assertEquals("NAME-" + i, resp.getName());
+            }
+        } finally {
+            parser.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBlockingFetcherFallback() throws Exception {
+        EUVatChecker checker = new EUVatChecker(ViesResponses.fetcher(ViesResponses.VALID));
+        EUVatCheckResponse resp = checker.checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+    }
+
+    @Test
+    public void testDefaultExecutorIsBounded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Semaphore started = new Semaphore(0);
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            threads.add(Thread.currentThread());
+            started.release();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ViesResponses.stream(ViesResponses.VALID);
+        });
+        List<CompletableFuture<EUVatCheckResponse>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            results.add(checker.checkAsync("IT", Integer.toString(i)));
+        }
+        Assert.assertTrue(started.tryAcquire(HttpDocumentFetcher.DEFAULT_MAX_CONNECTIONS, 10, TimeUnit.SECONDS));
+        // the other checks are queued, not parked on their own thread
+        Assert.assertFalse(started.tryAcquire(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        for (CompletableFuture<EUVatCheckResponse> result : results) {
+            Assert.assertTrue(result.get(10, TimeUnit.SECONDS).isValid());
+        }
+        Assert.assertTrue(threads.size() <= HttpDocumentFetcher.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    @Test
+    public void testFailureIsReportedInTheFuture() throws Exception {
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            throw new IllegalStateException("boom");
+        });
+        CompletableFuture<EUVatCheckResponse> result = checker.checkAsync("IT", "00950501007");
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            Assert.fail("should fail");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("boom", e.getCause().getMessage());
+        }
+
+        Assert.assertTrue(checker.checkAsync(null, "00950501007").isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EUVatCheckerBuilderTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private EUVatChecker.Builder builder(String response) {
+        return EUVatChecker.builder().documentFetcher((url, body) -> {
+            calls.incrementAndGet();
+            return ViesResponses.stream(response);
+        });
+    }
+
+    @Test
+    public void testBuild() {
+        VatCheckCache cache = new VatCheckCache(100, Duration.ofHours(1), Duration.ofHours(1), Duration.ofMinutes(1));
+        VatCheckStats stats = new VatCheckStats();
+        EUVatChecker checker = builder(ViesResponses.VALID)
+                .cache(cache)
+                .formatValidation(true)
+                .metrics(stats)
+                .build();
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(EUVatCheckResponse.Status.INVALID, checker.check("IT", "123").getStatus());
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, stats.getCallCount("IT"));
+    }
+
+    @Test
+    public void testBuilderIsImmutable() {
+        EUVatChecker.Builder base = builder(ViesResponses.VALID);
+        EUVatChecker.Builder validating = base.formatValidation(true);
+        Assert.assertNotSame(base, validating);
+
+        base.build().check("IT", "123");
+        Assert.assertEquals(1, calls.get());
+        validating.build().check("IT", "123");
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testToBuilder() {
+        VatCheckCache cache = new VatCheckCache(100, Duration.ofHours(1), Duration.ofHours(1), Duration.ofMinutes(1));
+        EUVatChecker checker = builder(ViesResponses.VALID).cache(cache).build();
+        EUVatChecker derived = checker.toBuilder().formatValidation(true).build();
+        derived.check("IT", "00950501007");
+        checker.check("IT", "00950501007");
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(EUVatCheckResponse.Status.INVALID, derived.check("IT", "123").getStatus());
+        Assert.assertEquals(1, calls.get());
+
+        // the withers keep the rest of the configuration
+        EUVatChecker withFormatValidation = checker.withFormatValidation();
+        withFormatValidation.check("IT", "00950501007");
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testRequestCoalescing() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        EUVatChecker checker = EUVatChecker.builder().documentFetcher((url, body) -> {
+            calls.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ViesResponses.stream(ViesResponses.VALID);
+        }).requestCoalescing(true).build();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[4];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = CompletableFuture.supplyAsync(() -> checker.check("IT", "00950501007"), executor);
+            }
+            while (checker.coalescedWaiterCount(VatId.of("IT", "00950501007")) < futures.length - 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(1, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeouts() {
+        EUVatChecker.builder().timeouts(Duration.ofSeconds(5), Duration.ofSeconds(20)).maxConnections(10).build();
+        try {
+            builder(ViesResponses.VALID).timeouts(Duration.ofSeconds(5), Duration.ofSeconds(20)).build();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // a custom fetcher has its own timeouts
+        }
+        try {
+            builder(ViesResponses.VALID).maxConnections(10).build();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testValidation() {
+        try {
+            EUVatChecker.builder().timeouts(Duration.ZERO, Duration.ofSeconds(1));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("connectTimeout must be between 1ms and 2147483647ms", e.getMessage());
+        }
+        try {
+            EUVatChecker.builder().maxConnections(0);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            EUVatChecker.builder().cache(null);
+            Assert.fail();
+        } catch (NullPointerException e) {
+            Assert.assertEquals("cache cannot be null", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+public class EUVatCheckerConcurrencyTest {
+
+    private static final int THREADS = 64;
+    private static final int CHECKS_PER_THREAD = 200;
+
+    // answer with a name derived from the requested vat number, so a mixed up result can be detected
+    private static final BiFunction<String, String, InputStream> ECHO_FETCHER = (url, body) -> {
+        String vatNumber = body.substring(body.indexOf("<vatNumber>") + "<vatNumber>".length(), body.indexOf("</vatNumber>"));
+        String countryCode = body.substring(body.indexOf("<countryCode>") + "<countryCode>".length(), body.indexOf("</countryCode>"));
+        return ViesResponses.stream(ViesResponses.valid(countryCode, vatNumber, "NAME-" + countryCode + vatNumber));
+    };
+
+    @Test
+    public void testConcurrentChecksStax() throws Exception {
+        stress(new EUVatChecker(ECHO_FETCHER, ResponseParser.STAX));
+    }
+
+    @Test
+    public void testConcurrentChecksDom() throws Exception {
+        stress(new EUVatChecker(ECHO_FETCHER, ResponseParser.DOM));
+    }
+
+    @Test
+    public void testRequestCoalescing() throws Exception {
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            upstreamCalls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return ViesResponses.stream(ViesResponses.VALID);
+        }).withRequestCoalescing();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<EUVatCheckResponse>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                results.add(executor.submit(() -> checker.check("IT", "00950501007")));
+            }
+            // wait until the first call reached the fetcher and all the others joined it
+            awaitWaiters(checker, VatId.of("IT", "00950501007"), THREADS - 1);
+            release.countDown();
+            EUVatCheckResponse first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<EUVatCheckResponse> result : results) {
+                Assert.assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, upstreamCalls.get());
+
+        // once completed, a new check goes upstream again
+        checker.check("IT", "00950501007");
+        Assert.assertEquals(2, upstreamCalls.get());
+    }
+
+    @Test
+    public void testRequestCoalescingPerKey() throws Exception {
+        ConcurrentHashMap<String, AtomicInteger> upstreamCalls = new ConcurrentHashMap<>();
+        CountDownLatch release = new CountDownLatch(1);
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            upstreamCalls.computeIfAbsent(body, k -> new AtomicInteger()).incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return ECHO_FETCHER.apply(url, body);
+        }).withRequestCoalescing();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<EUVatCheckResponse>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                String vatNumber = Integer.toString(t % 4);
+                results.add(executor.submit(() -> checker.check("IT", vatNumber)));
+            }
+            for (int i = 0; i < 4; i++) {
+                awaitWaiters(checker, VatId.of("IT", Integer.toString(i)), THREADS / 4 - 1);
+            }
+            release.countDown();
+            for (int t = 0; t < THREADS; t++) {
+                Assert.assertEquals("NAME-IT" + (t % 4), results.get(t).get(10, TimeUnit.SECONDS).getName());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(4, upstreamCalls.size());
+        for (AtomicInteger calls : upstreamCalls.values()) {
+            Assert.assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    public void testRequestCoalescingFailure() throws Exception {
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            upstreamCalls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            throw new IllegalStateException("down");
+        }).withRequestCoalescing();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<EUVatCheckResponse>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(() -> checker.check("IT", "00950501007")));
+            }
+            awaitWaiters(checker, VatId.of("IT", "00950501007"), 7);
+            release.countDown();
+            for (Future<EUVatCheckResponse> result : results) {
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertEquals("down", e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, upstreamCalls.get());
+    }
+
+    @Test
+    public void testRequestCoalescingAsync() throws Exception {
+        List<CompletableFuture<InputStream>> pending = new CopyOnWriteArrayList<>();
+        EUVatChecker checker = new EUVatChecker(ViesResponses.fetcher(ViesResponses.INVALID))
+                .withAsyncDocumentFetcher((url, body) -> {
+                    CompletableFuture<InputStream> response = new CompletableFuture<>();
+                    pending.add(response);
+                    return response;
+                })
+                .withRequestCoalescing();
+        List<CompletableFuture<EUVatCheckResponse>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(checker.checkAsync("IT", "00950501007"));
+        }
+        Assert.assertEquals(1, pending.size());
+        pending.get(0).complete(ViesResponses.stream(ViesResponses.VALID));
+        for (CompletableFuture<EUVatCheckResponse> result : results) {
+            Assert.assertEquals("BANCA D'ITALIA", result.get(10, TimeUnit.SECONDS).getName());
+        }
+    }
+
+    private static void awaitWaiters(EUVatChecker checker, VatId vatId, int waiters) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (checker.coalescedWaiterCount(vatId) < waiters) {
+            if (System.nanoTime() > deadline) {
+                Assert.fail("only " + checker.coalescedWaiterCount(vatId) + " callers joined the call of " + vatId);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void stress(EUVatChecker checker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CyclicBarrier start = new CyclicBarrier(THREADS);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    int checked = 0;
+                    for (int i = 0; i < CHECKS_PER_THREAD; i++) {
+                        String countryCode = i % 2 == 0 ? "IT" : "DE";
+                        String vatNumber = thread + "_" + i;
+                        EUVatCheckResponse resp = checker.check(countryCode, vatNumber);
+                        Assert.assertTrue(resp.isValid());
+                        Assert.assertEquals("NAME-" + countryCode + vatNumber, resp.getName());
+                        Assert.assertEquals("---", resp.getAddress());
+                        checked++;
+                    }
+                    return checked;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(CHECKS_PER_THREAD, (int) result.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
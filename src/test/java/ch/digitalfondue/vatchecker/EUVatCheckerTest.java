@@ -27,6 +27,9 @@ public class EUVatCheckerTest {
         Assert.assertEquals(true, resp.isValid());
         Assert.assertEquals("BANCA D'ITALIA", resp.getName());
         Assert.assertEquals("VIA NAZIONALE 91 \n00184 ROMA RM\n", resp.getAddress());
+        Assert.assertEquals("IT", resp.getCountryCode());
+        Assert.assertEquals("00950501007", resp.getVatNumber());
+        Assert.assertNotNull(resp.getRequestDate());
     }
 
     @Test
@@ -43,6 +46,8 @@ public class EUVatCheckerTest {
         Assert.assertEquals(false, resp.isValid());
         Assert.assertEquals(null, resp.getName());
         Assert.assertEquals(null, resp.getAddress());
+        Assert.assertEquals(EUVatCheckResponse.Status.PERMANENT_FAULT, resp.getStatus());
+        Assert.assertEquals("INVALID_INPUT", resp.getFaultCode());
     }
 
     @Test
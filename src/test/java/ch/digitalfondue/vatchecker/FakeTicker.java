@@ -0,0 +1,58 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ticker where the time only moves when sleeping or when advanced explicitly.
+ */
+final class FakeTicker implements Ticker {
+    private long now;
+    private final List<Long> sleeps = new ArrayList<>();
+
+    @Override
+    public synchronized long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public synchronized void sleep(long nanos) {
+        sleeps.add(nanos);
+        now += nanos;
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long nanos) {
+        sleep(nanos);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    synchronized void advance(long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    synchronized List<Long> sleeps() {
+        return new ArrayList<>(sleeps);
+    }
+
+    synchronized long totalSleptMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sleeps.stream().mapToLong(Long::longValue).sum());
+    }
+}
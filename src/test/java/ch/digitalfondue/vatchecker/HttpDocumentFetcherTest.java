@@ -0,0 +1,292 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpDocumentFetcherTest {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String endpoint;
+
+    private volatile HttpHandler handler;
+    private final Set<InetSocketAddress> clients = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            clients.add(exchange.getRemoteAddress());
+            handler.handle(exchange);
+        });
+        server.start();
+        endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/checkVatService";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/xml;charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static String read(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return new String(os.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testPostAndKeepAlive() throws IOException {
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        handler = exchange -> {
+            Assert.assertEquals("POST", exchange.getRequestMethod());
+            Assert.assertEquals("text/xml;charset=UTF-8", exchange.getRequestHeaders().getFirst("Content-Type"));
+            received.add(read(exchange.getRequestBody()));
+            respond(exchange, 200, ViesResponses.VALID);
+        };
+        HttpDocumentFetcher fetcher = new HttpDocumentFetcher();
+        for (int i = 0; i < 5; i++) {
+            try (InputStream is = fetcher.apply(endpoint, "<body>" + i + "</body>")) {
+                Assert.assertEquals(ViesResponses.VALID, read(is));
+            }
+        }
+        Assert.assertEquals(Arrays.asList("<body>0</body>", "<body>1</body>", "<body>2</body>", "<body>3</body>", "<body>4</body>"), received);
+        Assert.assertEquals("the connection should have been reused", 1, clients.size());
+    }
+
+    @Test
+    public void testWithEUVatChecker() {
+        handler = exchange -> {
+            read(exchange.getRequestBody());
+            respond(exchange, 200, ViesResponses.VALID);
+        };
+        HttpDocumentFetcher fetcher = new HttpDocumentFetcher();
+        EUVatCheckResponse resp = EUVatChecker.doCheck("IT", "00950501007", (url, body) -> fetcher.apply(endpoint, body));
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+    }
+
+    @Test
+    public void testReadTimeout() {
+        handler = exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, ViesResponses.VALID);
+        };
+        HttpDocumentFetcher fetcher = new HttpDocumentFetcher(1000, 200, 1);
+        try {
+            fetcher.apply(endpoint, "<body/>");
+            Assert.fail("should time out");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void testErrorStatus() {
+        handler = exchange -> {
+            read(exchange.getRequestBody());
+            respond(exchange, 503, "upstream down");
+        };
+        try {
+            new HttpDocumentFetcher().apply(endpoint, "<body/>");
+            Assert.fail("should fail");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("503"));
+            Assert.assertTrue(e.getMessage().contains("upstream down"));
+            Assert.assertTrue(RetryPolicy.isRetryable(e));
+        }
+    }
+
+    @Test
+    public void testClientErrorIsNotRetryable() {
+        handler = exchange -> {
+            read(exchange.getRequestBody());
+            respond(exchange, 400, "bad request");
+        };
+        try {
+            new HttpDocumentFetcher().apply(endpoint, "<body/>");
+            Assert.fail("should fail");
+        } catch (IllegalStateException e) {
+            Assert.assertFalse(RetryPolicy.isRetryable(e));
+        }
+    }
+
+    @Test
+    public void testStatus503IsRetried() {
+        AtomicInteger requests = new AtomicInteger();
+        handler = exchange -> {
+            read(exchange.getRequestBody());
+            if (requests.incrementAndGet() == 1) {
+                respond(exchange, 503, "upstream down");
+            } else {
+                respond(exchange, 200, ViesResponses.VALID);
+            }
+        };
+        HttpDocumentFetcher fetcher = new HttpDocumentFetcher();
+        EUVatChecker checker = new EUVatChecker((url, body) -> fetcher.apply(endpoint, body))
+                .withRetryPolicy(new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(1), Duration.ofSeconds(10)));
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testNoFreeConnectionIsRetryable() throws Exception {
+        CountDownLatch received = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        handler = exchange -> {
+            read(exchange.getRequestBody());
+            received.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, ViesResponses.VALID);
+        };
+        HttpDocumentFetcher fetcher = new HttpDocumentFetcher(100, 5000, 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> first = executor.submit(() -> read(fetcher.apply(endpoint, "<body/>")));
+            Assert.assertTrue(received.await(10, TimeUnit.SECONDS));
+            try {
+                fetcher.apply(endpoint, "<body/>");
+                Assert.fail("should fail");
+            } catch (IllegalStateException e) {
+                Assert.assertTrue(e.getMessage().startsWith("No free connection"));
+                Assert.assertTrue(RetryPolicy.isRetryable(e));
+            }
+            release.countDown();
+            Assert.assertEquals(ViesResponses.VALID, first.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUnlimitedConnections() throws Exception {
+        CountDownLatch received = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        handler = exchange -> {
+            String body = read(exchange.getRequestBody());
+            if (body.equals("<first/>")) {
+                received.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            respond(exchange, 200, ViesResponses.VALID);
+        };
+        HttpDocumentFetcher fetcher = new HttpDocumentFetcher(100, 5000, HttpDocumentFetcher.UNLIMITED_CONNECTIONS);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> first = executor.submit(() -> read(fetcher.apply(endpoint, "<first/>")));
+            Assert.assertTrue(received.await(10, TimeUnit.SECONDS));
+            // does not wait for a free connection
+            Assert.assertEquals(ViesResponses.VALID, read(fetcher.apply(endpoint, "<second/>")));
+            release.countDown();
+            Assert.assertEquals(ViesResponses.VALID, first.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSoapFaultWithStatus500() {
+        handler = exchange -> {
+            read(exchange.getRequestBody());
+            respond(exchange, 500, ViesResponses.FAULT_MS_UNAVAILABLE);
+        };
+        HttpDocumentFetcher fetcher = new HttpDocumentFetcher();
+        EUVatCheckResponse resp = EUVatChecker.doCheck("DE", "123456789", (url, body) -> fetcher.apply(endpoint, body));
+        Assert.assertFalse(resp.isValid());
+        Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, resp.getStatus());
+        Assert.assertEquals("MS_UNAVAILABLE", resp.getFaultCode());
+    }
+
+    @Test
+    public void testMaxConnections() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        handler = exchange -> {
+            read(exchange.getRequestBody());
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            respond(exchange, 200, ViesResponses.VALID);
+        };
+        HttpDocumentFetcher fetcher = new HttpDocumentFetcher(5000, 5000, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> read(fetcher.apply(endpoint, "<body/>"))));
+            }
+            for (Future<String> result : results) {
+                Assert.assertEquals(ViesResponses.VALID, result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(maxInFlight.get() <= 2);
+    }
+}
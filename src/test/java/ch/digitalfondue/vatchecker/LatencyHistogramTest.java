@@ -0,0 +1,72 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99, TimeUnit.NANOSECONDS));
+        Assert.assertEquals(0, histogram.getMean(TimeUnit.NANOSECONDS), 0);
+    }
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (int index = 0; index <= LatencyHistogram.index(Long.MAX_VALUE >>> 23); index++) {
+            long highest = LatencyHistogram.highestEquivalentValue(index);
+            Assert.assertEquals(index, LatencyHistogram.index(previous + 1));
+            Assert.assertEquals(index, LatencyHistogram.index(highest));
+            Assert.assertTrue(highest - previous - 1 <= Math.max(0, previous / 16));
+            previous = highest;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(500.5, histogram.getMean(TimeUnit.MILLISECONDS), 0.001);
+        Assert.assertEquals(1000, histogram.getMax(TimeUnit.MILLISECONDS));
+        assertClose(500, histogram.getValueAtPercentile(50, TimeUnit.MILLISECONDS));
+        assertClose(990, histogram.getValueAtPercentile(99, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1000, histogram.getValueAtPercentile(100, TimeUnit.MILLISECONDS));
+        assertClose(1, histogram.getValueAtPercentile(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50, TimeUnit.NANOSECONDS));
+        Assert.assertEquals(18, histogram.getValueAtPercentile(100, TimeUnit.MINUTES));
+    }
+
+    private static void assertClose(long expected, long actual) {
+        Assert.assertTrue(expected + " ~ " + actual, Math.abs(expected - actual) <= expected * 0.07);
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.LocalDate;
+
+public class ResponseParserTest {
+
+    @Test
+    public void testValid() {
+        for (ResponseParser parser : ResponseParser.values()) {
+            EUVatCheckResponse resp = parser.parse(ViesResponses.stream(ViesResponses.VALID));
+            Assert.assertEquals(true, resp.isValid());
+            Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+            Assert.assertEquals("VIA NAZIONALE 91 \n00184 ROMA RM\n", resp.getAddress());
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        for (ResponseParser parser : ResponseParser.values()) {
+            EUVatCheckResponse resp = parser.parse(ViesResponses.stream(ViesResponses.INVALID));
+            Assert.assertEquals(false, resp.isValid());
+            Assert.assertEquals("---", resp.getName());
+            Assert.assertEquals("---", resp.getAddress());
+        }
+    }
+
+    @Test
+    public void testFault() {
+        for (ResponseParser parser : ResponseParser.values()) {
+            EUVatCheckResponse resp = parser.parse(ViesResponses.stream(ViesResponses.FAULT_INVALID_INPUT));
+            Assert.assertEquals(false, resp.isValid());
+            Assert.assertNull(resp.getName());
+            Assert.assertNull(resp.getAddress());
+            Assert.assertTrue(resp.isFault());
+            Assert.assertEquals(EUVatCheckResponse.Status.PERMANENT_FAULT, resp.getStatus());
+            Assert.assertEquals("INVALID_INPUT", resp.getFaultCode());
+        }
+    }
+
+    @Test
+    public void testRetryableFaults() {
+        String[] codes = {"SERVICE_UNAVAILABLE", "MS_UNAVAILABLE", "TIMEOUT", "GLOBAL_MAX_CONCURRENT_REQ", "MS_MAX_CONCURRENT_REQ"};
+        for (ResponseParser parser : ResponseParser.values()) {
+            for (String code : codes) {
+                EUVatCheckResponse resp = parser.parse(ViesResponses.stream(ViesResponses.fault(" " + code + " ")));
+                Assert.assertFalse(resp.isValid());
+                Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, resp.getStatus());
+                Assert.assertEquals(code, resp.getFaultCode());
+            }
+        }
+    }
+
+    @Test
+    public void testStatus() {
+        for (ResponseParser parser : ResponseParser.values()) {
+            Assert.assertEquals(EUVatCheckResponse.Status.VALID, parser.parse(ViesResponses.stream(ViesResponses.VALID)).getStatus());
+            EUVatCheckResponse invalid = parser.parse(ViesResponses.stream(ViesResponses.INVALID));
+            Assert.assertEquals(EUVatCheckResponse.Status.INVALID, invalid.getStatus());
+            Assert.assertFalse(invalid.isFault());
+            Assert.assertNull(invalid.getFaultCode());
+        }
+    }
+
+    @Test
+    public void testUnexpectedResponse() {
+        for (ResponseParser parser : ResponseParser.values()) {
+            EUVatCheckResponse resp = parser.parse(ViesResponses.stream("<html><body>maintenance</body></html>"));
+            Assert.assertFalse(resp.isValid());
+            Assert.assertEquals(EUVatCheckResponse.Status.PERMANENT_FAULT, resp.getStatus());
+            Assert.assertNull(resp.getFaultCode());
+        }
+    }
+
+    @Test
+    public void testStopAfterCheckVatResponse() {
+        String truncated = ViesResponses.VALID.substring(0, ViesResponses.VALID.indexOf("</soap:Body>")) + "<garbage";
+        EUVatCheckResponse resp = ResponseParser.STAX.parse(ViesResponses.stream(truncated));
+        Assert.assertEquals(true, resp.isValid());
+        Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+    }
+
+    @Test
+    public void testDoctypeIsRejected() {
+        String xxe = "<?xml version=\"1.0\"?><!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>" +
+                "<checkVatResponse><valid>true</valid><name>&xxe;</name></checkVatResponse>";
+        for (ResponseParser parser : ResponseParser.values()) {
+            try {
+                parser.parse(ViesResponses.stream(xxe));
+                Assert.fail("DOCTYPE should be rejected by " + parser);
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testDoCheckWithFetcher() {
+        for (ResponseParser parser : ResponseParser.values()) {
+            EUVatChecker checker = new EUVatChecker(ViesResponses.fetcher(ViesResponses.VALID), parser);
+            Assert.assertEquals(true, checker.check("IT", "00950501007").isValid());
+        }
+    }
+
+    @Test
+    public void testAllFields() {
+        for (ResponseParser parser : ResponseParser.values()) {
+            EUVatCheckResponse resp = parser.parse(ViesResponses.stream(ViesResponses.VALID));
+            Assert.assertEquals("IT", resp.getCountryCode());
+            Assert.assertEquals("00950501007", resp.getVatNumber());
+            Assert.assertEquals(LocalDate.of(2020, 10, 21), resp.getRequestDate());
+            Assert.assertSame(resp.getRequestDate(), resp.getRequestDate());
+
+            EUVatCheckResponse fault = parser.parse(ViesResponses.stream(ViesResponses.FAULT_INVALID_INPUT));
+            Assert.assertNull(fault.getCountryCode());
+            Assert.assertNull(fault.getVatNumber());
+            Assert.assertNull(fault.getRequestDate());
+        }
+        String withoutOffset = ViesResponses.VALID.replace("2020-10-21+02:00", "2020-10-22");
+        Assert.assertEquals(LocalDate.of(2020, 10, 22), ResponseParser.STAX.parse(ViesResponses.stream(withoutOffset)).getRequestDate());
+
+        String malformed = ViesResponses.VALID.replace("2020-10-21+02:00", "21/10/2020");
+        EUVatCheckResponse resp = ResponseParser.STAX.parse(ViesResponses.stream(malformed));
+        Assert.assertTrue(resp.isValid());
+        Assert.assertNull(resp.getRequestDate());
+        Assert.assertNull(resp.getRequestDate());
+        Assert.assertEquals("21/10/2020", resp.getRequestDateText());
+    }
+
+    @Test
+    public void testApprox() {
+        EUVatCheckApproxResponse resp = StaxResponseParser.parseApprox(ViesResponses.stream(ViesResponses.VALID_APPROX));
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals(EUVatCheckResponse.Status.VALID, resp.getStatus());
+        Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+        Assert.assertEquals("VIA NAZIONALE 91 \n00184 ROMA RM\n", resp.getAddress());
+        Assert.assertEquals("---", resp.getCompanyType());
+        Assert.assertNull(resp.getStreet());
+        Assert.assertEquals(EUVatCheckApproxResponse.Match.VALID, resp.getNameMatch());
+        Assert.assertEquals(EUVatCheckApproxResponse.Match.INVALID, resp.getCityMatch());
+        Assert.assertEquals(EUVatCheckApproxResponse.Match.NOT_PROCESSED, resp.getStreetMatch());
+        Assert.assertNull(resp.getPostcodeMatch());
+        Assert.assertEquals("WAPIAAAAW1234567", resp.getRequestIdentifier());
+        Assert.assertEquals("IT", resp.getCountryCode());
+        Assert.assertEquals("00950501007", resp.getVatNumber());
+        Assert.assertEquals(LocalDate.of(2020, 10, 21), resp.getRequestDate());
+    }
+
+    @Test
+    public void testApproxFault() {
+        EUVatCheckApproxResponse resp = StaxResponseParser.parseApprox(ViesResponses.stream(ViesResponses.fault("INVALID_REQUESTER_INFO")));
+        Assert.assertFalse(resp.isValid());
+        Assert.assertEquals(EUVatCheckResponse.Status.PERMANENT_FAULT, resp.getStatus());
+        Assert.assertEquals("INVALID_REQUESTER_INFO", resp.getFaultCode());
+        Assert.assertNull(resp.getRequestIdentifier());
+
+        // a checkVat response is not an answer to checkVatApprox
+        Assert.assertEquals(EUVatCheckResponse.Status.PERMANENT_FAULT,
+                StaxResponseParser.parseApprox(ViesResponses.stream(ViesResponses.VALID)).getStatus());
+    }
+}
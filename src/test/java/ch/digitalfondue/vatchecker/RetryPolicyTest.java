@@ -0,0 +1,195 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+public class RetryPolicyTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    // jitter fixed at the upper bound: the waits are exactly the backoff
+    private RetryPolicy policy(int maxAttempts, Duration deadline) {
+        return new RetryPolicy(maxAttempts, Duration.ofMillis(100), Duration.ofMillis(400), deadline, ticker, () -> 1.0);
+    }
+
+    private static BiFunction<String, String, InputStream> failingThen(int failures, String failure, String response, AtomicInteger calls) {
+        return (url, body) -> {
+            if (calls.incrementAndGet() <= failures) {
+                if (failure == null) {
+                    throw new UncheckedIOException(new IOException("connection reset"));
+                }
+                return ViesResponses.stream(failure);
+            }
+            return ViesResponses.stream(response);
+        };
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Test
+    public void testRetryRetryableFault() {
+        AtomicInteger calls = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker(failingThen(4, ViesResponses.FAULT_MS_UNAVAILABLE, ViesResponses.VALID, calls))
+                .withRetryPolicy(policy(5, Duration.ofSeconds(10)));
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(5, calls.get());
+        Assert.assertEquals(Arrays.asList(100L, 200L, 400L, 400L), ticker.sleeps().stream().map(RetryPolicyTest::millis).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testRetryIOException() {
+        AtomicInteger calls = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker(failingThen(1, null, ViesResponses.VALID, calls))
+                .withRetryPolicy(policy(3, Duration.ofSeconds(10)));
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testNoRetryOnPermanentOutcome() {
+        AtomicInteger calls = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker(failingThen(0, null, ViesResponses.FAULT_INVALID_INPUT, calls))
+                .withRetryPolicy(policy(3, Duration.ofSeconds(10)));
+        Assert.assertEquals(EUVatCheckResponse.Status.PERMANENT_FAULT, checker.check("IT", "00950501007").getStatus());
+        Assert.assertEquals(1, calls.get());
+
+        AtomicInteger failures = new AtomicInteger();
+        EUVatChecker failing = new EUVatChecker((url, body) -> {
+            failures.incrementAndGet();
+            throw new IllegalStateException("not transient");
+        }).withRetryPolicy(policy(3, Duration.ofSeconds(10)));
+        try {
+            failing.check("IT", "00950501007");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("not transient", e.getMessage());
+        }
+        Assert.assertEquals(1, failures.get());
+        Assert.assertTrue(ticker.sleeps().isEmpty());
+    }
+
+    @Test
+    public void testGiveUpReturnsLastOutcome() {
+        AtomicInteger calls = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker(failingThen(10, ViesResponses.FAULT_MS_UNAVAILABLE, ViesResponses.VALID, calls))
+                .withRetryPolicy(policy(3, Duration.ofSeconds(10)));
+        EUVatCheckResponse response = checker.check("IT", "00950501007");
+        Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, response.getStatus());
+        Assert.assertEquals("MS_UNAVAILABLE", response.getFaultCode());
+        Assert.assertEquals(3, calls.get());
+
+        AtomicInteger ioCalls = new AtomicInteger();
+        EUVatChecker io = new EUVatChecker(failingThen(10, null, ViesResponses.VALID, ioCalls))
+                .withRetryPolicy(policy(3, Duration.ofSeconds(10)));
+        try {
+            io.check("IT", "00950501007");
+            Assert.fail();
+        } catch (UncheckedIOException e) {
+            Assert.assertEquals("connection reset", e.getCause().getMessage());
+        }
+        Assert.assertEquals(3, ioCalls.get());
+    }
+
+    @Test
+    public void testDeadline() {
+        AtomicInteger calls = new AtomicInteger();
+        // 100 + 200 fit in 350ms, the third wait (400) does not
+        EUVatChecker checker = new EUVatChecker(failingThen(10, ViesResponses.FAULT_MS_UNAVAILABLE, ViesResponses.VALID, calls))
+                .withRetryPolicy(policy(10, Duration.ofMillis(350)));
+        Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, checker.check("IT", "00950501007").getStatus());
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(300, ticker.totalSleptMillis());
+    }
+
+    @Test
+    public void testJitter() {
+        RetryPolicy lower = new RetryPolicy(5, Duration.ofMillis(100), Duration.ofMillis(400), Duration.ofSeconds(10), ticker, () -> 0.0);
+        Assert.assertEquals(50, millis(lower.backoffNanos(1, 0)));
+        Assert.assertEquals(200, millis(lower.backoffNanos(4, 0)));
+        Assert.assertEquals(-1, lower.backoffNanos(5, 0));
+        RetryPolicy upper = policy(5, Duration.ofSeconds(10));
+        Assert.assertEquals(100, millis(upper.backoffNanos(1, 0)));
+        Assert.assertEquals(400, millis(upper.backoffNanos(3, 0)));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker(failingThen(2, ViesResponses.FAULT_MS_UNAVAILABLE, ViesResponses.VALID, calls))
+                .withRetryPolicy(policy(5, Duration.ofSeconds(10)));
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").get(5, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(300, ticker.totalSleptMillis());
+
+        AtomicInteger asyncCalls = new AtomicInteger();
+        EUVatChecker asyncFetcher = new EUVatChecker(ViesResponses.fetcher(ViesResponses.VALID))
+                .withAsyncDocumentFetcher((url, body) -> {
+                    CompletableFuture<InputStream> f = new CompletableFuture<>();
+                    if (asyncCalls.incrementAndGet() == 1) {
+                        f.completeExceptionally(new IOException("connection reset"));
+                    } else {
+                        f.complete(ViesResponses.stream(ViesResponses.VALID));
+                    }
+                    return f;
+                })
+                .withRetryPolicy(policy(2, Duration.ofSeconds(10)));
+        Assert.assertTrue(asyncFetcher.checkAsync("IT", "00950501007").get(5, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(2, asyncCalls.get());
+    }
+
+    @Test
+    public void testAsyncDoesNotBlockWhileWaiting() throws Exception {
+        RetryPolicy systemPolicy = new RetryPolicy(2, Duration.ofMillis(200), Duration.ofMillis(200), Duration.ofSeconds(10));
+        AtomicInteger calls = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker(failingThen(1, ViesResponses.FAULT_MS_UNAVAILABLE, ViesResponses.VALID, calls))
+                .withExecutor(Runnable::run)
+                .withRetryPolicy(systemPolicy);
+        long start = System.nanoTime();
+        CompletableFuture<EUVatCheckResponse> future = checker.checkAsync("IT", "00950501007");
+        // the first attempt ran on the calling thread, the retry is scheduled
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+        Assert.assertFalse(future.isDone());
+        Assert.assertTrue(future.get(5, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidArguments() {
+        new RetryPolicy(0, Duration.ofMillis(100), Duration.ofMillis(400), Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void testRetryableCauseDetection() {
+        Assert.assertTrue(RetryPolicy.isRetryable(new CompletionException(new IllegalStateException(new IOException()))));
+        Assert.assertFalse(RetryPolicy.isRetryable(new IllegalStateException("parse error")));
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+public class SoapRequestWriterTest {
+
+    // the template that was used before the introduction of SoapRequestWriter
+    private static final String DOM_TEMPLATE = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<soapenv:Header/>" +
+            "<soapenv:Body>" +
+            "<checkVat xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+            "<countryCode></countryCode><vatNumber></vatNumber>" +
+            "</checkVat>" +
+            "</soapenv:Body>" +
+            "</soapenv:Envelope>";
+
+    private static String domTemplate(String countryCode, String vatNumber) throws Exception {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        dbFactory.setNamespaceAware(true);
+        Document doc = dbFactory.newDocumentBuilder().parse(new InputSource(new StringReader(DOM_TEMPLATE)));
+        doc.getElementsByTagName("countryCode").item(0).setTextContent(countryCode);
+        doc.getElementsByTagName("vatNumber").item(0).setTextContent(vatNumber);
+        StringWriter sw = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(sw));
+        return sw.toString();
+    }
+
+    @Test
+    public void testSameOutputAsDomTemplate() throws Exception {
+        String[][] values = {
+                {"IT", "00950501007"},
+                {"", ""},
+                {"EL", "094259216"},
+                {"IT", "a&b<c>d\"e'f]]>"},
+                {"IT", "tab\tnew line\ncarriage\rreturn"},
+                {"IT", "\u0001\u001f"},
+                {"DE", "Grüße € 😀"},
+        };
+        for (String[] value : values) {
+            Assert.assertEquals(domTemplate(value[0], value[1]), SoapRequestWriter.checkVat(value[0], value[1]));
+        }
+    }
+
+    @Test
+    public void testBufferReuse() {
+        String first = SoapRequestWriter.checkVat("IT", "00950501007");
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            longValue.append('&');
+        }
+        SoapRequestWriter.checkVat("IT", longValue.toString());
+        Assert.assertEquals(first, SoapRequestWriter.checkVat("IT", "00950501007"));
+    }
+
+    @Test
+    public void testCheckVatApprox() {
+        String prefix = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" +
+                "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Header/><soapenv:Body>" +
+                "<checkVatApprox xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">";
+        String suffix = "</checkVatApprox></soapenv:Body></soapenv:Envelope>";
+
+        VatCheckApproxRequest request = new VatCheckApproxRequest(VatId.of("IT", "00950501007"));
+        Assert.assertEquals(prefix + "<countryCode>IT</countryCode><vatNumber>00950501007</vatNumber>" + suffix,
+                SoapRequestWriter.checkVatApprox(request));
+
+        VatCheckApproxRequest full = request.withRequester(VatId.of("DE", "136695976"))
+                .withTraderName("Banca d'Italia & co")
+                .withTraderCity("Roma");
+        Assert.assertEquals(prefix + "<countryCode>IT</countryCode><vatNumber>00950501007</vatNumber>" +
+                        "<traderName>Banca d'Italia &amp; co</traderName><traderCity>Roma</traderCity>" +
+                        "<requesterCountryCode>DE</requesterCountryCode><requesterVatNumber>136695976</requesterVatNumber>" + suffix,
+                SoapRequestWriter.checkVatApprox(full));
+    }
+}
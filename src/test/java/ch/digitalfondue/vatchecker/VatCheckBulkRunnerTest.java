@@ -0,0 +1,244 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VatCheckBulkRunnerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private static String extract(String body, String element) {
+        return body.substring(body.indexOf("<" + element + ">") + element.length() + 2, body.indexOf("</" + element + ">"));
+    }
+
+    private EUVatChecker checker() {
+        return new EUVatChecker((url, body) -> {
+            calls.incrementAndGet();
+            String vatNumber = extract(body, "vatNumber");
+            if (vatNumber.endsWith("9")) {
+                throw new IllegalStateException("down");
+            }
+            if (vatNumber.endsWith("8")) {
+                return ViesResponses.stream(ViesResponses.FAULT_MS_UNAVAILABLE);
+            }
+            return ViesResponses.stream(vatNumber.endsWith("0") ? ViesResponses.INVALID :
+                    ViesResponses.valid(extract(body, "countryCode"), vatNumber, "NAME, \"" + vatNumber + "\""));
+        });
+    }
+
+    private Path write(String name, String... lines) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private Path csvInput(String name, int count) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("customer,vatId");
+        for (int i = 1; i <= count; i++) {
+            lines.add("c" + i + ",IT" + i);
+        }
+        return write(name, lines.toArray(new String[0]));
+    }
+
+    private static Map<Integer, Map<String, String>> readJson(Path output) throws IOException {
+        Map<Integer, Map<String, String>> records = new HashMap<>();
+        for (String line : Files.readAllLines(output, StandardCharsets.UTF_8)) {
+            Map<String, String> record = new VatCheckBulkRunner.JsonObjectReader(line).read();
+            Assert.assertNull(records.put(Integer.parseInt(record.get("line")), record));
+        }
+        return records;
+    }
+
+    @Test
+    public void testCsvToNdjson() throws IOException {
+        Path input = write("input.csv",
+                "name,vatId",
+                "bank,\"IT 009.505.010-07\"",
+                "",
+                "other,IT10",
+                "broken,\"IT1",
+                "down,IT19",
+                "busy,DE18");
+        Path output = folder.getRoot().toPath().resolve("output.ndjson");
+        VatCheckBulkRunner.Summary summary = new VatCheckBulkRunner(checker(), 4)
+                .run(input, VatCheckBulkRunner.Format.CSV, output, VatCheckBulkRunner.Format.NDJSON);
+        Assert.assertEquals(5, summary.getWrittenCount());
+        Assert.assertEquals(1, summary.getValidCount());
+        Assert.assertEquals(1, summary.getInvalidCount());
+        Assert.assertEquals(1, summary.getFaultCount());
+        Assert.assertEquals(2, summary.getErrorCount());
+        Assert.assertEquals(4, calls.get());
+
+        Map<Integer, Map<String, String>> records = readJson(output);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(2, 4, 5, 6, 7)), records.keySet());
+        Assert.assertEquals("IT00950501007", records.get(2).get("vatId"));
+        Assert.assertEquals("VALID", records.get(2).get("status"));
+        Assert.assertEquals("NAME, \"00950501007\"", records.get(2).get("name"));
+        Assert.assertEquals("2020-10-21", records.get(2).get("requestDate"));
+        Assert.assertEquals("INVALID", records.get(4).get("status"));
+        Assert.assertEquals("UNREADABLE", records.get(5).get("status"));
+        Assert.assertNull(records.get(5).get("vatId"));
+        Assert.assertEquals("ERROR", records.get(6).get("status"));
+        Assert.assertEquals("java.lang.IllegalStateException: down", records.get(6).get("error"));
+        Assert.assertEquals("RETRYABLE_FAULT", records.get(7).get("status"));
+        Assert.assertEquals("MS_UNAVAILABLE", records.get(7).get("faultCode"));
+    }
+
+    @Test
+    public void testNdjsonToCsv() throws IOException {
+        Path input = write("input.ndjson",
+                "{\"id\": 1, \"vatId\": \"IT00950501007\", \"tags\": [\"a\", {\"b\": \"}\"}]}",
+                "{\"countryCode\": \"it\", \"vatNumber\": \"10\"}",
+                "{\"countryCode\": \"IT\"}",
+                "not json");
+        Path output = folder.getRoot().toPath().resolve("output.csv");
+        VatCheckBulkRunner.Summary summary = new VatCheckBulkRunner(new EUVatChecker(ViesResponses.fetcher(ViesResponses.VALID)), 2)
+                .run(input, VatCheckBulkRunner.Format.NDJSON, output, VatCheckBulkRunner.Format.CSV);
+        Assert.assertEquals(2, summary.getValidCount());
+        Assert.assertEquals(2, summary.getErrorCount());
+
+        String csv = new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+        Assert.assertTrue(csv.startsWith("line,status,vatId,name,address,requestDate,faultCode,error\n"));
+        Assert.assertTrue(csv.contains("1,VALID,IT00950501007,BANCA D'ITALIA,\"VIA NAZIONALE 91 \n00184 ROMA RM\n\",2020-10-21,,\n"));
+        Assert.assertTrue(csv.contains("2,VALID,IT10,"));
+        Assert.assertTrue(csv.contains("3,UNREADABLE,,,,,,java.lang.IllegalArgumentException: missing vat number\n"));
+        Assert.assertTrue(csv.contains("4,UNREADABLE,,"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(1, 2, 3, 4)), bits(VatCheckBulkRunner.recover(output, VatCheckBulkRunner.Format.CSV)));
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        Path input = csvInput("input.csv", 50);
+        Path output = folder.getRoot().toPath().resolve("output.csv");
+        // an interrupted run: lines 2 to 21 done, the last record partially written
+        new VatCheckBulkRunner(checker(), 4).run(csvInput("first.csv", 20), VatCheckBulkRunner.Format.CSV, output, VatCheckBulkRunner.Format.CSV);
+        Files.write(output, "22,IT21,".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        calls.set(0);
+
+        // the numbers ending with 8 (retryable fault) and 9 (exception) are not final, they are checked again
+        VatCheckBulkRunner.Summary summary = new VatCheckBulkRunner(checker(), 4)
+                .run(input, VatCheckBulkRunner.Format.CSV, output, VatCheckBulkRunner.Format.CSV);
+        Assert.assertEquals(16, summary.getSkippedCount());
+        Assert.assertEquals(34, summary.getWrittenCount());
+        Assert.assertEquals(34, calls.get());
+
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 1; i <= 50; i++) {
+            if (i % 10 != 8 && i % 10 != 9) {
+                expected.add(i + 1);
+            }
+        }
+        Assert.assertEquals(expected, bits(VatCheckBulkRunner.recover(output, VatCheckBulkRunner.Format.CSV)));
+        List<String> lines = Files.readAllLines(output, StandardCharsets.UTF_8);
+        Assert.assertEquals(1, Collections.frequency(lines, "line,status,vatId,name,address,requestDate,faultCode,error"));
+        Assert.assertEquals(2, lines.stream().filter(line -> line.startsWith("10,")).count());
+
+        // only the failed lines are left
+        calls.set(0);
+        summary = new VatCheckBulkRunner(checker(), 4).run(input, VatCheckBulkRunner.Format.CSV, output, VatCheckBulkRunner.Format.CSV);
+        Assert.assertEquals(40, summary.getSkippedCount());
+        Assert.assertEquals(10, summary.getWrittenCount());
+        Assert.assertEquals(10, calls.get());
+    }
+
+    @Test
+    public void testPermitReleasedWhenCheckThrows() throws IOException {
+        EUVatChecker checker = new EUVatChecker(ViesResponses.fetcher(ViesResponses.VALID)) {
+            @Override
+            public CompletableFuture<EUVatCheckResponse> checkAsync(VatId vatId) {
+                throw new IllegalStateException("rejected");
+            }
+        };
+        Path output = folder.getRoot().toPath().resolve("output.ndjson");
+        VatCheckBulkRunner.Summary summary = new VatCheckBulkRunner(checker, 2)
+                .run(csvInput("input.csv", 10), VatCheckBulkRunner.Format.CSV, output, VatCheckBulkRunner.Format.NDJSON);
+        Assert.assertEquals(10, summary.getErrorCount());
+        Assert.assertEquals("java.lang.IllegalStateException: rejected", readJson(output).get(2).get("error"));
+    }
+
+    @Test
+    public void testUnwritableResponseIsRecordedAsError() throws IOException {
+        EUVatChecker checker = new EUVatChecker(ViesResponses.fetcher(ViesResponses.VALID)) {
+            @Override
+            public CompletableFuture<EUVatCheckResponse> checkAsync(VatId vatId) {
+                return CompletableFuture.completedFuture(new EUVatCheckResponse(true, "NAME", "---", "IT", "1", "21/10/2020") {
+                    @Override
+                    public LocalDate getRequestDate() {
+                        throw new DateTimeParseException("malformed", "21/10/2020", 0);
+                    }
+                });
+            }
+        };
+        Path output = folder.getRoot().toPath().resolve("output.ndjson");
+        VatCheckBulkRunner.Summary summary = new VatCheckBulkRunner(checker, 2)
+                .run(csvInput("input.csv", 3), VatCheckBulkRunner.Format.CSV, output, VatCheckBulkRunner.Format.NDJSON);
+        Assert.assertEquals(3, summary.getWrittenCount());
+        Assert.assertEquals(3, summary.getErrorCount());
+        Map<Integer, Map<String, String>> records = readJson(output);
+        Assert.assertEquals("ERROR", records.get(2).get("status"));
+        Assert.assertEquals("IT1", records.get(2).get("vatId"));
+        Assert.assertTrue(records.get(2).get("error").contains("malformed"));
+        // the failed lines are checked again on resume
+        Assert.assertTrue(VatCheckBulkRunner.recover(output, VatCheckBulkRunner.Format.NDJSON).isEmpty());
+    }
+
+    @Test
+    public void testParallelismLimit() throws IOException {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            return ViesResponses.stream(ViesResponses.VALID);
+        });
+        Path output = folder.getRoot().toPath().resolve("output.ndjson");
+        VatCheckBulkRunner.Summary summary = new VatCheckBulkRunner(checker, 3)
+                .run(csvInput("input.csv", 60), VatCheckBulkRunner.Format.CSV, output, VatCheckBulkRunner.Format.NDJSON);
+        Assert.assertEquals(60, summary.getValidCount());
+        Assert.assertEquals(60, readJson(output).size());
+        Assert.assertTrue(maxInFlight.get() <= 3);
+    }
+
+    private static Set<Integer> bits(BitSet bitSet) {
+        Set<Integer> set = new HashSet<>();
+        bitSet.stream().forEach(set::add);
+        return set;
+    }
+}
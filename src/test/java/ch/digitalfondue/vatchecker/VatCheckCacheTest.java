@@ -0,0 +1,298 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class VatCheckCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private VatCheckCache cache(int maximumSize) {
+        return new VatCheckCache(maximumSize, Duration.ofHours(24), Duration.ofHours(1), Duration.ofMinutes(1), now::get);
+    }
+
+    private EUVatChecker checker(VatCheckCache cache, String response) {
+        return new EUVatChecker((url, body) -> {
+            calls.incrementAndGet();
+            return ViesResponses.stream(response);
+        }).withCache(cache);
+    }
+
+    private void advance(Duration duration) {
+        now.addAndGet(duration.toNanos());
+    }
+
+    @Test
+    public void testKeyNormalization() {
+        VatCheckCache cache = cache(100);
+        EUVatChecker checker = checker(cache, ViesResponses.VALID);
+        checker.check("IT", "00950501007");
+        checker.check("it", " 009.505-010 07 ");
+        checker.check(VatId.parse("IT IT00950501007"));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testValidTtl() {
+        VatCheckCache cache = cache(100);
+        EUVatChecker checker = checker(cache, ViesResponses.VALID);
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertTrue(checker.check("it", "009 505 010 07").isValid());
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        advance(Duration.ofHours(23));
+        checker.check("IT", "00950501007");
+        Assert.assertEquals(1, calls.get());
+
+        advance(Duration.ofHours(1));
+        checker.check("IT", "00950501007");
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidTtl() {
+        EUVatChecker checker = checker(cache(100), ViesResponses.INVALID);
+        Assert.assertFalse(checker.check("IT", "00950501000").isValid());
+        advance(Duration.ofMinutes(59));
+        checker.check("IT", "00950501000");
+        Assert.assertEquals(1, calls.get());
+        advance(Duration.ofMinutes(1));
+        checker.check("IT", "00950501000");
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testFaultTtl() {
+        EUVatChecker retryable = checker(cache(100), ViesResponses.FAULT_MS_UNAVAILABLE);
+        Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, retryable.check("DE", "123456789").getStatus());
+        advance(Duration.ofSeconds(59));
+        retryable.check("DE", "123456789");
+        Assert.assertEquals(1, calls.get());
+        advance(Duration.ofSeconds(1));
+        retryable.check("DE", "123456789");
+        Assert.assertEquals(2, calls.get());
+
+        EUVatChecker permanent = checker(cache(100), ViesResponses.FAULT_INVALID_INPUT);
+        Assert.assertEquals(EUVatCheckResponse.Status.PERMANENT_FAULT, permanent.check("AB", "123").getStatus());
+        advance(Duration.ofMinutes(59));
+        permanent.check("AB", "123");
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testErrorTtl() {
+        VatCheckCache cache = cache(100);
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("down");
+        }).withCache(cache);
+        for (int i = 0; i < 3; i++) {
+            try {
+                checker.check("IT", "00950501007");
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("down", e.getMessage());
+            }
+        }
+        Assert.assertEquals(1, calls.get());
+        advance(Duration.ofMinutes(1));
+        try {
+            checker.check("IT", "00950501007");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(2, calls.get());
+        }
+    }
+
+    @Test
+    public void testErrorsNotCachedWithZeroTtl() {
+        VatCheckCache cache = new VatCheckCache(100, Duration.ofHours(1), Duration.ofHours(1), Duration.ZERO, now::get);
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("down");
+        }).withCache(cache);
+        for (int i = 0; i < 3; i++) {
+            try {
+                checker.check("IT", "00950501007");
+            } catch (IllegalStateException e) {
+            }
+        }
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLruEviction() {
+        VatCheckCache cache = cache(2);
+        EUVatChecker checker = checker(cache, ViesResponses.VALID);
+        checker.check("IT", "1");
+        checker.check("IT", "2");
+        checker.check("IT", "1"); // 2 is now the least recently used
+        checker.check("IT", "3");
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictionCount());
+
+        checker.check("IT", "1");
+        Assert.assertEquals(3, calls.get());
+        checker.check("IT", "2");
+        Assert.assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testSegmentedCacheIsBounded() {
+        VatCheckCache cache = cache(2048);
+        EUVatChecker checker = checker(cache, ViesResponses.VALID);
+        for (int i = 0; i < 10_000; i++) {
+            checker.check("IT", Integer.toString(i));
+        }
+        Assert.assertTrue(cache.size() <= 2048 + 16);
+        Assert.assertEquals(10_000 - cache.size(), cache.getEvictionCount());
+    }
+
+    @Test
+    public void testCheckAsync() throws Exception {
+        VatCheckCache cache = cache(100);
+        EUVatChecker checker = checker(cache, ViesResponses.VALID);
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS).isValid());
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS).isValid());
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(2, cache.getHitCount());
+    }
+
+    private VatCheckCache staleCache() {
+        return new VatCheckCache(100, Duration.ofHours(24), Duration.ofHours(1), Duration.ofMinutes(1), Duration.ofHours(2), now::get);
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() {
+        VatCheckCache cache = staleCache();
+        List<Runnable> refreshes = new ArrayList<>();
+        EUVatChecker checker = checker(cache, ViesResponses.VALID).withExecutor(refreshes::add);
+        checker.check("IT", "00950501007");
+        advance(Duration.ofHours(24));
+
+        // the stale response is served at once, a single refresh is started
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(1, refreshes.size());
+        Assert.assertEquals(2, cache.getStaleHitCount());
+
+        refreshes.get(0).run();
+        Assert.assertEquals(2, calls.get());
+        checker.check("IT", "00950501007");
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, refreshes.size());
+    }
+
+    @Test
+    public void testRejectedRefreshIsTriedAgain() {
+        VatCheckCache cache = staleCache();
+        AtomicBoolean reject = new AtomicBoolean(true);
+        EUVatChecker checker = checker(cache, ViesResponses.VALID).withExecutor(command -> {
+            if (reject.get()) {
+                throw new RejectedExecutionException();
+            }
+            command.run();
+        });
+        checker.check("IT", "00950501007");
+        advance(Duration.ofHours(24));
+
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(1, calls.get());
+        reject.set(false);
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testStaleIfError() {
+        VatCheckCache cache = staleCache();
+        AtomicReference<String> response = new AtomicReference<>(ViesResponses.VALID);
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            calls.incrementAndGet();
+            if (response.get() == null) {
+                throw new IllegalStateException("down");
+            }
+            return ViesResponses.stream(response.get());
+        }).withCache(cache).withExecutor(Runnable::run);
+        checker.check("IT", "00950501007");
+        advance(Duration.ofHours(24));
+
+        response.set(null);
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        response.set(ViesResponses.FAULT_MS_UNAVAILABLE);
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(2, cache.getFailedRefreshCount());
+
+        // expired after the stale time to live
+        advance(Duration.ofHours(2));
+        Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, checker.check("IT", "00950501007").getStatus());
+        Assert.assertEquals(4, calls.get());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testErrorsAreNotStale() {
+        VatCheckCache cache = staleCache();
+        EUVatChecker checker = checker(cache, ViesResponses.FAULT_MS_UNAVAILABLE).withExecutor(Runnable::run);
+        checker.check("DE", "123456789");
+        advance(Duration.ofMinutes(1));
+        checker.check("DE", "123456789");
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(0, cache.getStaleHitCount());
+    }
+
+    @Test
+    public void testStaleWhileRevalidateAsync() throws Exception {
+        VatCheckCache cache = staleCache();
+        AtomicReference<String> response = new AtomicReference<>(ViesResponses.VALID);
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            calls.incrementAndGet();
+            return ViesResponses.stream(response.get());
+        }).withCache(cache).withExecutor(Runnable::run);
+        checker.checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS);
+        advance(Duration.ofHours(24));
+
+        response.set(ViesResponses.INVALID);
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(2, calls.get());
+        Assert.assertFalse(checker.checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(1, cache.getStaleHitCount());
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+public class VatCheckCircuitBreakerTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final VatCheckCircuitBreaker circuitBreaker = new VatCheckCircuitBreaker(0.5, 10, 4, Duration.ofSeconds(30), ticker);
+    private final AtomicBoolean down = new AtomicBoolean(true);
+    private final AtomicInteger calls = new AtomicInteger();
+
+    // DE is down while the flag is set, the other member states answer
+    private BiFunction<String, String, InputStream> fetcher() {
+        return (url, body) -> {
+            calls.incrementAndGet();
+            if (body.contains(">DE<") && down.get()) {
+                return ViesResponses.stream(ViesResponses.FAULT_MS_UNAVAILABLE);
+            }
+            return ViesResponses.stream(ViesResponses.VALID);
+        };
+    }
+
+    @Test
+    public void testOpenAndFailFast() {
+        EUVatChecker checker = new EUVatChecker(fetcher()).withCircuitBreaker(circuitBreaker);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, checker.check("DE", "123456789").getStatus());
+        }
+        Assert.assertEquals(VatCheckCircuitBreaker.State.OPEN, circuitBreaker.getState("de"));
+        Assert.assertEquals(4, calls.get());
+
+        EUVatCheckResponse response = checker.check("DE", "123456789");
+        Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, response.getStatus());
+        Assert.assertEquals("MS_UNAVAILABLE", response.getFaultCode());
+        Assert.assertTrue(response.isCircuitOpen());
+        Assert.assertFalse(ResponseParser.STAX.parse(ViesResponses.stream(ViesResponses.FAULT_MS_UNAVAILABLE)).isCircuitOpen());
+        Assert.assertEquals(4, calls.get());
+        Assert.assertEquals(1, circuitBreaker.getRejectedCount());
+
+        // the other member states are not affected
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(VatCheckCircuitBreaker.State.CLOSED, circuitBreaker.getState("IT"));
+        Assert.assertEquals(2, circuitBreaker.getStates().size());
+    }
+
+    @Test
+    public void testOpenBreakerIsNotRetried() throws Exception {
+        FakeTicker retryTicker = new FakeTicker();
+        RetryPolicy retryPolicy = new RetryPolicy(4, Duration.ofMillis(500), Duration.ofSeconds(2), Duration.ofSeconds(30), retryTicker, () -> 1.0);
+        EUVatChecker checker = new EUVatChecker(fetcher()).withCircuitBreaker(circuitBreaker).withRetryPolicy(retryPolicy);
+        // the webservice faults are retried until the breaker opens
+        Assert.assertEquals(EUVatCheckResponse.Status.RETRYABLE_FAULT, checker.check("DE", "123456789").getStatus());
+        Assert.assertEquals(VatCheckCircuitBreaker.State.OPEN, circuitBreaker.getState("DE"));
+        Assert.assertEquals(4, calls.get());
+        Assert.assertEquals(3, retryTicker.sleeps().size());
+
+        // then the checks return at once
+        Assert.assertEquals("MS_UNAVAILABLE", checker.check("DE", "123456789").getFaultCode());
+        Assert.assertEquals("MS_UNAVAILABLE", checker.checkAsync("DE", "123456789").get(10, TimeUnit.SECONDS).getFaultCode());
+        Assert.assertEquals(3, retryTicker.sleeps().size());
+        Assert.assertEquals(2, circuitBreaker.getRejectedCount());
+        Assert.assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testFailureRate() {
+        EUVatChecker checker = new EUVatChecker(fetcher()).withCircuitBreaker(circuitBreaker);
+        // 3 failures out of 7 calls: below the threshold
+        for (int i = 0; i < 7; i++) {
+            down.set(i > 0 && i % 2 == 0);
+            checker.check("DE", "123456789");
+        }
+        Assert.assertEquals(VatCheckCircuitBreaker.State.CLOSED, circuitBreaker.getState("DE"));
+        // the 4th failure out of 8
+        down.set(true);
+        checker.check("DE", "123456789");
+        Assert.assertEquals(VatCheckCircuitBreaker.State.OPEN, circuitBreaker.getState("DE"));
+        Assert.assertEquals(8, calls.get());
+    }
+
+    @Test
+    public void testHalfOpen() {
+        EUVatChecker checker = new EUVatChecker(fetcher()).withCircuitBreaker(circuitBreaker);
+        for (int i = 0; i < 4; i++) {
+            checker.check("DE", "123456789");
+        }
+        ticker.advance(30_000);
+        Assert.assertEquals(VatCheckCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState("DE"));
+
+        // the probe fails: open again for a full period
+        checker.check("DE", "123456789");
+        Assert.assertEquals(5, calls.get());
+        Assert.assertEquals(VatCheckCircuitBreaker.State.OPEN, circuitBreaker.getState("DE"));
+        ticker.advance(29_000);
+        checker.check("DE", "123456789");
+        Assert.assertEquals(5, calls.get());
+
+        ticker.advance(1_000);
+        down.set(false);
+        Assert.assertTrue(checker.check("DE", "123456789").isValid());
+        Assert.assertEquals(VatCheckCircuitBreaker.State.CLOSED, circuitBreaker.getState("DE"));
+    }
+
+    @Test
+    public void testErrorInProbeIsRecorded() {
+        AtomicBoolean error = new AtomicBoolean();
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            if (error.get()) {
+                throw new AssertionError("boom");
+            }
+            return fetcher().apply(url, body);
+        }).withCircuitBreaker(circuitBreaker);
+        for (int i = 0; i < 4; i++) {
+            checker.check("DE", "123456789");
+        }
+        ticker.advance(30_000);
+        error.set(true);
+        try {
+            checker.check("DE", "123456789");
+            Assert.fail();
+        } catch (AssertionError e) {
+            Assert.assertEquals("boom", e.getMessage());
+        }
+        Assert.assertEquals(VatCheckCircuitBreaker.State.OPEN, circuitBreaker.getState("DE"));
+
+        // the next probe is let through
+        ticker.advance(30_000);
+        error.set(false);
+        down.set(false);
+        Assert.assertTrue(checker.check("DE", "123456789").isValid());
+        Assert.assertEquals(VatCheckCircuitBreaker.State.CLOSED, circuitBreaker.getState("DE"));
+    }
+
+    @Test
+    public void testSingleProbe() {
+        Assert.assertTrue(circuitBreaker.tryAcquire("DE"));
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.record("DE", true);
+        }
+        ticker.advance(30_000);
+        Assert.assertTrue(circuitBreaker.tryAcquire("DE"));
+        Assert.assertFalse(circuitBreaker.tryAcquire("DE"));
+        circuitBreaker.record("DE", false);
+        Assert.assertTrue(circuitBreaker.tryAcquire("DE"));
+        Assert.assertTrue(circuitBreaker.tryAcquire("DE"));
+    }
+
+    @Test
+    public void testExceptionIsFailure() {
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            calls.incrementAndGet();
+            throw new UncheckedIOException(new IOException("read timed out"));
+        }).withCircuitBreaker(circuitBreaker);
+        for (int i = 0; i < 4; i++) {
+            try {
+                checker.check("DE", "123456789");
+                Assert.fail();
+            } catch (UncheckedIOException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals("MS_UNAVAILABLE", checker.check("DE", "123456789").getFaultCode());
+        Assert.assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        EUVatChecker checker = new EUVatChecker(fetcher()).withCircuitBreaker(circuitBreaker);
+        for (int i = 0; i < 4; i++) {
+            checker.checkAsync("DE", "123456789").get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(VatCheckCircuitBreaker.State.OPEN, circuitBreaker.getState("DE"));
+        CompletableFuture<EUVatCheckResponse> rejected = checker.checkAsync("DE", "123456789");
+        Assert.assertTrue(rejected.isDone());
+        Assert.assertEquals("MS_UNAVAILABLE", rejected.get().getFaultCode());
+        Assert.assertEquals(4, calls.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidArguments() {
+        new VatCheckCircuitBreaker(0.5, 10, 20, Duration.ofSeconds(30));
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+public class VatCheckEndpointsTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final List<String> called = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, Long> latencies = new HashMap<>();
+    private final Set<String> down = new HashSet<>();
+    private final Set<String> rejecting = new HashSet<>();
+
+    private VatCheckEndpoints endpoints(double random, String... urls) {
+        return new VatCheckEndpoints(Arrays.asList(urls), 2, Duration.ofSeconds(30), ticker, () -> random);
+    }
+
+    private final BiFunction<String, String, InputStream> fetcher = (url, body) -> {
+        called.add(url);
+        ticker.advance(latencies.getOrDefault(url, 0L));
+        if (down.contains(url)) {
+            throw new IllegalStateException(url + " is down", new IOException(url + " is down"));
+        }
+        if (rejecting.contains(url)) {
+            throw new IllegalStateException("Unexpected HTTP status 404 from " + url);
+        }
+        return ViesResponses.stream(ViesResponses.VALID);
+    };
+
+    private String fetch(VatCheckEndpoints endpoints) {
+        called.clear();
+        endpoints.fetch("<body/>", fetcher);
+        return called.get(called.size() - 1);
+    }
+
+    @Test
+    public void testSingleEndpoint() {
+        EUVatChecker checker = new EUVatChecker(fetcher).withEndpoint("http://proxy");
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertTrue(checker.checkApprox(new VatCheckApproxRequest(VatId.of("IT", "00950501007"))).getStatus() != null);
+        Assert.assertEquals(Arrays.asList("http://proxy", "http://proxy"), called);
+
+        called.clear();
+        new EUVatChecker(fetcher).check("IT", "00950501007");
+        Assert.assertEquals(Collections.singletonList(EUVatChecker.DEFAULT_ENDPOINT), called);
+    }
+
+    @Test
+    public void testLatencyBasedSelection() {
+        VatCheckEndpoints endpoints = endpoints(1.0, "a", "b");
+        latencies.put("a", 200L);
+        latencies.put("b", 50L);
+        // unknown latencies first, in the given order
+        Assert.assertEquals("a", fetch(endpoints));
+        Assert.assertEquals("b", fetch(endpoints));
+        Assert.assertEquals("b", fetch(endpoints));
+        Assert.assertEquals(Duration.ofMillis(200), endpoints.getLatency("a"));
+        Assert.assertEquals(Duration.ofMillis(50), endpoints.getLatency("b"));
+
+        // b becomes slow: the average moves until a is faster
+        latencies.put("b", 1000L);
+        int calls = 0;
+        while (fetch(endpoints).equals("b")) {
+            calls++;
+        }
+        Assert.assertEquals(1, calls);
+        Assert.assertTrue(endpoints.getLatency("b").toMillis() > 200);
+    }
+
+    @Test
+    public void testExploration() {
+        VatCheckEndpoints endpoints = endpoints(0.0, "a", "b");
+        latencies.put("a", 10L);
+        latencies.put("b", 100L);
+        fetch(endpoints);
+        fetch(endpoints);
+        // with a random below the exploration rate, the second best is called
+        Assert.assertEquals("b", fetch(endpoints));
+    }
+
+    @Test
+    public void testFailover() {
+        VatCheckEndpoints endpoints = endpoints(1.0, "a", "b");
+        down.add("a");
+        EUVatChecker checker = new EUVatChecker(fetcher).withEndpoints(endpoints);
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(Arrays.asList("a", "b"), called);
+        Assert.assertTrue(endpoints.isHealthy("a"));
+
+        // after 2 consecutive failures, a is skipped until the cooldown expires
+        Assert.assertEquals("b", fetch(endpoints));
+        Assert.assertFalse(endpoints.isHealthy("a"));
+        fetch(endpoints);
+        Assert.assertEquals(Collections.singletonList("b"), called);
+
+        ticker.advance(30_000);
+        down.clear();
+        latencies.put("b", 100L);
+        Assert.assertEquals("a", fetch(endpoints));
+        Assert.assertTrue(endpoints.isHealthy("a"));
+    }
+
+    @Test
+    public void testAllDown() {
+        VatCheckEndpoints endpoints = endpoints(1.0, "a", "b");
+        down.addAll(Arrays.asList("a", "b"));
+        for (int i = 0; i < 3; i++) {
+            called.clear();
+            try {
+                endpoints.fetch("<body/>", fetcher);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("b is down", e.getMessage());
+                Assert.assertEquals("a is down", e.getSuppressed()[0].getMessage());
+            }
+            // unhealthy urls are still tried when there is nothing else
+            Assert.assertEquals(Arrays.asList("a", "b"), called);
+        }
+    }
+
+    @Test
+    public void testNoFailoverOnNonTransientFailure() throws Exception {
+        VatCheckEndpoints endpoints = endpoints(1.0, "a", "b");
+        rejecting.add("a");
+        for (int i = 0; i < 3; i++) {
+            called.clear();
+            try {
+                endpoints.fetch("<body/>", fetcher);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("Unexpected HTTP status 404 from a", e.getMessage());
+            }
+            Assert.assertEquals(Collections.singletonList("a"), called);
+        }
+        // the url answered, it's not a failure
+        Assert.assertTrue(endpoints.isHealthy("a"));
+
+        called.clear();
+        CompletableFuture<InputStream> response = endpoints.fetchAsync("<body/>", (url, body) -> {
+            called.add(url);
+            CompletableFuture<InputStream> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("bug in " + url));
+            return failed;
+        });
+        try {
+            response.get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals("bug in a", e.getCause().getMessage());
+        }
+        Assert.assertEquals(Collections.singletonList("a"), called);
+        Assert.assertTrue(endpoints.isHealthy("a"));
+    }
+
+    @Test
+    public void testAsyncFailover() throws Exception {
+        VatCheckEndpoints endpoints = endpoints(1.0, "a", "b");
+        EUVatChecker checker = new EUVatChecker(fetcher).withEndpoints(endpoints).withAsyncDocumentFetcher((url, body) -> {
+            called.add(url);
+            CompletableFuture<InputStream> response = new CompletableFuture<>();
+            if ("a".equals(url)) {
+                response.completeExceptionally(new IOException("a is down"));
+            } else {
+                response.complete(ViesResponses.stream(ViesResponses.VALID));
+            }
+            return response;
+        });
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(Arrays.asList("a", "b"), called);
+
+        down.addAll(Arrays.asList("a", "b"));
+        try {
+            new EUVatChecker(fetcher).withEndpoints(endpoints).withExecutor(Runnable::run).checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals("b is down", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testFailoverToSimulator() {
+        try (ViesSimulator simulator = new ViesSimulator(); ViesSimulator stopped = new ViesSimulator()) {
+            stopped.close();
+            VatCheckEndpoints endpoints = new VatCheckEndpoints(stopped.getEndpoint(), simulator.getEndpoint());
+            EUVatChecker checker = new EUVatChecker().withEndpoints(endpoints);
+            Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            Assert.assertEquals(1, simulator.getRequestCount());
+            Assert.assertNull(endpoints.getLatency(stopped.getEndpoint()));
+            Assert.assertNotNull(endpoints.getLatency(simulator.getEndpoint()));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VatCheckLimiterTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    private static EUVatChecker checker(VatCheckLimiter limiter) {
+        return new EUVatChecker(ViesResponses.fetcher(ViesResponses.VALID)).withLimiter(limiter);
+    }
+
+    @Test
+    public void testCountryRate() {
+        VatCheckLimiter limiter = new VatCheckLimiter(VatCheckLimiter.Limit.UNLIMITED,
+                VatCheckLimiter.Limit.UNLIMITED,
+                Collections.singletonMap("it", VatCheckLimiter.Limit.ofRate(10, 2)), ticker);
+        EUVatChecker checker = checker(limiter);
+        // burst of 2, then one every 100ms
+        for (int i = 0; i < 6; i++) {
+            checker.check("IT", "00950501007");
+        }
+        Assert.assertEquals(400, ticker.totalSleptMillis());
+
+        // other countries are not limited
+        for (int i = 0; i < 6; i++) {
+            checker.check("DE", "123456789");
+        }
+        Assert.assertEquals(400, ticker.totalSleptMillis());
+    }
+
+    @Test
+    public void testTokensRefillWhileIdle() {
+        VatCheckLimiter limiter = new VatCheckLimiter(VatCheckLimiter.Limit.UNLIMITED,
+                VatCheckLimiter.Limit.ofRate(10, 3),
+                Collections.emptyMap(), ticker);
+        EUVatChecker checker = checker(limiter);
+        for (int i = 0; i < 3; i++) {
+            checker.check("IT", "00950501007");
+        }
+        Assert.assertEquals(0, ticker.totalSleptMillis());
+        ticker.advance(1000);
+        // the bucket is full again, but never above the burst size
+        for (int i = 0; i < 4; i++) {
+            checker.check("IT", "00950501007");
+        }
+        Assert.assertEquals(100, ticker.totalSleptMillis());
+    }
+
+    @Test
+    public void testGlobalRate() {
+        VatCheckLimiter limiter = new VatCheckLimiter(VatCheckLimiter.Limit.ofRate(5, 1),
+                VatCheckLimiter.Limit.UNLIMITED,
+                Collections.emptyMap(), ticker);
+        EUVatChecker checker = checker(limiter);
+        checker.check("IT", "1");
+        checker.check("DE", "2");
+        checker.check("FR", "3");
+        Assert.assertEquals(400, ticker.totalSleptMillis());
+    }
+
+    @Test
+    public void testConcurrency() throws Exception {
+        VatCheckLimiter limiter = new VatCheckLimiter(VatCheckLimiter.Limit.ofConcurrency(3),
+                VatCheckLimiter.Limit.ofConcurrency(2),
+                Collections.emptyMap(), ticker);
+        Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> maxInFlight = new ConcurrentHashMap<>();
+        AtomicInteger globalInFlight = new AtomicInteger();
+        AtomicInteger globalMaxInFlight = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            String countryCode = body.substring(body.indexOf("<countryCode>") + 13, body.indexOf("</countryCode>"));
+            int current = inFlight.computeIfAbsent(countryCode, k -> new AtomicInteger()).incrementAndGet();
+            maxInFlight.computeIfAbsent(countryCode, k -> new AtomicInteger()).accumulateAndGet(current, Math::max);
+            globalMaxInFlight.accumulateAndGet(globalInFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            globalInFlight.decrementAndGet();
+            inFlight.get(countryCode).decrementAndGet();
+            return ViesResponses.stream(ViesResponses.VALID);
+        }).withLimiter(limiter);
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<EUVatCheckResponse>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                String countryCode = i % 2 == 0 ? "IT" : "DE";
+                results.add(executor.submit(() -> checker.check(countryCode, "123")));
+            }
+            for (Future<EUVatCheckResponse> result : results) {
+                Assert.assertTrue(result.get(30, TimeUnit.SECONDS).isValid());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(maxInFlight.get("IT").get() <= 2);
+        Assert.assertTrue(maxInFlight.get("DE").get() <= 2);
+        Assert.assertTrue(globalMaxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void testThrottledCountryDoesNotHoldGlobalPermits() throws Exception {
+        CountDownLatch sleeping = new CountDownLatch(1);
+        CountDownLatch wakeUp = new CountDownLatch(1);
+        Ticker blockingTicker = new Ticker() {
+            @Override
+            public long nanoTime() {
+                return 0;
+            }
+
+            @Override
+            public void sleep(long nanos) throws InterruptedException {
+                sleeping.countDown();
+                wakeUp.await();
+            }
+
+            @Override
+            public CompletableFuture<Void> delay(long nanos) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        VatCheckLimiter limiter = new VatCheckLimiter(VatCheckLimiter.Limit.ofConcurrency(1),
+                VatCheckLimiter.Limit.UNLIMITED,
+                Collections.singletonMap("DE", VatCheckLimiter.Limit.ofRate(0.1, 1)), blockingTicker);
+        EUVatChecker checker = checker(limiter);
+        checker.check("DE", "123456789");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<EUVatCheckResponse> throttled = executor.submit(() -> checker.check("DE", "123456789"));
+            Assert.assertTrue(sleeping.await(10, TimeUnit.SECONDS));
+            // the only global permit is free while DE waits for its rate
+            CompletableFuture<EUVatCheckResponse> other = CompletableFuture.supplyAsync(() -> checker.check("IT", "00950501007"));
+            Assert.assertTrue(other.get(10, TimeUnit.SECONDS).isValid());
+            wakeUp.countDown();
+            Assert.assertTrue(throttled.get(10, TimeUnit.SECONDS).isValid());
+        } finally {
+            wakeUp.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPermitReleasedOnFailure() {
+        VatCheckLimiter limiter = new VatCheckLimiter(VatCheckLimiter.Limit.ofConcurrency(1),
+                VatCheckLimiter.Limit.UNLIMITED,
+                Collections.emptyMap(), ticker);
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            throw new IllegalStateException("down");
+        }).withLimiter(limiter);
+        for (int i = 0; i < 3; i++) {
+            try {
+                checker.check("IT", "00950501007");
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("down", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testCheckAsync() throws Exception {
+        VatCheckLimiter limiter = new VatCheckLimiter(VatCheckLimiter.Limit.ofConcurrency(1),
+                VatCheckLimiter.Limit.ofRate(10, 1),
+                Collections.emptyMap(), ticker);
+        EUVatChecker checker = new EUVatChecker(ViesResponses.fetcher(ViesResponses.VALID))
+                .withAsyncDocumentFetcher((url, body) -> CompletableFuture.completedFuture(ViesResponses.stream(ViesResponses.VALID)))
+                .withLimiter(limiter);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(checker.checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS).isValid());
+        }
+        Assert.assertEquals(200, ticker.totalSleptMillis());
+    }
+}
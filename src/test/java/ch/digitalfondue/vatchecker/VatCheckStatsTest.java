@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+public class VatCheckStatsTest {
+
+    private final VatCheckStats stats = new VatCheckStats();
+
+    private static BiFunction<String, String, InputStream> sleeping(String response, long millis) {
+        return (url, body) -> {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return ViesResponses.stream(response);
+        };
+    }
+
+    @Test
+    public void testPhases() {
+        EUVatChecker checker = new EUVatChecker(sleeping(ViesResponses.VALID, 20)).withMetrics(stats);
+        Assert.assertTrue(checker.check("it", "00950501007").isValid());
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+
+        Assert.assertEquals(Collections.singleton("IT"), stats.getCountryCodes());
+        Assert.assertEquals(2, stats.getCallCount("IT"));
+        Assert.assertEquals(2, stats.getCallCount("IT", EUVatCheckResponse.Status.VALID));
+        for (VatCheckMetrics.Phase phase : VatCheckMetrics.Phase.values()) {
+            Assert.assertEquals(2, stats.getPhaseLatency("IT", phase).getCount());
+        }
+        LatencyHistogram fetch = stats.getPhaseLatency("IT", VatCheckMetrics.Phase.FETCH);
+        Assert.assertTrue(fetch.getValueAtPercentile(50, TimeUnit.MILLISECONDS) >= 18);
+        Assert.assertTrue(stats.getCallLatency("IT").getMax(TimeUnit.NANOSECONDS) >= fetch.getMax(TimeUnit.NANOSECONDS));
+        Assert.assertEquals(0, stats.getCallCount("DE"));
+        Assert.assertEquals(0, stats.getCallLatency("DE").getCount());
+    }
+
+    @Test
+    public void testOutcomes() {
+        new EUVatChecker(ViesResponses.fetcher(ViesResponses.INVALID)).withMetrics(stats).check("DE", "1");
+        new EUVatChecker(ViesResponses.fetcher(ViesResponses.FAULT_MS_UNAVAILABLE)).withMetrics(stats).check("DE", "2");
+        try {
+            new EUVatChecker((url, body) -> {
+                throw new IllegalStateException("down");
+            }).withMetrics(stats).check("DE", "3");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+        }
+        Assert.assertEquals(3, stats.getCallCount("DE"));
+        Assert.assertEquals(1, stats.getCallCount("DE", EUVatCheckResponse.Status.INVALID));
+        Assert.assertEquals(1, stats.getCallCount("DE", EUVatCheckResponse.Status.RETRYABLE_FAULT));
+        Assert.assertEquals(1, stats.getErrorCount("DE"));
+        // no response to parse after the failed fetch
+        Assert.assertEquals(3, stats.getPhaseLatency("DE", VatCheckMetrics.Phase.FETCH).getCount());
+        Assert.assertEquals(2, stats.getPhaseLatency("DE", VatCheckMetrics.Phase.PARSE).getCount());
+    }
+
+    @Test
+    public void testOnlyCallsAreMeasured() {
+        VatCheckCache cache = new VatCheckCache(100, Duration.ofHours(1), Duration.ofHours(1), Duration.ZERO);
+        EUVatChecker checker = new EUVatChecker(ViesResponses.fetcher(ViesResponses.FAULT_MS_UNAVAILABLE))
+                .withMetrics(stats)
+                .withFormatValidation()
+                .withCache(cache)
+                .withRetryPolicy(new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(1), Duration.ofSeconds(10)));
+        checker.check("IT", "00950501007");
+        checker.check("IT", "12345");
+        Assert.assertEquals(3, stats.getCallCount("IT", EUVatCheckResponse.Status.RETRYABLE_FAULT));
+        Assert.assertEquals(3, stats.getCallCount("IT"));
+    }
+
+    @Test
+    public void testCheckAsync() throws Exception {
+        EUVatChecker checker = new EUVatChecker(ViesResponses.fetcher(ViesResponses.VALID)).withMetrics(stats);
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").get(10, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(1, stats.getCallCount("IT", EUVatCheckResponse.Status.VALID));
+        for (VatCheckMetrics.Phase phase : VatCheckMetrics.Phase.values()) {
+            Assert.assertEquals(1, stats.getPhaseLatency("IT", phase).getCount());
+        }
+
+        CompletableFuture<InputStream> pending = new CompletableFuture<>();
+        CompletableFuture<EUVatCheckResponse> result = checker.withAsyncDocumentFetcher((url, body) -> pending).checkAsync("IT", "1");
+        Assert.assertEquals(1, stats.getPhaseLatency("IT", VatCheckMetrics.Phase.FETCH).getCount());
+        pending.completeExceptionally(new IllegalStateException("down"));
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+        }
+        Assert.assertEquals(2, stats.getPhaseLatency("IT", VatCheckMetrics.Phase.FETCH).getCount());
+        Assert.assertEquals(1, stats.getErrorCount("IT"));
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+public class VatCheckStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(1_600_000_000_000L);
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private VatCheckStore open(Path file) {
+        return new VatCheckStore(file, Duration.ofDays(1), Duration.ofHours(1), now::get);
+    }
+
+    private BiFunction<String, String, InputStream> fetcher(String response) {
+        return (url, body) -> {
+            calls.incrementAndGet();
+            return ViesResponses.stream(response);
+        };
+    }
+
+    private static EUVatCheckResponse parse(String response) {
+        return ResponseParser.STAX.parse(ViesResponses.stream(response));
+    }
+
+    @Test
+    public void testSurvivesRestart() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("store");
+        try (VatCheckStore store = open(file)) {
+            store.put(VatId.of("IT", "00950501007"), parse(ViesResponses.VALID));
+            store.put(VatId.of("IT", "00950501000"), parse(ViesResponses.INVALID));
+        }
+        try (VatCheckStore store = open(file)) {
+            Assert.assertEquals(2, store.size());
+            EUVatCheckResponse valid = store.getIfPresent(VatId.of("IT", "00950501007"));
+            Assert.assertEquals(EUVatCheckResponse.Status.VALID, valid.getStatus());
+            Assert.assertEquals("BANCA D'ITALIA", valid.getName());
+            Assert.assertEquals("VIA NAZIONALE 91 \n00184 ROMA RM\n", valid.getAddress());
+            Assert.assertEquals("IT", valid.getCountryCode());
+            Assert.assertEquals("00950501007", valid.getVatNumber());
+            Assert.assertEquals(LocalDate.of(2020, 10, 21), valid.getRequestDate());
+            Assert.assertEquals(EUVatCheckResponse.Status.INVALID, store.getIfPresent(VatId.of("IT", "00950501000")).getStatus());
+            Assert.assertNull(store.getIfPresent(VatId.of("DE", "136695976")));
+            Assert.assertEquals(2, store.getHitCount());
+            Assert.assertEquals(1, store.getMissCount());
+        }
+    }
+
+    @Test
+    public void testTtl() {
+        Path file = folder.getRoot().toPath().resolve("store");
+        try (VatCheckStore store = open(file)) {
+            store.put(VatId.of("IT", "00950501007"), parse(ViesResponses.VALID));
+            store.put(VatId.of("IT", "00950501000"), parse(ViesResponses.INVALID));
+            now.addAndGet(TimeUnit.HOURS.toMillis(2));
+            Assert.assertNotNull(store.getIfPresent(VatId.of("IT", "00950501007")));
+            Assert.assertNull(store.getIfPresent(VatId.of("IT", "00950501000")));
+        }
+        now.addAndGet(TimeUnit.DAYS.toMillis(1));
+        try (VatCheckStore store = open(file)) {
+            Assert.assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    public void testExpiredRecordSupersedesOlderOneOnRestart() {
+        Path file = folder.getRoot().toPath().resolve("store");
+        VatId vatId = VatId.of("IT", "00950501007");
+        try (VatCheckStore store = open(file)) {
+            store.put(vatId, parse(ViesResponses.VALID));
+            now.addAndGet(TimeUnit.HOURS.toMillis(12));
+            store.put(vatId, parse(ViesResponses.INVALID));
+        }
+        // the invalid response has expired, the valid one would still be live but has been superseded
+        now.addAndGet(TimeUnit.HOURS.toMillis(2));
+        try (VatCheckStore store = open(file)) {
+            Assert.assertNull(store.getIfPresent(vatId));
+            Assert.assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    public void testStaleCacheEntryIsRefreshedFromTheWebservice() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store");
+        AtomicLong cacheNow = new AtomicLong();
+        VatCheckCache cache = new VatCheckCache(100, Duration.ofSeconds(1), Duration.ofSeconds(1), Duration.ZERO, Duration.ofDays(1), cacheNow::get);
+        VatId vatId = VatId.of("IT", "00950501007");
+        try (VatCheckStore store = open(file)) {
+            EUVatChecker checker = new EUVatChecker(fetcher(ViesResponses.VALID)).withCache(cache).withStore(store).withExecutor(Runnable::run);
+            checker.check(vatId);
+            Assert.assertEquals(1, calls.get());
+
+            cacheNow.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            Assert.assertTrue(checker.check(vatId).isValid());
+            Assert.assertEquals(2, calls.get());
+
+            cacheNow.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            Assert.assertTrue(checker.checkAsync(vatId).get(10, TimeUnit.SECONDS).isValid());
+            Assert.assertEquals(3, calls.get());
+
+            Assert.assertEquals(2, cache.getStaleHitCount());
+            Assert.assertEquals(0, store.getHitCount());
+        }
+    }
+
+    @Test
+    public void testCheckAfterCloseIsNotFailed() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store");
+        VatCheckStore store = open(file);
+        EUVatChecker checker = new EUVatChecker(fetcher(ViesResponses.VALID)).withStore(store);
+        store.close();
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertTrue(checker.checkAsync("IT", "00950501000").get(5, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(2, store.getDroppedWriteCount());
+        Assert.assertEquals(0, store.size());
+        store.flush();
+        store.compact();
+    }
+
+    @Test
+    public void testFaultsAreNotStored() {
+        Path file = folder.getRoot().toPath().resolve("store");
+        try (VatCheckStore store = open(file)) {
+            store.put(VatId.of("IT", "00950501007"), parse(ViesResponses.FAULT_MS_UNAVAILABLE));
+            store.put(VatId.of("AB", "00950501007"), parse(ViesResponses.FAULT_INVALID_INPUT));
+            Assert.assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    public void testRecoverFromTornWrite() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("store");
+        try (VatCheckStore store = open(file)) {
+            store.put(VatId.of("IT", "00950501007"), parse(ViesResponses.VALID));
+            store.flush();
+            store.put(VatId.of("IT", "00950501000"), parse(ViesResponses.INVALID));
+        }
+        long complete = Files.size(file);
+        // a crash in the middle of the last record
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            fc.truncate(complete - 5);
+        }
+        try (VatCheckStore store = open(file)) {
+            Assert.assertEquals(1, store.size());
+            Assert.assertNotNull(store.getIfPresent(VatId.of("IT", "00950501007")));
+            // the partial record has been cut
+            Assert.assertTrue(Files.size(file) < complete - 5);
+            store.put(VatId.of("DE", "136695976"), parse(ViesResponses.valid("DE", "136695976", "GOOGLE")));
+        }
+        try (VatCheckStore store = open(file)) {
+            Assert.assertEquals(2, store.size());
+            Assert.assertEquals("GOOGLE", store.getIfPresent(VatId.of("DE", "136695976")).getName());
+        }
+    }
+
+    @Test
+    public void testLongValuesSurviveRestart() {
+        Path file = folder.getRoot().toPath().resolve("store");
+        StringBuilder address = new StringBuilder();
+        for (int i = 0; i < 40_000; i++) {
+            address.append('è');
+        }
+        try (VatCheckStore store = open(file)) {
+            store.put(VatId.of("IT", "00950501007"), new EUVatCheckResponse(true, "BANCA D'ITALIA", address.toString(), "IT", "00950501007", "2020-10-21+02:00"));
+            store.put(VatId.of("IT", "00950501000"), parse(ViesResponses.INVALID));
+            store.flush();
+            Assert.assertEquals(0, store.getDroppedWriteCount());
+        }
+        try (VatCheckStore store = open(file)) {
+            Assert.assertEquals(2, store.size());
+            Assert.assertEquals(address.toString(), store.getIfPresent(VatId.of("IT", "00950501007")).getAddress());
+            Assert.assertEquals(EUVatCheckResponse.Status.INVALID, store.getIfPresent(VatId.of("IT", "00950501000")).getStatus());
+        }
+    }
+
+    @Test
+    public void testRecoverFromCorruptedRecord() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("store");
+        try (VatCheckStore store = open(file)) {
+            store.put(VatId.of("IT", "00950501007"), parse(ViesResponses.VALID));
+            store.flush();
+        }
+        long firstRecordEnd = Files.size(file);
+        try (VatCheckStore store = open(file)) {
+            store.put(VatId.of("IT", "00950501000"), parse(ViesResponses.INVALID));
+        }
+        byte[] content = Files.readAllBytes(file);
+        content[(int) firstRecordEnd + 10] ^= 0xFF;
+        Files.write(file, content);
+        try (VatCheckStore store = open(file)) {
+            Assert.assertEquals(1, store.size());
+            Assert.assertEquals(firstRecordEnd, Files.size(file));
+        }
+    }
+
+    @Test
+    public void testNotAStore() throws IOException {
+        Path file = folder.newFile("other").toPath();
+        Files.write(file, "hello world".getBytes("UTF-8"));
+        try {
+            open(file);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("not a vat check store"));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("store");
+        try (VatCheckStore store = open(file)) {
+            for (int i = 0; i < 100; i++) {
+                store.put(VatId.of("IT", "00950501007"), parse(ViesResponses.VALID));
+                store.put(VatId.of("DE", Integer.toString(i % 2)), parse(ViesResponses.INVALID));
+            }
+            store.flush();
+            long beforeCompaction = Files.size(file);
+            store.compact();
+            Assert.assertTrue(Files.size(file) < beforeCompaction / 10);
+            store.put(VatId.of("DE", "136695976"), parse(ViesResponses.VALID));
+        }
+        try (VatCheckStore store = open(file)) {
+            Assert.assertEquals(4, store.size());
+            Assert.assertTrue(store.getIfPresent(VatId.of("IT", "00950501007")).isValid());
+            Assert.assertFalse(store.getIfPresent(VatId.of("DE", "1")).isValid());
+        }
+        Assert.assertFalse(Files.exists(file.resolveSibling("store.compact")));
+    }
+
+    @Test
+    public void testAutomaticCompaction() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("store");
+        try (VatCheckStore store = open(file)) {
+            for (int i = 0; i < 5000; i++) {
+                store.put(VatId.of("IT", "00950501007"), parse(ViesResponses.VALID));
+                if (i % 100 == 0) {
+                    store.flush();
+                }
+            }
+            store.flush();
+            // far less than the 5000 records written
+            Assert.assertTrue(Files.size(file) < 2000 * 150);
+        }
+    }
+
+    @Test
+    public void testCheckerReadThrough() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store");
+        try (VatCheckStore store = open(file)) {
+            EUVatChecker checker = new EUVatChecker(fetcher(ViesResponses.VALID)).withStore(store);
+            Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            Assert.assertEquals(1, calls.get());
+        }
+        // after a restart, with a cold cache
+        try (VatCheckStore store = open(file)) {
+            VatCheckCache cache = new VatCheckCache(100, Duration.ofHours(1), Duration.ofHours(1), Duration.ZERO);
+            EUVatChecker checker = new EUVatChecker(fetcher(ViesResponses.VALID)).withCache(cache).withStore(store);
+            Assert.assertEquals("BANCA D'ITALIA", checker.check("IT", "00950501007").getName());
+            Assert.assertEquals("BANCA D'ITALIA", checker.checkAsync("IT", "00950501007").get(5, TimeUnit.SECONDS).getName());
+            Assert.assertEquals(1, calls.get());
+            Assert.assertEquals(1, store.getHitCount());
+
+            Assert.assertTrue(checker.checkAsync("IT", "00950501000").get(5, TimeUnit.SECONDS).isValid());
+            Assert.assertEquals(2, calls.get());
+            store.flush();
+            Assert.assertEquals(2, store.size());
+        }
+    }
+}
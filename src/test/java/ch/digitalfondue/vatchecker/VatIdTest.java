@@ -0,0 +1,107 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class VatIdTest {
+
+    private static void assertVatId(String countryCode, String vatNumber, VatId vatId) {
+        Assert.assertEquals(countryCode, vatId.getCountryCode());
+        Assert.assertEquals(vatNumber, vatId.getVatNumber());
+    }
+
+    @Test
+    public void testNormalization() {
+        assertVatId("IT", "00950501007", VatId.of("IT", "00950501007"));
+        assertVatId("IT", "00950501007", VatId.of("it", " 009.505.010-07 "));
+        assertVatId("IT", "00950501007", VatId.of("IT", "IT00950501007"));
+        assertVatId("IT", "00950501007", VatId.of("IT", "it 00950501007"));
+        assertVatId("AT", "U10223006", VatId.of("at", "atu10223006"));
+        assertVatId("NL", "004495445B01", VatId.of("nl", "NL0044.95.445.B.01"));
+        assertVatId("IT", "", VatId.of("IT", " "));
+    }
+
+    @Test
+    public void testPrefixIsRemovedOnce() {
+        assertVatId("IT", "IT00950501007", VatId.of("IT", "ITIT00950501007"));
+        assertVatId("IT", "IT00950501007", VatId.parse("IT IT IT 00950501007"));
+        Assert.assertFalse(VatNumberFormat.isValid("IT", VatId.of("IT", "ITIT00950501007").getVatNumber()));
+    }
+
+    @Test
+    public void testGreece() {
+        assertVatId("EL", "094014201", VatId.of("GR", "094014201"));
+        assertVatId("EL", "094014201", VatId.of("gr", "GR094014201"));
+        assertVatId("EL", "094014201", VatId.of("EL", "EL094014201"));
+        assertVatId("EL", "094014201", VatId.of("EL", "GR094014201"));
+    }
+
+    @Test
+    public void testFrenchKey() {
+        // FR is a valid key of a french number: only a full number after it is a prefix
+        assertVatId("FR", "FR303265045", VatId.of("FR", "FR303265045"));
+        assertVatId("FR", "40303265045", VatId.of("FR", "FR40303265045"));
+        assertVatId("FR", "FR303265045", VatId.of("FR", "FRFR303265045"));
+    }
+
+    @Test
+    public void testParse() {
+        assertVatId("IT", "00950501007", VatId.parse("IT00950501007"));
+        assertVatId("IT", "00950501007", VatId.parse(" it 009 505 010 07"));
+        assertVatId("EL", "094014201", VatId.parse("GR094014201"));
+        try {
+            VatId.parse(" I ");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        VatId a = VatId.of("IT", "00950501007");
+        VatId b = VatId.parse("it 009.505.010.07");
+        Assert.assertEquals(a, b);
+        Assert.assertEquals(a.hashCode(), b.hashCode());
+        // only depends on the normalized strings
+        Assert.assertEquals(31 * "IT".hashCode() + "00950501007".hashCode(), a.hashCode());
+        Assert.assertNotEquals(a, VatId.of("IT", "00950501008"));
+        Assert.assertEquals("IT00950501007", a.toString());
+    }
+
+    @Test
+    public void testNoCopyWhenNormalized() {
+        String vatNumber = "00950501007";
+        Assert.assertSame(vatNumber, VatId.of("IT", vatNumber).getVatNumber());
+    }
+
+    @Test
+    public void testCheckerSendsNormalizedValues() {
+        AtomicReference<String> sent = new AtomicReference<>();
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            sent.set(body);
+            return ViesResponses.stream(ViesResponses.VALID);
+        });
+        Assert.assertTrue(checker.check("gr", "GR 094 014 201").isValid());
+        Assert.assertEquals(EUVatChecker.prepareTemplate("EL", "094014201"), sent.get());
+        Assert.assertTrue(checker.check(VatId.parse("IT 00950501007")).isValid());
+        Assert.assertEquals(EUVatChecker.prepareTemplate("IT", "00950501007"), sent.get());
+    }
+}
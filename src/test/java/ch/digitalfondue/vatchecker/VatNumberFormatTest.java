@@ -0,0 +1,175 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VatNumberFormatTest {
+
+    // country code, valid vat number, index of a check digit (-1 when only the syntax is verified)
+    private static final Object[][] VALID = {
+            {"AT", "U10223006", 8},
+            {"BE", "0411905847", 9},
+            {"BE", "411905847", 8},
+            {"BG", "175074752", 8},
+            {"BG", "7523169263", -1},
+            {"CY", "10259033P", 8},
+            {"CZ", "25123891", 7},
+            {"CZ", "7103192745", -1},
+            {"DE", "136695976", 8},
+            {"DK", "13585628", 7},
+            {"EE", "100931558", 8},
+            {"EL", "094014201", 8},
+            {"ES", "B58378431", 8},
+            {"ES", "B5837843A", 7},
+            {"ES", "J99216582", 8},
+            {"ES", "X2482300W", 7},
+            {"ES", "54362315K", 7},
+            {"ES", "M1234567L", 7},
+            {"FI", "09853608", 7},
+            {"FR", "40303265045", 1},
+            {"FR", "K7399859412", 10},
+            {"HR", "33392005961", 10},
+            {"HU", "12892312", 7},
+            {"IE", "6388047V", 6},
+            {"IE", "6433435F", 6},
+            {"IE", "8D79739I", 0},
+            {"IE", "1234567FA", 6},
+            {"IT", "00950501007", 10},
+            {"LT", "119511515", 8},
+            {"LT", "100001919017", 11},
+            {"LU", "26375245", 7},
+            {"LV", "40003521600", -1},
+            {"MT", "11679112", 7},
+            {"NL", "004495445B01", 8},
+            {"NL", "000099998B57", 11},
+            {"PL", "5260250274", 9},
+            {"PT", "501964843", 8},
+            {"RO", "18547290", 7},
+            {"RO", "11198699", 7},
+            {"SE", "556188840401", 9},
+            {"SI", "50223054", 7},
+            {"SK", "2022749619", 9},
+            {"XI", "980780684", -1},
+            {"XI", "GD001", -1},
+    };
+
+    @Test
+    public void testValidNumbers() {
+        for (Object[] valid : VALID) {
+            Assert.assertTrue(valid[0] + " " + valid[1], VatNumberFormat.isValid((String) valid[0], (String) valid[1]));
+        }
+    }
+
+    @Test
+    public void testEveryOtherCheckDigitIsRejected() {
+        for (Object[] valid : VALID) {
+            int index = (Integer) valid[2];
+            if (index < 0) {
+                continue;
+            }
+            String number = (String) valid[1];
+            for (char c = '0'; c <= '9'; c++) {
+                if (c == number.charAt(index)) {
+                    continue;
+                }
+                String altered = number.substring(0, index) + c + number.substring(index + 1);
+                Assert.assertFalse(valid[0] + " " + altered, VatNumberFormat.isValid((String) valid[0], altered));
+            }
+        }
+    }
+
+    @Test
+    public void testCheckLetters() {
+        Assert.assertFalse(VatNumberFormat.isValid("ES", "54362315Z"));
+        Assert.assertFalse(VatNumberFormat.isValid("ES", "X2482300A"));
+        Assert.assertFalse(VatNumberFormat.isValid("ES", "M1234567K"));
+        Assert.assertFalse(VatNumberFormat.isValid("ES", "B5837843B"));
+        Assert.assertFalse(VatNumberFormat.isValid("ES", "543623150"));
+        Assert.assertFalse(VatNumberFormat.isValid("IE", "6433435E"));
+        Assert.assertFalse(VatNumberFormat.isValid("IE", "8D79739J"));
+        Assert.assertFalse(VatNumberFormat.isValid("IE", "1234567FB"));
+        Assert.assertFalse(VatNumberFormat.isValid("FR", "L7399859412"));
+    }
+
+    @Test
+    public void testSyntax() {
+        Assert.assertFalse(VatNumberFormat.isValid("AT", "10223006"));
+        Assert.assertFalse(VatNumberFormat.isValid("DE", "13669597"));
+        Assert.assertFalse(VatNumberFormat.isValid("DE", "1366959760"));
+        Assert.assertFalse(VatNumberFormat.isValid("DE", "036695976"));
+        Assert.assertFalse(VatNumberFormat.isValid("IT", "0095050100A"));
+        Assert.assertFalse(VatNumberFormat.isValid("NL", "004495445X01"));
+        Assert.assertFalse(VatNumberFormat.isValid("SE", "556188840402"));
+        Assert.assertFalse(VatNumberFormat.isValid("FR", "IO303265045"));
+        Assert.assertFalse(VatNumberFormat.isValid("ES", "B5837843"));
+        Assert.assertFalse(VatNumberFormat.isValid("IT", ""));
+    }
+
+    @Test
+    public void testSeparatorsAndCase() {
+        Assert.assertTrue(VatNumberFormat.isValid("it", "009 505 010 07"));
+        Assert.assertTrue(VatNumberFormat.isValid("BE", "0411.905.847"));
+        Assert.assertTrue(VatNumberFormat.isValid("AT", "u10223006"));
+        Assert.assertTrue(VatNumberFormat.isValid("NL", "0044-9544-5b01"));
+    }
+
+    @Test
+    public void testCountryCodes() {
+        Assert.assertEquals(new HashSet<>(Arrays.asList("AT", "BE", "BG", "CY", "CZ", "DE", "DK", "EE", "EL", "ES",
+                "FI", "FR", "HR", "HU", "IE", "IT", "LT", "LU", "LV", "MT", "NL", "PL", "PT", "RO", "SE", "SI", "SK", "XI")),
+                VatNumberFormat.countryCodes());
+        Assert.assertTrue(VatNumberFormat.isKnownCountryCode("el"));
+        // Greece is EL in VIES, GR is replaced as in VatId
+        Assert.assertTrue(VatNumberFormat.isKnownCountryCode("GR"));
+        Assert.assertTrue(VatNumberFormat.isValid("gr", "094014201"));
+        Assert.assertFalse(VatNumberFormat.isValid("GR", "094014202"));
+        Assert.assertFalse(VatNumberFormat.isKnownCountryCode("AB"));
+        Assert.assertFalse(VatNumberFormat.isKnownCountryCode("GB"));
+    }
+
+    @Test
+    public void testCheckerShortCircuit() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            calls.incrementAndGet();
+            return ViesResponses.stream(ViesResponses.VALID);
+        }).withFormatValidation();
+
+        EUVatCheckResponse unknownCountry = checker.check("AB", "00950501007");
+        Assert.assertEquals(EUVatCheckResponse.Status.PERMANENT_FAULT, unknownCountry.getStatus());
+        Assert.assertEquals("INVALID_INPUT", unknownCountry.getFaultCode());
+
+        EUVatCheckResponse malformed = checker.check("IT", "00950501008");
+        Assert.assertEquals(EUVatCheckResponse.Status.INVALID, malformed.getStatus());
+        Assert.assertFalse(malformed.isValid());
+        Assert.assertEquals("IT", malformed.getCountryCode());
+        Assert.assertEquals("00950501008", malformed.getVatNumber());
+        Assert.assertNull(malformed.getRequestDate());
+        Assert.assertFalse(checker.checkAsync("IT", "123").get(5, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(0, calls.get());
+
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").get(5, TimeUnit.SECONDS).isValid());
+        Assert.assertEquals(2, calls.get());
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiFunction;
+
+/**
+ * Canned VIES responses, for testing without calling the real webservice.
+ */
+final class ViesResponses {
+
+    static final String VALID = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+            "<checkVatResponse xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+            "<countryCode>IT</countryCode><vatNumber>00950501007</vatNumber><requestDate>2020-10-21+02:00</requestDate>" +
+            "<valid>true</valid><name>BANCA D&apos;ITALIA</name><address>VIA NAZIONALE 91 \n00184 ROMA RM\n</address>" +
+            "</checkVatResponse></soap:Body></soap:Envelope>";
+
+    static final String INVALID = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+            "<checkVatResponse xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+            "<countryCode>IT</countryCode><vatNumber>00950501000</vatNumber><requestDate>2020-10-21+02:00</requestDate>" +
+            "<valid>false</valid><name>---</name><address>---</address>" +
+            "</checkVatResponse></soap:Body></soap:Envelope>";
+
+    static final String VALID_APPROX = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+            "<checkVatApproxResponse xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+            "<countryCode>IT</countryCode><vatNumber>00950501007</vatNumber><requestDate>2020-10-21+02:00</requestDate>" +
+            "<valid>true</valid><traderName>BANCA D&apos;ITALIA</traderName><traderCompanyType>---</traderCompanyType>" +
+            "<traderAddress>VIA NAZIONALE 91 \n00184 ROMA RM\n</traderAddress>" +
+            "<traderNameMatch>1</traderNameMatch><traderCityMatch>2</traderCityMatch><traderStreetMatch>3</traderStreetMatch>" +
+            "<requestIdentifier>WAPIAAAAW1234567</requestIdentifier>" +
+            "</checkVatApproxResponse></soap:Body></soap:Envelope>";
+
+    static final String FAULT_INVALID_INPUT = fault("INVALID_INPUT");
+
+    static final String FAULT_MS_UNAVAILABLE = fault("MS_UNAVAILABLE");
+
+    private ViesResponses() {
+    }
+
+    static String fault(String faultString) {
+        return "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+                "<soap:Fault><faultcode>soap:Server</faultcode><faultstring>" + faultString + "</faultstring></soap:Fault>" +
+                "</soap:Body></soap:Envelope>";
+    }
+
+    static String valid(String countryCode, String vatNumber, String name) {
+        return "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>" +
+                "<checkVatResponse xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+                "<countryCode>" + countryCode + "</countryCode><vatNumber>" + vatNumber + "</vatNumber><requestDate>2020-10-21+02:00</requestDate>" +
+                "<valid>true</valid><name>" + name + "</name><address>---</address>" +
+                "</checkVatResponse></soap:Body></soap:Envelope>";
+    }
+
+    static InputStream stream(String response) {
+        return new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static BiFunction<String, String, InputStream> fetcher(String response) {
+        return (url, body) -> stream(response);
+    }
+}
@@ -0,0 +1,472 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local stand-in for the VIES webservice, for testing without network access: an embedded http server answering
+ * the checkVat and checkVatApprox operations on {@link #getEndpoint()}, on the loopback interface.
+ *
+ * The vat numbers added with {@link #addValid(VatId, String, String)} and {@link #addInvalid(VatId)} are answered
+ * accordingly. The others are valid if they pass {@link VatNumberFormat#isValid(String, String)}, an unknown country
+ * code is answered with the INVALID_INPUT fault. The latency of the answers and the faults can be set per country
+ * code, and changed while the simulator is running. Use it with {@link EUVatChecker#withEndpoint(String)}:
+ *
+ * <pre>
+ * try (ViesSimulator simulator = new ViesSimulator()) {
+ *     simulator.addValid(VatId.of("IT", "00950501007"), "BANCA D'ITALIA", "VIA NAZIONALE 91 \n00184 ROMA RM\n")
+ *             .setLatency(ViesSimulator.Latency.logNormal(Duration.ofMillis(50), Duration.ofMillis(400)))
+ *             .setFault("DE", "MS_UNAVAILABLE", 0.2);
+ *     EUVatChecker checker = new EUVatChecker().withEndpoint(simulator.getEndpoint());
+ *     ...
+ * }
+ * </pre>
+ *
+ * Each request is answered on its own thread, so slow answers do not limit the throughput. The JDK server writes the
+ * headers and the body of a response separately: with the Nagle algorithm, each answer waits for the delayed ACK
+ * of the client (~40ms). For measuring latencies below that, start the JVM with
+ * <code>-Dsun.net.httpserver.nodelay=true</code> (it affects all the JDK http servers of the JVM).
+ *
+ * Instances are thread-safe.
+ */
+public final class ViesSimulator implements Closeable {
+
+    /**
+     * The path of {@link #getEndpoint()}, as in the real webservice.
+     */
+    public static final String PATH = "/taxation_customs/vies/services/checkVatService";
+
+    private static final String ENVELOPE_START = "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body>";
+    private static final String ENVELOPE_END = "</soap:Body></soap:Envelope>";
+    private static final String TYPES_NS = "urn:ec.europa.eu:taxud:vies:services:checkVat:types";
+    private static final String ALL_COUNTRY_CODES = "*";
+    private static final ZoneId BRUSSELS = ZoneId.of("Europe/Brussels");
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String endpoint;
+    private final ConcurrentMap<VatId, Fixture> fixtures = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Fault> faults = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final AtomicLong requestIdentifiers = new AtomicLong();
+
+    /**
+     * Start a simulator on a free port.
+     */
+    public ViesSimulator() {
+        this(0);
+    }
+
+    /**
+     * @param port the port, 0 for a free port
+     */
+    public ViesSimulator(int port) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int id = COUNTER.incrementAndGet();
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "vies-simulator-" + id + "-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handle);
+        server.start();
+        endpoint = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * @return the url of the simulated webservice
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Answer the given vat number as valid, with the given name and address.
+     *
+     * @return this simulator
+     */
+    public ViesSimulator addValid(VatId vatId, String name, String address) {
+        fixtures.put(Objects.requireNonNull(vatId, "vatId cannot be null"), new Fixture(true,
+                Objects.requireNonNull(name, "name cannot be null"),
+                Objects.requireNonNull(address, "address cannot be null")));
+        return this;
+    }
+
+    /**
+     * Answer the given vat number as invalid.
+     *
+     * @return this simulator
+     */
+    public ViesSimulator addInvalid(VatId vatId) {
+        fixtures.put(Objects.requireNonNull(vatId, "vatId cannot be null"), new Fixture(false, "---", "---"));
+        return this;
+    }
+
+    /**
+     * Set the latency of the answers for all the country codes without a specific latency.
+     *
+     * @return this simulator
+     */
+    public ViesSimulator setLatency(Latency latency) {
+        latencies.put(ALL_COUNTRY_CODES, Objects.requireNonNull(latency, "latency cannot be null"));
+        return this;
+    }
+
+    /**
+     * Set the latency of the answers for the given country code.
+     *
+     * @return this simulator
+     */
+    public ViesSimulator setLatency(String countryCode, Latency latency) {
+        latencies.put(countryCode(countryCode), Objects.requireNonNull(latency, "latency cannot be null"));
+        return this;
+    }
+
+    /**
+     * Answer the requests of all the country codes with the given fault, e.g. GLOBAL_MAX_CONCURRENT_REQ, with the
+     * given probability. Applies before the faults of the country codes.
+     *
+     * @param faultCode   the fault code, see {@link EUVatCheckResponse#getFaultCode()}
+     * @param probability between 0 and 1
+     * @return this simulator
+     */
+    public ViesSimulator setFault(String faultCode, double probability) {
+        faults.put(ALL_COUNTRY_CODES, new Fault(faultCode, probability));
+        return this;
+    }
+
+    /**
+     * Answer the requests of the given country code with the given fault, e.g. MS_UNAVAILABLE, with the given
+     * probability.
+     *
+     * @param countryCode the country code
+     * @param faultCode   the fault code, see {@link EUVatCheckResponse#getFaultCode()}
+     * @param probability between 0 and 1
+     * @return this simulator
+     */
+    public ViesSimulator setFault(String countryCode, String faultCode, double probability) {
+        faults.put(countryCode(countryCode), new Fault(faultCode, probability));
+        return this;
+    }
+
+    /**
+     * Remove all the faults.
+     *
+     * @return this simulator
+     */
+    public ViesSimulator clearFaults() {
+        faults.clear();
+        return this;
+    }
+
+    /**
+     * @return the number of requests received
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * Stop the server, the requests in progress are aborted.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static String countryCode(String countryCode) {
+        return VatId.normalizeCountryCode(Objects.requireNonNull(countryCode, "countryCode cannot be null"));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.increment();
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "text/plain", "Method Not Allowed");
+                return;
+            }
+            Map<String, String> request = readRequest(exchange.getRequestBody());
+            if (request.get("countryCode") == null || request.get("vatNumber") == null) {
+                respond(exchange, 500, "text/xml;charset=UTF-8", fault("INVALID_INPUT"));
+                return;
+            }
+            VatId vatId = new VatId(request.get("countryCode"), request.get("vatNumber"));
+            String countryCode = vatId.getCountryCode();
+            sleep(latencies.getOrDefault(countryCode, latencies.getOrDefault(ALL_COUNTRY_CODES, Latency.NONE)));
+            String faultCode = fault(faults.get(ALL_COUNTRY_CODES));
+            if (faultCode == null) {
+                faultCode = fault(faults.get(countryCode));
+            }
+            if (faultCode == null && !VatNumberFormat.isKnownCountryCode(countryCode)) {
+                faultCode = "INVALID_INPUT";
+            }
+            if (faultCode != null) {
+                respond(exchange, 500, "text/xml;charset=UTF-8", fault(faultCode));
+                return;
+            }
+            Fixture fixture = fixtures.get(vatId);
+            if (fixture == null) {
+                fixture = VatNumberFormat.isValid(countryCode, vatId.getVatNumber()) ? Fixture.UNKNOWN_VALID : Fixture.UNKNOWN_INVALID;
+            }
+            String response = "checkVatApprox".equals(request.get(null)) ?
+                    checkVatApproxResponse(vatId, fixture, request) :
+                    checkVatResponse(vatId, fixture);
+            respond(exchange, 200, "text/xml;charset=UTF-8", response);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            respond(exchange, 500, "text/plain", String.valueOf(e));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sleep(Latency latency) throws InterruptedException {
+        long nanos = latency.nextNanos();
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+    private static String fault(Fault fault) {
+        return fault != null && ThreadLocalRandom.current().nextDouble() < fault.probability ? fault.faultCode : null;
+    }
+
+    /**
+     * Return the text of the children of the operation element, by local name. The name of the operation is
+     * stored under the null key.
+     */
+    private static Map<String, String> readRequest(InputStream is) {
+        Map<String, String> request = new HashMap<>();
+        XMLStreamReader reader = null;
+        try {
+            reader = XmlFactories.xmlInputFactory().createXMLStreamReader(is);
+            int depth = 0;
+            int operationDepth = -1;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String localName = reader.getLocalName();
+                    if (operationDepth < 0 && ("checkVat".equals(localName) || "checkVatApprox".equals(localName))) {
+                        operationDepth = depth;
+                        request.put(null, localName);
+                    } else if (operationDepth > 0 && depth == operationDepth + 1) {
+                        request.putIfAbsent(localName, reader.getElementText().trim());
+                        depth--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                } else if (event == XMLStreamConstants.DTD) {
+                    throw new IllegalStateException("DOCTYPE is not allowed in the request");
+                }
+            }
+        } catch (XMLStreamException e) {
+            request.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                }
+            }
+        }
+        return request;
+    }
+
+    private static String checkVatResponse(VatId vatId, Fixture fixture) {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(ENVELOPE_START).append("<checkVatResponse xmlns=\"").append(TYPES_NS).append("\">");
+        identification(sb, vatId, fixture);
+        SoapRequestWriter.element(sb, "name", fixture.name);
+        SoapRequestWriter.element(sb, "address", fixture.address);
+        sb.append("</checkVatResponse>").append(ENVELOPE_END);
+        return sb.toString();
+    }
+
+    private String checkVatApproxResponse(VatId vatId, Fixture fixture, Map<String, String> request) {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(ENVELOPE_START).append("<checkVatApproxResponse xmlns=\"").append(TYPES_NS).append("\">");
+        identification(sb, vatId, fixture);
+        if (fixture.valid) {
+            SoapRequestWriter.element(sb, "traderName", fixture.name);
+            SoapRequestWriter.element(sb, "traderCompanyType", "---");
+            SoapRequestWriter.element(sb, "traderAddress", fixture.address);
+            match(sb, "traderNameMatch", request.get("traderName"), fixture.name, true);
+            if (request.get("traderCompanyType") != null) {
+                SoapRequestWriter.element(sb, "traderCompanyTypeMatch", "3");
+            }
+            match(sb, "traderStreetMatch", request.get("traderStreet"), fixture.address, false);
+            match(sb, "traderPostcodeMatch", request.get("traderPostcode"), fixture.address, false);
+            match(sb, "traderCityMatch", request.get("traderCity"), fixture.address, false);
+        }
+        if (request.get("requesterCountryCode") != null) {
+            SoapRequestWriter.element(sb, "requestIdentifier", String.format(Locale.ROOT, "WAPISIM%09d", requestIdentifiers.incrementAndGet()));
+        }
+        sb.append("</checkVatApproxResponse>").append(ENVELOPE_END);
+        return sb.toString();
+    }
+
+    private static void identification(StringBuilder sb, VatId vatId, Fixture fixture) {
+        SoapRequestWriter.element(sb, "countryCode", vatId.getCountryCode());
+        SoapRequestWriter.element(sb, "vatNumber", vatId.getVatNumber());
+        SoapRequestWriter.element(sb, "requestDate", ZonedDateTime.now(BRUSSELS).format(DateTimeFormatter.ISO_OFFSET_DATE));
+        SoapRequestWriter.element(sb, "valid", Boolean.toString(fixture.valid));
+    }
+
+    // 1: valid, 2: invalid, only for the values given in the request
+    private static void match(StringBuilder sb, String element, String requested, String actual, boolean exact) {
+        if (requested == null) {
+            return;
+        }
+        String r = requested.toUpperCase(Locale.ROOT);
+        String a = actual.toUpperCase(Locale.ROOT);
+        SoapRequestWriter.element(sb, element, (exact ? a.trim().equals(r) : a.contains(r)) ? "1" : "2");
+    }
+
+    private static String fault(String faultCode) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(ENVELOPE_START).append("<soap:Fault><faultcode>soap:Server</faultcode>");
+        SoapRequestWriter.element(sb, "faultstring", faultCode);
+        sb.append("</soap:Fault>").append(ENVELOPE_END);
+        return sb.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * The distribution of the latency of the answers, see {@link #setLatency(Latency)}.
+     */
+    @FunctionalInterface
+    public interface Latency {
+
+        /**
+         * No added latency.
+         */
+        Latency NONE = () -> 0;
+
+        /**
+         * @return the next latency, in nanoseconds
+         */
+        long nextNanos();
+
+        static Latency fixed(Duration latency) {
+            long nanos = latency.toNanos();
+            return () -> nanos;
+        }
+
+        static Latency uniform(Duration min, Duration max) {
+            long minNanos = min.toNanos();
+            long maxNanos = max.toNanos();
+            if (maxNanos < minNanos) {
+                throw new IllegalArgumentException("max cannot be less than min");
+            }
+            return () -> ThreadLocalRandom.current().nextLong(minNanos, maxNanos + 1);
+        }
+
+        /**
+         * A log-normal distribution, the usual shape of the response times: most answers are close to the median,
+         * with a long tail.
+         *
+         * @param median the median latency
+         * @param p99    the 99th percentile latency
+         */
+        static Latency logNormal(Duration median, Duration p99) {
+            double medianNanos = median.toNanos();
+            if (medianNanos <= 0 || p99.compareTo(median) < 0) {
+                throw new IllegalArgumentException("median must be positive and p99 cannot be less than median");
+            }
+            // 2.326 is the 99th percentile of the standard normal distribution
+            double sigma = Math.log(p99.toNanos() / medianNanos) / 2.326;
+            return () -> (long) (medianNanos * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+        }
+    }
+
+    private static final class Fixture {
+
+        private static final Fixture UNKNOWN_VALID = new Fixture(true, "---", "---");
+        private static final Fixture UNKNOWN_INVALID = new Fixture(false, "---", "---");
+
+        private final boolean valid;
+        private final String name;
+        private final String address;
+
+        private Fixture(boolean valid, String name, String address) {
+            this.valid = valid;
+            this.name = name;
+            this.address = address;
+        }
+    }
+
+    private static final class Fault {
+        private final String faultCode;
+        private final double probability;
+
+        private Fault(String faultCode, double probability) {
+            this.faultCode = Objects.requireNonNull(faultCode, "faultCode cannot be null");
+            if (probability < 0 || probability > 1) {
+                throw new IllegalArgumentException("probability must be between 0 and 1");
+            }
+            this.probability = probability;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright © 2018 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ViesSimulatorTest {
+
+    private ViesSimulator simulator;
+
+    @Before
+    public void start() {
+        simulator = new ViesSimulator()
+                .addValid(VatId.of("IT", "00950501007"), "BANCA D'ITALIA", "VIA NAZIONALE 91 \n00184 ROMA RM\n")
+                .addInvalid(VatId.of("DE", "136695976"));
+    }
+
+    @After
+    public void stop() {
+        simulator.close();
+    }
+
+    private EUVatChecker checker() {
+        return new EUVatChecker().withEndpoint(simulator.getEndpoint());
+    }
+
+    @Test
+    public void testFixtures() {
+        EUVatChecker checker = checker();
+        EUVatCheckResponse resp = checker.check("IT", "00950501007");
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+        Assert.assertEquals("VIA NAZIONALE 91 \n00184 ROMA RM\n", resp.getAddress());
+        Assert.assertEquals("IT", resp.getCountryCode());
+        Assert.assertEquals("00950501007", resp.getVatNumber());
+        Assert.assertNotNull(resp.getRequestDate());
+
+        Assert.assertFalse(checker.check("DE", "136695976").isValid());
+
+        // not in the fixtures: according to the format
+        Assert.assertTrue(checker.check("DE", "129273398").isValid());
+        resp = checker.check("IT", "00950501000");
+        Assert.assertFalse(resp.isValid());
+        Assert.assertEquals("---", resp.getName());
+
+        resp = checker.check("AB", "009505010075353");
+        Assert.assertEquals(EUVatCheckResponse.Status.PERMANENT_FAULT, resp.getStatus());
+        Assert.assertEquals("INVALID_INPUT", resp.getFaultCode());
+        Assert.assertEquals(5, simulator.getRequestCount());
+    }
+
+    @Test
+    public void testCheckApprox() {
+        EUVatCheckApproxResponse resp = checker().checkApprox(new VatCheckApproxRequest(VatId.of("IT", "00950501007"))
+                .withRequester(VatId.of("DE", "136695976"))
+                .withTraderName("Banca d'Italia")
+                .withTraderCity("Milano"));
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+        Assert.assertEquals(EUVatCheckApproxResponse.Match.VALID, resp.getNameMatch());
+        Assert.assertEquals(EUVatCheckApproxResponse.Match.INVALID, resp.getCityMatch());
+        Assert.assertNull(resp.getStreetMatch());
+        Assert.assertTrue(resp.getRequestIdentifier().startsWith("WAPI"));
+    }
+
+    @Test
+    public void testFaults() {
+        EUVatChecker checker = checker();
+        simulator.setFault("DE", "MS_UNAVAILABLE", 1);
+        Assert.assertEquals("MS_UNAVAILABLE", checker.check("DE", "129273398").getFaultCode());
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+
+        simulator.setFault("GLOBAL_MAX_CONCURRENT_REQ", 1);
+        Assert.assertEquals("GLOBAL_MAX_CONCURRENT_REQ", checker.check("IT", "00950501007").getFaultCode());
+
+        simulator.clearFaults();
+        Assert.assertTrue(checker.check("DE", "129273398").isValid());
+    }
+
+    @Test
+    public void testRetryOnTransientFaults() {
+        simulator.setFault("IT", "MS_MAX_CONCURRENT_REQ", 0.3);
+        EUVatChecker checker = checker().withRetryPolicy(new RetryPolicy(20, Duration.ofMillis(1), Duration.ofMillis(1), Duration.ofSeconds(30)));
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        }
+        Assert.assertTrue(simulator.getRequestCount() >= 20);
+    }
+
+    @Test
+    public void testTimeout() {
+        simulator.setLatency("IT", ViesSimulator.Latency.fixed(Duration.ofSeconds(2)));
+        EUVatChecker checker = new EUVatChecker(new HttpDocumentFetcher(1_000, 100, 5)).withEndpoint(simulator.getEndpoint());
+        try {
+            checker.check("IT", "00950501007");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        Assert.assertTrue(checker.check("DE", "136695976").getStatus() == EUVatCheckResponse.Status.INVALID);
+    }
+
+    @Test
+    public void testLatencyDistributions() {
+        for (int i = 0; i < 1000; i++) {
+            long uniform = ViesSimulator.Latency.uniform(Duration.ofMillis(1), Duration.ofMillis(2)).nextNanos();
+            Assert.assertTrue(uniform >= 1_000_000 && uniform <= 2_000_000);
+        }
+        ViesSimulator.Latency logNormal = ViesSimulator.Latency.logNormal(Duration.ofMillis(50), Duration.ofMillis(400));
+        int belowMedian = 0;
+        int aboveP99 = 0;
+        for (int i = 0; i < 10_000; i++) {
+            long nanos = logNormal.nextNanos();
+            belowMedian += nanos < 50_000_000 ? 1 : 0;
+            aboveP99 += nanos > 400_000_000 ? 1 : 0;
+        }
+        Assert.assertTrue(belowMedian > 4500 && belowMedian < 5500);
+        Assert.assertTrue(aboveP99 > 30 && aboveP99 < 300);
+    }
+
+    @Test
+    public void testManyConcurrentChecks() {
+        simulator.setLatency(ViesSimulator.Latency.uniform(Duration.ofMillis(1), Duration.ofMillis(5)));
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            EUVatChecker checker = new EUVatChecker(new HttpDocumentFetcher(5_000, 5_000, 32))
+                    .withEndpoint(simulator.getEndpoint())
+                    .withExecutor(executor);
+            List<VatId> vatIds = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                vatIds.add(VatId.of("IT", "00950501007"));
+                vatIds.add(VatId.of("DE", "136695976"));
+            }
+            List<VatCheckResult> results = new ArrayList<>();
+            checker.checkAll(vatIds, 32, results::add);
+            Assert.assertEquals(1000, results.size());
+            for (VatCheckResult result : results) {
+                Assert.assertTrue(result.isSuccess());
+                Assert.assertEquals("IT".equals(result.getVatId().getCountryCode()), result.getResponse().isValid());
+            }
+            Assert.assertEquals(1000, simulator.getRequestCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}